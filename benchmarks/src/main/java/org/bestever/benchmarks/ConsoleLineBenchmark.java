@@ -0,0 +1,173 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.bestever.bebot.ConsoleLineProcessor;
+import org.bestever.bebot.RelayDigest;
+import org.bestever.bebot.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the work ServerProcess does for every line a server prints, over a
+ * corpus of console output. Every operation is one line, so with the GC
+ * profiler the results are ns/line and bytes allocated/line. Relayed messages
+ * and console commands go to a blackhole, and the ban check is a set lookup
+ * instead of a database query.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleLineBenchmark {
+
+    /**
+     * Number of lines in every corpus
+     */
+    private static final int CORPUS_LINES = 2000;
+
+    /**
+     * The corpus to use, from the console resources
+     */
+    @Param({"chat-heavy", "connect-heavy"})
+    public String corpus;
+
+    /**
+     * The console lines
+     */
+    private String[] lines;
+
+    /**
+     * The server the lines belong to
+     */
+    private Server server;
+
+    /**
+     * The processor being measured
+     */
+    private ConsoleLineProcessor processor;
+
+    /**
+     * Receives everything the processor sends out, set by each benchmark
+     */
+    private Blackhole bh;
+
+    /**
+     * IP addresses that are treated as banned
+     */
+    private final Set<String> banned = new HashSet<>();
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> list = new ArrayList<>();
+        try (InputStream in = ConsoleLineBenchmark.class.getResourceAsStream("/console/" + corpus + ".log");
+                BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                list.add(line);
+            }
+        }
+        if (list.size() != CORPUS_LINES) {
+            throw new IllegalStateException("Corpus " + corpus + " has " + list.size() + " lines, expected " + CORPUS_LINES);
+        }
+        lines = list.toArray(new String[list.size()]);
+
+        // Ban every tenth player that connects
+        int connections = 0;
+        for (String line : lines) {
+            if (line.startsWith("CONNECTION ") && connections++ % 10 == 0) {
+                String[] keywords = line.split(" ");
+                banned.add(keywords[keywords.length - 1].split(":")[0]);
+            }
+        }
+
+        server = new Server();
+        server.servername = "Benchmark CTF";
+        server.playerList = new ArrayList<>();
+        processor = new ConsoleLineProcessor(new ConsoleLineProcessor.Sink() {
+            @Override
+            public void relay(RelayDigest.Kind kind, String player, String message) {
+                bh.consume(message);
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                bh.consume(command);
+            }
+
+            @Override
+            public String checkBanned(String ip) {
+                return banned.contains(ip) ? ip : null;
+            }
+
+            @Override
+            public void activity() {
+                bh.consume(System.currentTimeMillis());
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_LINES)
+    public void processLines(Blackhole bh) {
+        this.bh = bh;
+        server.playerList.clear();
+        for (String line : lines) {
+            processor.process(server, line);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_LINES)
+    public void formatLogLines(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(processor.formatLogLine(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_LINES)
+    public void processAndLog(Blackhole bh) {
+        this.bh = bh;
+        server.playerList.clear();
+        for (String line : lines) {
+            bh.consume(processor.formatLogLine(line));
+            processor.process(server, line);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.bestever.serverquery.Huffman;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Huffman encoding of the query request and decoding of launcher
+ * responses
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HuffmanBenchmark {
+
+    /**
+     * The fixture to use, see QueryFixtures
+     */
+    @Param({"bot", "wadlist", "fullserver"})
+    public String fixture;
+
+    /**
+     * The response as it arrives on the wire
+     */
+    private byte[] encoded;
+
+    /**
+     * The response after decoding
+     */
+    private byte[] decoded;
+
+    /**
+     * The request the bot sends to a server
+     */
+    private byte[] request;
+
+    @Setup
+    public void setup() throws IOException {
+        encoded = QueryFixtures.load(fixture);
+        decoded = Huffman.decode(encoded);
+        request = new byte[]{(byte) 199, 0, 0, 0, -64, 18, 0, 8};
+    }
+
+    @Benchmark
+    public byte[] decodeResponse() {
+        return Huffman.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() {
+        return Huffman.encode(decoded);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        return Huffman.encode(request);
+    }
+}
@@ -0,0 +1,99 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.bestever.serverquery.NetworkBuffer;
+import org.bestever.serverquery.ServerQueryFlags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures filling a NetworkBuffer and extracting the primitives a launcher
+ * response is made of
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkBufferBenchmark {
+
+    /**
+     * Number of pwad names in the packet
+     */
+    @Param({"3", "40"})
+    public int pwads;
+
+    /**
+     * A decoded response holding only the header and the wad list
+     */
+    private byte[] packet;
+
+    @Setup
+    public void setup() {
+        packet = QueryFixtures.build(ServerQueryFlags.SQF_PWADS, pwads, 0);
+    }
+
+    @Benchmark
+    public void fill(Blackhole bh) {
+        NetworkBuffer buffer = new NetworkBuffer(packet.length);
+        buffer.add(packet);
+        bh.consume(buffer);
+    }
+
+    @Benchmark
+    public void extractInts(Blackhole bh) {
+        NetworkBuffer buffer = new NetworkBuffer(packet.length);
+        buffer.add(packet);
+        for (int i = 0; i < packet.length / 4; i++) {
+            bh.consume(buffer.extractInt(true));
+        }
+    }
+
+    @Benchmark
+    public void extractShorts(Blackhole bh) {
+        NetworkBuffer buffer = new NetworkBuffer(packet.length);
+        buffer.add(packet);
+        for (int i = 0; i < packet.length / 2; i++) {
+            bh.consume(buffer.extractShort(true));
+        }
+    }
+
+    @Benchmark
+    public void extractWadList(Blackhole bh) {
+        NetworkBuffer buffer = new NetworkBuffer(packet.length);
+        buffer.add(packet);
+        bh.consume(buffer.extractInt(true)); // Header
+        bh.consume(buffer.extractInt(true)); // Time
+        bh.consume(buffer.extractString()); // Version
+        bh.consume(buffer.extractInt(true)); // Flags
+        byte count = buffer.extractByte();
+        for (int i = 0; i < count; i++) {
+            bh.consume(buffer.extractString());
+        }
+    }
+}
@@ -0,0 +1,239 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.bestever.serverquery.Huffman;
+import org.bestever.serverquery.ServerQueryFlags;
+
+/**
+ * Launcher response packets used by the benchmarks. A fixture is either one of
+ * the built-in responses below, laid out exactly like a Zandronum server
+ * answers a launcher query, or "file:" followed by the path of a datagram
+ * saved with RecordQueryResponse. Fixtures are returned as they arrive on the
+ * wire, so still Huffman encoded.
+ */
+public final class QueryFixtures {
+
+    /**
+     * The flags the bot asks for when running .query
+     */
+    public static final int BOT_FLAGS = 0x080012C0;
+
+    /**
+     * Every flag a server can answer with
+     */
+    public static final int ALL_FLAGS = 0x1FFF7FFF;
+
+    /**
+     * Header of a normal launcher response
+     */
+    private static final int RESPONSE_HEADER = 5660023;
+
+    private QueryFixtures() {
+    }
+
+    /**
+     * Returns the encoded response for a fixture name
+     *
+     * @param name String - "bot", "wadlist", "fullserver" or "file:path"
+     * @return the response as it arrives on the wire
+     * @throws IOException if a recorded fixture cannot be read
+     */
+    public static byte[] load(String name) throws IOException {
+        if (name.startsWith("file:")) {
+            return Files.readAllBytes(Paths.get(name.substring("file:".length())));
+        }
+        switch (name) {
+            case "bot":
+                return Huffman.encode(build(BOT_FLAGS, 3, 0));
+            case "wadlist":
+                return Huffman.encode(build(BOT_FLAGS, 40, 0));
+            case "fullserver":
+                return Huffman.encode(build(ALL_FLAGS, 12, 32));
+            default:
+                throw new IllegalArgumentException("Unknown fixture: " + name);
+        }
+    }
+
+    /**
+     * Builds a decoded launcher response
+     *
+     * @param flags int - the flags the server answers with
+     * @param pwads int - number of loaded wads
+     * @param players int - number of players
+     * @return the decoded response
+     */
+    public static byte[] build(int flags, int pwads, int players) {
+        Writer w = new Writer();
+        w.putInt(RESPONSE_HEADER);
+        w.putInt(1373000000); // Time the query was sent
+        w.putString("1.1.1-r130119-1836");
+        w.putInt(flags);
+        if (has(flags, ServerQueryFlags.SQF_NAME)) {
+            w.putString("[BE] New York | Instagib CTF on a map pack with a fairly long name");
+        }
+        if (has(flags, ServerQueryFlags.SQF_URL)) {
+            w.putString("http://www.best-ever.org/wadpage?key=9f86d081884c7d659a2feaa0c55ad015");
+        }
+        if (has(flags, ServerQueryFlags.SQF_EMAIL)) {
+            w.putString("admin@best-ever.org");
+        }
+        if (has(flags, ServerQueryFlags.SQF_MAPNAME)) {
+            w.putString("MAP07");
+        }
+        if (has(flags, ServerQueryFlags.SQF_MAXCLIENTS)) {
+            w.putByte(64);
+        }
+        if (has(flags, ServerQueryFlags.SQF_MAXPLAYERS)) {
+            w.putByte(32);
+        }
+        if (has(flags, ServerQueryFlags.SQF_PWADS)) {
+            w.putByte(pwads);
+            for (int i = 0; i < pwads; i++) {
+                w.putString(String.format("mappack_part%02d_v%d.pk3", i, 1 + i % 3));
+            }
+        }
+        if (has(flags, ServerQueryFlags.SQF_GAMETYPE)) {
+            w.putByte(ServerQueryFlags.GAMEMODE_CTF);
+            w.putByte(1);
+            w.putByte(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_GAMENAME)) {
+            w.putString("DOOM II");
+        }
+        if (has(flags, ServerQueryFlags.SQF_IWAD)) {
+            w.putString("doom2.wad");
+        }
+        if (has(flags, ServerQueryFlags.SQF_FORCEPASSWORD)) {
+            w.putByte(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_FORCEJOINPASSWORD)) {
+            w.putByte(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_GAMESKILL)) {
+            w.putByte(3);
+        }
+        if (has(flags, ServerQueryFlags.SQF_BOTSKILL)) {
+            w.putByte(2);
+        }
+        if (has(flags, ServerQueryFlags.SQF_DMFLAGS)) {
+            w.putInt(0x00214004);
+            w.putInt(0x00000280);
+            w.putInt(0x00000000);
+        }
+        if (has(flags, ServerQueryFlags.SQF_LIMITS)) {
+            w.putShort(15);
+            w.putShort(20);
+            w.putShort(12);
+            w.putShort(0);
+            w.putShort(5);
+            w.putShort(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMDAMAGE)) {
+            w.putInt(Float.floatToIntBits(0.0f));
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMSCORES)) {
+            w.putShort(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_NUMPLAYERS)) {
+            w.putByte(players);
+        }
+        if (has(flags, ServerQueryFlags.SQF_PLAYERDATA)) {
+            for (int i = 0; i < players; i++) {
+                w.putString("\\cdPlayer\\cf" + i);
+                w.putShort(i * 3);
+                w.putShort(40 + i * 7);
+                w.putByte(i % 9 == 0 ? 1 : 0);
+                w.putByte(0);
+                w.putByte(i % 2);
+                w.putByte(i + 1);
+            }
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_NUMBER)) {
+            w.putByte(2);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_NAME)) {
+            w.putString("Blue");
+            w.putString("Red");
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_COLOR)) {
+            w.putInt(0x0000FF);
+            w.putInt(0xFF0000);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_SCORE)) {
+            w.putShort(3);
+            w.putShort(2);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TESTING_SERVER)) {
+            w.putByte(1);
+            w.putString("zandronum-3.0-alpha-r170101");
+        }
+        if (has(flags, ServerQueryFlags.SQF_DATA_MD5SUM)) {
+            w.putString("2a3f6b3a5e1c3b0b4c6d4e1f9a8b7c6d");
+        }
+        if (has(flags, ServerQueryFlags.SQF_ALL_DMFLAGS)) {
+            w.putByte(5);
+            w.putInt(0x00214004);
+            w.putInt(0x00000280);
+            w.putInt(0x00000001);
+            w.putInt(0x00000000);
+            w.putInt(0x00000040);
+        }
+        if (has(flags, ServerQueryFlags.SQF_SECURITY_SETTINGS)) {
+            w.putByte(1);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * @return true if the flag is set
+     */
+    private static boolean has(int flags, int flag) {
+        return (flags & flag) == flag;
+    }
+
+    /**
+     * Writes little endian values the way the server sends them
+     */
+    private static final class Writer extends ByteArrayOutputStream {
+
+        void putByte(int b) {
+            write(b);
+        }
+
+        void putShort(int s) {
+            write(s);
+            write(s >> 8);
+        }
+
+        void putInt(int i) {
+            write(i);
+            write(i >> 8);
+            write(i >> 16);
+            write(i >> 24);
+        }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            write(bytes, 0, bytes.length);
+            write(0);
+        }
+    }
+}
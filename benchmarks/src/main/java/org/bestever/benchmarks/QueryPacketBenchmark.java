@@ -0,0 +1,91 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.bestever.serverquery.Huffman;
+import org.bestever.serverquery.NetworkPacketProcessException;
+import org.bestever.serverquery.QueryHandler;
+import org.bestever.serverquery.QueryResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the whole path a launcher response takes through the bot, from the
+ * received datagram to the query result
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryPacketBenchmark {
+
+    /**
+     * The fixture to use, see QueryFixtures
+     */
+    @Param({"bot", "wadlist", "fullserver"})
+    public String fixture;
+
+    /**
+     * The datagram as it was received, with room to spare like in QueryHandler
+     */
+    private byte[] received;
+
+    /**
+     * Length of the datagram
+     */
+    private int length;
+
+    /**
+     * The response after decoding
+     */
+    private byte[] decoded;
+
+    @Setup
+    public void setup() throws IOException, NetworkPacketProcessException {
+        byte[] encoded = QueryFixtures.load(fixture);
+        received = new byte[2048];
+        length = encoded.length;
+        System.arraycopy(encoded, 0, received, 0, length);
+        decoded = Huffman.decode(encoded);
+        // Fail here rather than measuring exceptions if a fixture is broken
+        QueryHandler.parseResponse(decoded);
+    }
+
+    @Benchmark
+    public QueryResult parse() throws NetworkPacketProcessException {
+        return QueryHandler.parseResponse(decoded);
+    }
+
+    @Benchmark
+    public QueryResult endToEnd() throws NetworkPacketProcessException {
+        // Same steps as QueryHandler.run() after the datagram arrives
+        byte[] truncated = new byte[length];
+        System.arraycopy(received, 0, truncated, 0, length);
+        return QueryHandler.parseResponse(Huffman.decode(truncated));
+    }
+}
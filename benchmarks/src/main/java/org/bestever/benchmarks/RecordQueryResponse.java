@@ -0,0 +1,52 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import org.bestever.serverquery.Huffman;
+import org.bestever.serverquery.QueryHandler;
+
+/**
+ * Saves the response of a real server to the query the bot sends, so it can be
+ * used as a fixture:
+ *
+ * java -cp target/benchmarks.jar org.bestever.benchmarks.RecordQueryResponse host port file
+ */
+public class RecordQueryResponse {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: RecordQueryResponse <host> <port> <file>");
+            return;
+        }
+        // The same request QueryHandler sends
+        byte[] request = Huffman.encode(new byte[]{(byte) 199, 0, 0, 0, -64, 18, 0, 8});
+        byte[] response = new byte[2048];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(QueryHandler.SOCKET_TIMEOUT_MS);
+            socket.send(new DatagramPacket(request, request.length, InetAddress.getByName(args[0]), Integer.parseInt(args[1])));
+            DatagramPacket packet = new DatagramPacket(response, response.length);
+            socket.receive(packet);
+            Files.write(Paths.get(args[2]), Arrays.copyOf(response, packet.getLength()));
+            System.out.println("Saved " + packet.getLength() + " bytes, use it with -p fixture=file:" + args[2]);
+        }
+    }
+}
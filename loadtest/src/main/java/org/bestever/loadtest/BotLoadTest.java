@@ -0,0 +1,430 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.bestever.bebot.Bot;
+import org.bestever.bebot.ConfigData;
+
+/**
+ * Runs the bot against an embedded IRC server and drives it with scripted
+ * users, then reports the latency of each command and how fast the bot sent
+ * messages.
+ * <br>
+ * The bot is started from a normal ini file; only the IRC network settings
+ * are replaced. Everything else is used as it is, so the ini should point at
+ * a test database where the scripted accounts exist (or use --register) and
+ * at bin/fake-zandronum-server as the executable.
+ * <br>
+ * Usage: BotLoadTest --ini bestbot.ini [--users 10] [--duration 60]
+ * [--think 1000] [--timeout 15000] [--mix host=1,servers=4,query=3,kill=1]
+ * [--account-prefix loadtest] [--password loadtest] [--register]
+ * [--host-options "iwad=doom2.wad gamemode=deathmatch"] [--query ip:port]
+ * [--irc-port 0]
+ */
+public class BotLoadTest {
+
+    /**
+     * A command that was sent and is waiting for a reply
+     */
+    static class Pending {
+
+        /**
+         * The user that sent it
+         */
+        final ScriptedUser user;
+
+        /**
+         * What was sent
+         */
+        final CommandKind kind;
+
+        /**
+         * When it was sent
+         */
+        final long sent = System.nanoTime();
+
+        /**
+         * Released when the reply arrives
+         */
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * Time until the reply, in nanoseconds
+         */
+        volatile long latency;
+
+        /**
+         * Constructor
+         */
+        Pending(ScriptedUser user, CommandKind kind) {
+            this.user = user;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * The IRC server the bot and users connect to
+     */
+    private final EmbeddedIrcServer ircServer;
+
+    /**
+     * The bot's settings
+     */
+    private final ConfigData cfg_data;
+
+    /**
+     * Commands waiting for a reply, oldest first
+     */
+    private final ConcurrentLinkedQueue<Pending> outstanding = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Latencies of answered commands
+     */
+    private final LatencyStats stats = new LatencyStats();
+
+    /**
+     * Relative weight of each command
+     */
+    private final Map<CommandKind, Integer> weights = new EnumMap<>(CommandKind.class);
+
+    /**
+     * Number of scripted users
+     */
+    private int users = 10;
+
+    /**
+     * How long commands are sent for, in seconds
+     */
+    private int duration = 60;
+
+    /**
+     * Pause between the commands of a user, in ms
+     */
+    private long thinkTime = 1000;
+
+    /**
+     * How long to wait for a reply, in ms
+     */
+    private long timeout = 15000;
+
+    /**
+     * Users are named this followed by a number
+     */
+    private String accountPrefix = "loadtest";
+
+    /**
+     * Password of every scripted account
+     */
+    private String password = "loadtest";
+
+    /**
+     * True if the users register their accounts before logging in
+     */
+    private boolean registerAccounts;
+
+    /**
+     * Options added to every .host command
+     */
+    private String hostOptions = "iwad=doom2.wad gamemode=deathmatch";
+
+    /**
+     * Fixed ip:port to query, null to query the user's own servers
+     */
+    private String queryTarget;
+
+    /**
+     * False once the test time is over
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param cfg_data ConfigData - the bot's settings, the IRC network is
+     * changed to the embedded server
+     * @param ircPort int - port for the embedded server, 0 for any
+     * @throws IOException if the IRC server could not be started
+     */
+    public BotLoadTest(ConfigData cfg_data, int ircPort) throws IOException {
+        this.cfg_data = cfg_data;
+        this.ircServer = new EmbeddedIrcServer(ircPort);
+        cfg_data.ircServer = "127.0.0.1";
+        cfg_data.ircPort = ircServer.getPort();
+        cfg_data.ircPass = "";
+        weights.put(CommandKind.HOST, 1);
+        weights.put(CommandKind.SERVERS, 4);
+        weights.put(CommandKind.QUERY, 3);
+        weights.put(CommandKind.KILL, 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String ini = null;
+        int ircPort = 0;
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--ini") && i + 1 < args.length) {
+                ini = args[++i];
+            } else if (args[i].equals("--irc-port") && i + 1 < args.length) {
+                ircPort = Integer.parseInt(args[++i]);
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        if (ini == null) {
+            System.out.println("Usage: BotLoadTest --ini <bestbot.ini> [options], see the class documentation for the options");
+            return;
+        }
+        BotLoadTest test = new BotLoadTest(new ConfigData(ini), ircPort);
+        test.parseOptions(rest);
+        test.run();
+        System.exit(0);
+    }
+
+    /**
+     * Applies the command line options
+     *
+     * @param args List - the options, without --ini and --irc-port
+     */
+    private void parseOptions(List<String> args) {
+        for (int i = 0; i < args.size(); i++) {
+            String option = args.get(i);
+            if (option.equals("--register")) {
+                registerAccounts = true;
+                continue;
+            }
+            if (i + 1 >= args.size()) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args.get(++i);
+            switch (option) {
+                case "--users":
+                    users = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--think":
+                    thinkTime = Long.parseLong(value);
+                    break;
+                case "--timeout":
+                    timeout = Long.parseLong(value);
+                    break;
+                case "--mix":
+                    for (CommandKind kind : CommandKind.values()) {
+                        weights.remove(kind);
+                    }
+                    for (String entry : value.split(",")) {
+                        String[] pair = entry.split("=");
+                        weights.put(CommandKind.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+                    }
+                    break;
+                case "--account-prefix":
+                    accountPrefix = value;
+                    break;
+                case "--password":
+                    password = value;
+                    break;
+                case "--host-options":
+                    hostOptions = value;
+                    break;
+                case "--query":
+                    queryTarget = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+
+    /**
+     * Starts the IRC server and the bot, runs the users for the configured
+     * time and prints the report
+     *
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        ircServer.setObservedNick(cfg_data.ircName);
+        ircServer.start();
+        new Bot(cfg_data);
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!ircServer.isInChannel(cfg_data.ircChannel, cfg_data.ircName)) {
+            if (System.currentTimeMillis() > deadline) {
+                System.out.println("The bot did not join " + cfg_data.ircChannel + " within 30 seconds.");
+                return;
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("Bot joined " + cfg_data.ircChannel + ", starting " + users + " users for " + duration + " seconds.");
+
+        List<ScriptedUser> scripted = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            ScriptedUser user = new ScriptedUser(this, accountPrefix + i, i == 0, i);
+            scripted.add(user);
+            user.start();
+        }
+
+        // Sample the bot's output once a second while the users run
+        long startMessages = ircServer.getObservedMessages();
+        long start = System.nanoTime();
+        long last = startMessages;
+        long peak = 0;
+        for (int second = 0; second < duration; second++) {
+            Thread.sleep(1000);
+            long now = ircServer.getObservedMessages();
+            peak = Math.max(peak, now - last);
+            last = now;
+        }
+        running = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long sent = ircServer.getObservedMessages() - startMessages;
+
+        for (ScriptedUser user : scripted) {
+            user.join(timeout + thinkTime + 1000);
+        }
+
+        System.out.println();
+        System.out.print(stats.report());
+        System.out.println(String.format("Bot sent %d messages in %.1f s (%.1f/s average, %d/s peak)",
+                sent, elapsed, sent / elapsed, peak));
+        System.out.println(outstanding.size() + " command(s) still unanswered at the end.");
+        ircServer.close();
+    }
+
+    /**
+     * Registers a command before it is sent
+     *
+     * @param pending Pending - the command
+     */
+    void sent(Pending pending) {
+        outstanding.add(pending);
+    }
+
+    /**
+     * Waits for the reply to a command and records the result
+     *
+     * @param pending Pending - the command
+     * @throws InterruptedException
+     */
+    void await(Pending pending) throws InterruptedException {
+        if (pending.done.await(timeout, TimeUnit.MILLISECONDS)) {
+            stats.record(pending.kind, pending.latency);
+        } else if (outstanding.remove(pending)) {
+            stats.timeout(pending.kind);
+        } else {
+            // The reply arrived just as the wait ended
+            pending.done.await();
+            stats.record(pending.kind, pending.latency);
+        }
+    }
+
+    /**
+     * Matches a message from the bot to the oldest command it answers
+     *
+     * @param to ScriptedUser - the user it was sent to, null for the channel
+     * @param message String - the message
+     */
+    void botMessage(ScriptedUser to, String message) {
+        long now = System.nanoTime();
+        for (Pending pending : outstanding) {
+            if ((to == null || pending.user == to) && pending.kind.matches(message, to != null)) {
+                if (outstanding.remove(pending)) {
+                    pending.latency = now - pending.sent;
+                    pending.done.countDown();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the port of the embedded IRC server
+     */
+    int getIrcPort() {
+        return ircServer.getPort();
+    }
+
+    /**
+     * @return the channel the bot is in
+     */
+    String getChannel() {
+        return cfg_data.ircChannel;
+    }
+
+    /**
+     * @return the bot's nick
+     */
+    String getBotNick() {
+        return cfg_data.ircName;
+    }
+
+    /**
+     * @return the password of the scripted accounts
+     */
+    String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return true if the users should register their accounts
+     */
+    boolean isRegisterAccounts() {
+        return registerAccounts;
+    }
+
+    /**
+     * @return options added to every .host command
+     */
+    String getHostOptions() {
+        return hostOptions;
+    }
+
+    /**
+     * @return the fixed query target, or null
+     */
+    String getQueryTarget() {
+        return queryTarget;
+    }
+
+    /**
+     * @return the pause between commands in ms
+     */
+    long getThinkTime() {
+        return thinkTime;
+    }
+
+    /**
+     * @param kind CommandKind - the command
+     * @return the command's weight in the mix
+     */
+    int getWeight(CommandKind kind) {
+        return weights.containsKey(kind) ? weights.get(kind) : 0;
+    }
+
+    /**
+     * @return true while users should keep sending commands
+     */
+    boolean isRunning() {
+        return running;
+    }
+}
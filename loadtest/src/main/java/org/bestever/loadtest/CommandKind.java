@@ -0,0 +1,83 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.util.regex.Pattern;
+
+/**
+ * The commands scripted users send, with the bot replies that finish them.
+ * Channel replies are not addressed to anyone, so they finish the oldest
+ * outstanding command of a kind they match; private replies only finish a
+ * command of the user they were sent to.
+ */
+public enum CommandKind {
+
+    /**
+     * /msg login
+     */
+    LOGIN(null, "^(Successfully logged on\\.|Invalid username or password!|Incorrect syntax!.*)"),
+    /**
+     * .host
+     */
+    HOST("^(Sorry you are not registered!|You have reached your server limit.*|Global server limit has been reached\\.|"
+            + "The bot is currently disabled.*|You are missing.*|Invalid binary.*|Skill must.*|.* must be a number.*|"
+            + "Problem with parsing.*|Config file.*|File .*|Port \\d+ is already in use\\..*|You did not input a valid port\\..*|"
+            + "Could not check the wads.*|Server was not started.*|Error generating MD5 hash.*)",
+            "^To kill your server.*"),
+    /**
+     * .servers
+     */
+    SERVERS("^(\\d+ - .*|User .* has no servers running\\.)", null),
+    /**
+     * .query
+     */
+    QUERY("^(Query complete: .*|Socket timeout.*|Network exception.*|\\[Error\\].*|Too many people requesting.*|"
+            + "IP of the host.*|Error with the socket.*|IOException from query.*|Unknown exception.*|NetworkBufferException.*|"
+            + "Query manager is stopped!)", null),
+    /**
+     * .kill
+     */
+    KILL("^(Server stopped on port \\d+.*|Error: .*|There are currently no servers running!|Improper port number\\.|Proper syntax.*)", null);
+
+    /**
+     * Channel replies that finish the command, null if there are none
+     */
+    private final Pattern channelReply;
+
+    /**
+     * Private replies that finish the command, null if there are none
+     */
+    private final Pattern privateReply;
+
+    /**
+     * Constructor
+     */
+    CommandKind(String channelReply, String privateReply) {
+        this.channelReply = channelReply == null ? null : Pattern.compile(channelReply);
+        this.privateReply = privateReply == null ? null : Pattern.compile(privateReply);
+    }
+
+    /**
+     * Returns if a message from the bot finishes this kind of command
+     *
+     * @param message String - the message
+     * @param isPrivate boolean - true if it was sent to a user
+     * @return true if it is a reply to this command
+     */
+    public boolean matches(String message, boolean isPrivate) {
+        Pattern pattern = isPrivate ? privateReply : channelReply;
+        return pattern != null && pattern.matcher(message).matches();
+    }
+}
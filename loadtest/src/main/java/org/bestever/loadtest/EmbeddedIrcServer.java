@@ -0,0 +1,547 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal IRC server for running the bot locally. It knows just enough of
+ * the protocol for PircBotX and the scripted users: registration, PING,
+ * JOIN/PART/QUIT, PRIVMSG/NOTICE to channels and nicks, MODE, WHO and TOPIC.
+ * There is no flood protection, so it measures what the bot sends rather
+ * than what a network would let through.
+ */
+public class EmbeddedIrcServer extends Thread {
+
+    /**
+     * Name the server uses as the prefix of its replies
+     */
+    private static final String SERVER_NAME = "loadtest.local";
+
+    /**
+     * The listening socket
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Connected clients by lowercase nick
+     */
+    private final Map<String, Client> nicks = new ConcurrentHashMap<>();
+
+    /**
+     * Members of each channel, by lowercase channel name
+     */
+    private final Map<String, Set<Client>> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Topics of each channel, by lowercase channel name
+     */
+    private final Map<String, String> topics = new ConcurrentHashMap<>();
+
+    /**
+     * Nick whose PRIVMSG and NOTICE lines are counted
+     */
+    private volatile String observedNick;
+
+    /**
+     * Number of PRIVMSG and NOTICE lines sent by the observed nick
+     */
+    private final AtomicLong observedMessages = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param port int - the port to listen on, 0 for any free port
+     * @throws IOException if the port could not be bound
+     */
+    public EmbeddedIrcServer(int port) throws IOException {
+        super("EmbeddedIrcServer");
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        setDaemon(true);
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets the nick whose outgoing messages are counted
+     *
+     * @param nick String - the nick
+     */
+    public void setObservedNick(String nick) {
+        this.observedNick = nick;
+    }
+
+    /**
+     * @return the number of messages the observed nick has sent
+     */
+    public long getObservedMessages() {
+        return observedMessages.get();
+    }
+
+    /**
+     * Returns if a nick is in a channel
+     *
+     * @param channel String - the channel
+     * @param nick String - the nick
+     * @return true if the nick has joined the channel
+     */
+    public boolean isInChannel(String channel, String nick) {
+        Set<Client> members = channels.get(channel.toLowerCase());
+        Client client = nicks.get(nick.toLowerCase());
+        return members != null && client != null && members.contains(client);
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                new Client(socket).start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("IRC server accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    /**
+     * Sends a line to every member of a channel
+     *
+     * @param channel String - lowercase channel name
+     * @param line String - the line
+     * @param except Client - a member to skip, may be null
+     */
+    private void broadcast(String channel, String line, Client except) {
+        Set<Client> members = channels.get(channel);
+        if (members == null) {
+            return;
+        }
+        for (Client member : members) {
+            if (member != except) {
+                member.send(line);
+            }
+        }
+    }
+
+    /**
+     * One connected client
+     */
+    private class Client extends Thread {
+
+        /**
+         * The client's socket
+         */
+        private final Socket socket;
+
+        /**
+         * Writes to the client
+         */
+        private final Writer out;
+
+        /**
+         * The client's nick
+         */
+        private volatile String nick;
+
+        /**
+         * The client's user name
+         */
+        private String login;
+
+        /**
+         * True once NICK and USER have both been received
+         */
+        private boolean registered;
+
+        /**
+         * Constructor
+         */
+        Client(Socket socket) throws IOException {
+            super("EmbeddedIrcServer-client");
+            this.socket = socket;
+            this.out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            setDaemon(true);
+        }
+
+        /**
+         * @return nick!login@host
+         */
+        String prefix() {
+            return nick + "!" + login + "@127.0.0.1";
+        }
+
+        /**
+         * Sends a line to the client
+         *
+         * @param line String - the line, without the line break
+         */
+        void send(String line) {
+            synchronized (out) {
+                try {
+                    out.write(line);
+                    out.write("\r\n");
+                    out.flush();
+                } catch (IOException e) {
+                    // The reader notices the broken connection and cleans up
+                }
+            }
+        }
+
+        /**
+         * Sends a numeric reply
+         */
+        void reply(String numeric, String text) {
+            send(":" + SERVER_NAME + " " + numeric + " " + (nick == null ? "*" : nick) + " " + text);
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.isEmpty() && handle(line)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Treated as a quit
+            } finally {
+                quit("Connection closed");
+            }
+        }
+
+        /**
+         * Handles one line from the client
+         *
+         * @param line String - the line
+         * @return true if the client quit
+         */
+        private boolean handle(String line) {
+            List<String> params = parse(line);
+            String command = params.remove(0).toUpperCase();
+            String first = params.isEmpty() ? "" : params.get(0);
+            switch (command) {
+                case "CAP":
+                    if (first.equalsIgnoreCase("LS")) {
+                        send(":" + SERVER_NAME + " CAP * LS :");
+                    } else if (first.equalsIgnoreCase("REQ") && params.size() > 1) {
+                        send(":" + SERVER_NAME + " CAP * NAK :" + params.get(1));
+                    }
+                    break;
+                case "PASS":
+                    break;
+                case "NICK":
+                    changeNick(first);
+                    break;
+                case "USER":
+                    login = first;
+                    welcome();
+                    break;
+                case "PING":
+                    send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " :" + first);
+                    break;
+                case "PONG":
+                    break;
+                case "JOIN":
+                    for (String channel : first.split(",")) {
+                        join(channel);
+                    }
+                    break;
+                case "PART":
+                    for (String channel : first.split(",")) {
+                        part(channel, params.size() > 1 ? params.get(1) : nick);
+                    }
+                    break;
+                case "PRIVMSG":
+                case "NOTICE":
+                    if (params.size() > 1) {
+                        message(command, first, params.get(1));
+                    }
+                    break;
+                case "MODE":
+                    mode(params);
+                    break;
+                case "WHO":
+                    who(first);
+                    break;
+                case "WHOIS":
+                    reply("318", first + " :End of /WHOIS list.");
+                    break;
+                case "TOPIC":
+                    topic(params);
+                    break;
+                case "QUIT":
+                    quit(first.isEmpty() ? "Quit" : first);
+                    return true;
+                default:
+                    if (registered) {
+                        reply("421", command + " :Unknown command");
+                    }
+                    break;
+            }
+            return false;
+        }
+
+        /**
+         * Changes or sets the client's nick
+         */
+        private void changeNick(String newNick) {
+            if (newNick.isEmpty()) {
+                reply("431", ":No nickname given");
+                return;
+            }
+            if (nicks.putIfAbsent(newNick.toLowerCase(), this) != null) {
+                reply("433", newNick + " :Nickname is already in use");
+                return;
+            }
+            String oldNick = nick;
+            if (oldNick != null) {
+                nicks.remove(oldNick.toLowerCase());
+                if (registered) {
+                    String line = ":" + prefix() + " NICK :" + newNick;
+                    send(line);
+                    for (Map.Entry<String, Set<Client>> entry : channels.entrySet()) {
+                        if (entry.getValue().contains(this)) {
+                            broadcast(entry.getKey(), line, this);
+                        }
+                    }
+                }
+            }
+            nick = newNick;
+            welcome();
+        }
+
+        /**
+         * Sends the registration replies once both NICK and USER are known
+         */
+        private void welcome() {
+            if (registered || nick == null || login == null) {
+                return;
+            }
+            registered = true;
+            reply("001", ":Welcome to the load test network " + prefix());
+            reply("002", ":Your host is " + SERVER_NAME);
+            reply("003", ":This server was created just now");
+            reply("004", SERVER_NAME + " loadtest-1.0 iow ntov");
+            reply("005", "CHANTYPES=# PREFIX=(ov)@+ NETWORK=LoadTest :are supported by this server");
+            reply("375", ":- " + SERVER_NAME + " Message of the day -");
+            reply("372", ":- Nothing to see here");
+            reply("376", ":End of /MOTD command.");
+        }
+
+        /**
+         * Joins a channel
+         */
+        private void join(String channel) {
+            String key = channel.toLowerCase();
+            Set<Client> members = channels.get(key);
+            if (members == null) {
+                channels.putIfAbsent(key, new CopyOnWriteArraySet<Client>());
+                members = channels.get(key);
+            }
+            if (!members.add(this)) {
+                return;
+            }
+            broadcast(key, ":" + prefix() + " JOIN " + channel, null);
+            String topic = topics.get(key);
+            if (topic == null) {
+                reply("331", channel + " :No topic is set");
+            } else {
+                reply("332", channel + " :" + topic);
+            }
+            StringBuilder names = new StringBuilder();
+            for (Client member : members) {
+                if (names.length() > 400) {
+                    reply("353", "= " + channel + " :" + names);
+                    names.setLength(0);
+                }
+                names.append(names.length() == 0 ? "" : " ").append(member.nick);
+            }
+            reply("353", "= " + channel + " :" + names);
+            reply("366", channel + " :End of /NAMES list.");
+        }
+
+        /**
+         * Leaves a channel
+         */
+        private void part(String channel, String reason) {
+            String key = channel.toLowerCase();
+            Set<Client> members = channels.get(key);
+            if (members != null && members.contains(this)) {
+                broadcast(key, ":" + prefix() + " PART " + channel + " :" + reason, null);
+                members.remove(this);
+            }
+        }
+
+        /**
+         * Delivers a PRIVMSG or NOTICE
+         */
+        private void message(String command, String target, String text) {
+            String observed = observedNick;
+            if (observed != null && observed.equalsIgnoreCase(nick)) {
+                observedMessages.incrementAndGet();
+            }
+            String line = ":" + prefix() + " " + command + " " + target + " :" + text;
+            if (target.startsWith("#")) {
+                broadcast(target.toLowerCase(), line, this);
+            } else {
+                Client client = nicks.get(target.toLowerCase());
+                if (client != null) {
+                    client.send(line);
+                } else {
+                    reply("401", target + " :No such nick/channel");
+                }
+            }
+        }
+
+        /**
+         * Handles MODE, channel modes are passed on as they are without any
+         * permission checks
+         */
+        private void mode(List<String> params) {
+            if (params.isEmpty() || !params.get(0).startsWith("#")) {
+                return;
+            }
+            String channel = params.get(0);
+            if (params.size() == 1) {
+                reply("324", channel + " +nt");
+                return;
+            }
+            StringBuilder line = new StringBuilder(":" + prefix() + " MODE");
+            for (String param : params) {
+                line.append(' ').append(param);
+            }
+            broadcast(channel.toLowerCase(), line.toString(), null);
+        }
+
+        /**
+         * Lists the members of a channel
+         */
+        private void who(String channel) {
+            Set<Client> members = channels.get(channel.toLowerCase());
+            if (members != null) {
+                for (Client member : members) {
+                    reply("352", channel + " " + member.login + " 127.0.0.1 " + SERVER_NAME + " " + member.nick + " H :0 " + member.nick);
+                }
+            }
+            reply("315", channel + " :End of /WHO list.");
+        }
+
+        /**
+         * Shows or sets the topic of a channel
+         */
+        private void topic(List<String> params) {
+            if (params.isEmpty()) {
+                return;
+            }
+            String channel = params.get(0);
+            if (params.size() > 1) {
+                topics.put(channel.toLowerCase(), params.get(1));
+                broadcast(channel.toLowerCase(), ":" + prefix() + " TOPIC " + channel + " :" + params.get(1), null);
+            } else if (topics.containsKey(channel.toLowerCase())) {
+                reply("332", channel + " :" + topics.get(channel.toLowerCase()));
+            } else {
+                reply("331", channel + " :No topic is set");
+            }
+        }
+
+        /**
+         * Removes the client from the server
+         */
+        private void quit(String reason) {
+            if (nick != null && nicks.remove(nick.toLowerCase(), this)) {
+                String line = ":" + prefix() + " QUIT :" + reason;
+                for (Set<Client> members : channels.values()) {
+                    if (members.remove(this)) {
+                        for (Client member : members) {
+                            member.send(line);
+                        }
+                    }
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Splits an IRC line into the command and its parameters, a prefix sent
+     * by the client is ignored
+     *
+     * @param line String - the line
+     * @return the command followed by the parameters
+     */
+    static List<String> parse(String line) {
+        List<String> parts = new ArrayList<>();
+        int i = 0;
+        if (line.startsWith(":")) {
+            i = line.indexOf(' ');
+            i = i < 0 ? line.length() : i + 1;
+        }
+        while (i < line.length()) {
+            if (line.charAt(i) == ' ') {
+                i++;
+            } else if (line.charAt(i) == ':' && !parts.isEmpty()) {
+                parts.add(line.substring(i + 1));
+                break;
+            } else {
+                int end = line.indexOf(' ', i);
+                end = end < 0 ? line.length() : end;
+                parts.add(line.substring(i, end));
+                i = end;
+            }
+        }
+        if (parts.isEmpty()) {
+            parts.add("");
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,257 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.bestever.serverquery.Huffman;
+import org.bestever.serverquery.ServerQueryFlags;
+
+/**
+ * Answers launcher queries sent to a fake server, with the Huffman encoded
+ * response layout real servers use
+ */
+public class FakeQueryResponder extends Thread {
+
+    /**
+     * Flags the fake server can answer. The testing server flag is left out
+     * since a stable server answers it with an empty string, which the bot
+     * cannot parse; the URL and e-mail get placeholders for the same reason.
+     */
+    private static final int SUPPORTED_FLAGS = 0x1FFF7FFF & ~ServerQueryFlags.SQF_TESTING_SERVER;
+
+    /**
+     * Launcher challenge that starts every query
+     */
+    private static final int LAUNCHER_CHALLENGE = 199;
+
+    /**
+     * The socket the server is bound to
+     */
+    private final DatagramSocket socket;
+
+    /**
+     * The server to describe
+     */
+    private final FakeZandronumServer server;
+
+    /**
+     * Constructor
+     *
+     * @param socket DatagramSocket - the bound socket
+     * @param server FakeZandronumServer - the server
+     */
+    public FakeQueryResponder(DatagramSocket socket, FakeZandronumServer server) {
+        super("FakeQueryResponder");
+        this.socket = socket;
+        this.server = server;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[2048];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                byte[] request = new byte[packet.getLength()];
+                System.arraycopy(buffer, 0, request, 0, request.length);
+                byte[] decoded = Huffman.decode(request);
+                if (decoded.length < 8 || readInt(decoded, 0) != LAUNCHER_CHALLENGE) {
+                    continue;
+                }
+                byte[] response = Huffman.encode(buildResponse(readInt(decoded, 4)));
+                socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Launcher query failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Builds a decoded response to a query
+     *
+     * @param requested int - the flags the launcher asked for
+     * @return the response
+     */
+    private byte[] buildResponse(int requested) {
+        ServerSettings settings = server.getSettings();
+        List<String> players = server.getPlayers();
+        int flags = requested & SUPPORTED_FLAGS;
+        Response r = new Response();
+        r.putInt(ServerQueryFlags.SQRF_BEGINNING);
+        r.putInt((int) (System.currentTimeMillis() / 1000));
+        r.putString("1.1.1-fake");
+        r.putInt(flags);
+        if (has(flags, ServerQueryFlags.SQF_NAME)) {
+            r.putString(settings.hostname);
+        }
+        if (has(flags, ServerQueryFlags.SQF_URL)) {
+            r.putString(settings.cvars.containsKey("sv_website") ? settings.cvars.get("sv_website") : "http://localhost/");
+        }
+        if (has(flags, ServerQueryFlags.SQF_EMAIL)) {
+            r.putString("admin@localhost");
+        }
+        if (has(flags, ServerQueryFlags.SQF_MAPNAME)) {
+            r.putString(settings.getFirstMap());
+        }
+        if (has(flags, ServerQueryFlags.SQF_MAXCLIENTS)) {
+            r.putByte(settings.maxplayers);
+        }
+        if (has(flags, ServerQueryFlags.SQF_MAXPLAYERS)) {
+            r.putByte(settings.maxplayers);
+        }
+        if (has(flags, ServerQueryFlags.SQF_PWADS)) {
+            r.putByte(settings.files.size());
+            for (String file : settings.files) {
+                r.putString(new File(file).getName());
+            }
+        }
+        if (has(flags, ServerQueryFlags.SQF_GAMETYPE)) {
+            r.putByte(settings.getGamemode());
+            r.putByte(settings.getInt("instagib"));
+            r.putByte(settings.getInt("buckshot"));
+        }
+        if (has(flags, ServerQueryFlags.SQF_GAMENAME)) {
+            r.putString("DOOM II");
+        }
+        if (has(flags, ServerQueryFlags.SQF_IWAD)) {
+            r.putString(settings.getIwadName());
+        }
+        if (has(flags, ServerQueryFlags.SQF_FORCEPASSWORD)) {
+            r.putByte(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_FORCEJOINPASSWORD)) {
+            r.putByte(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_GAMESKILL)) {
+            r.putByte(settings.getInt("skill"));
+        }
+        if (has(flags, ServerQueryFlags.SQF_BOTSKILL)) {
+            r.putByte(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_DMFLAGS)) {
+            r.putInt(settings.getInt("dmflags"));
+            r.putInt(settings.getInt("dmflags2"));
+            r.putInt(settings.getInt("compatflags"));
+        }
+        if (has(flags, ServerQueryFlags.SQF_LIMITS)) {
+            r.putShort(settings.getInt("fraglimit"));
+            r.putShort(settings.getInt("timelimit"));
+            r.putShort(settings.getInt("timelimit"));
+            r.putShort(settings.getInt("duellimit"));
+            r.putShort(0);
+            r.putShort(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMDAMAGE)) {
+            r.putInt(Float.floatToIntBits(0.0f));
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMSCORES)) {
+            r.putShort(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_NUMPLAYERS)) {
+            r.putByte(players.size());
+        }
+        if (has(flags, ServerQueryFlags.SQF_PLAYERDATA)) {
+            for (int i = 0; i < players.size(); i++) {
+                r.putString(players.get(i));
+                r.putShort(i);
+                r.putShort(50);
+                r.putByte(0);
+                r.putByte(0);
+                r.putByte(i % 2);
+                r.putByte(1);
+            }
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_NUMBER)) {
+            r.putByte(2);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_NAME)) {
+            r.putString("Blue");
+            r.putString("Red");
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_COLOR)) {
+            r.putInt(0x0000FF);
+            r.putInt(0xFF0000);
+        }
+        if (has(flags, ServerQueryFlags.SQF_TEAMINFO_SCORE)) {
+            r.putShort(0);
+            r.putShort(0);
+        }
+        if (has(flags, ServerQueryFlags.SQF_DATA_MD5SUM)) {
+            r.putString("00000000000000000000000000000000");
+        }
+        if (has(flags, ServerQueryFlags.SQF_ALL_DMFLAGS)) {
+            r.putByte(5);
+            r.putInt(settings.getInt("dmflags"));
+            r.putInt(settings.getInt("dmflags2"));
+            r.putInt(settings.getInt("dmflags3"));
+            r.putInt(settings.getInt("compatflags"));
+            r.putInt(settings.getInt("compatflags2"));
+        }
+        if (has(flags, ServerQueryFlags.SQF_SECURITY_SETTINGS)) {
+            r.putByte(0);
+        }
+        return r.toByteArray();
+    }
+
+    /**
+     * @return true if the flag is set
+     */
+    private static boolean has(int flags, int flag) {
+        return (flags & flag) == flag;
+    }
+
+    /**
+     * Reads a little endian int
+     */
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Writes little endian values the way the server sends them
+     */
+    private static final class Response extends ByteArrayOutputStream {
+
+        void putByte(int b) {
+            write(b);
+        }
+
+        void putShort(int s) {
+            write(s);
+            write(s >> 8);
+        }
+
+        void putInt(int i) {
+            write(i);
+            write(i >> 8);
+            write(i >> 16);
+            write(i >> 24);
+        }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            write(bytes, 0, bytes.length);
+            write(0);
+        }
+    }
+}
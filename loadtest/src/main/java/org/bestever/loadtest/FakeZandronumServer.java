@@ -0,0 +1,389 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Stands in for zandronum-server so the bot can be load tested without the
+ * game. It takes the same command line the bot builds, binds the requested
+ * UDP port, prints "UDP Initialized." and then prints made up game events:
+ * players connecting, chatting, voting, winning and leaving. Launcher queries
+ * are answered like a real server would. It reads console commands from
+ * stdin, exits on "quit" or when stdin is closed, and can be made to crash.
+ * <br>
+ * Settings are read from the environment so they do not clash with the
+ * server's own arguments:
+ * <ul>
+ * <li>FAKE_ZAN_STARTUP_MS - time spent "loading" before starting (500)</li>
+ * <li>FAKE_ZAN_FILE_MS - extra loading time for every -file (50)</li>
+ * <li>FAKE_ZAN_EVENTS_PER_SECOND - how many events to print (1.0)</li>
+ * <li>FAKE_ZAN_WEIGHTS - chat,connect,disconnect,vote,mapend,rename (60,15,10,5,5,5)</li>
+ * <li>FAKE_ZAN_CRASH_MEAN_SECONDS - average uptime before crashing, 0 never (0)</li>
+ * <li>FAKE_ZAN_SEED - seed for the events, random if not set</li>
+ * </ul>
+ */
+public class FakeZandronumServer {
+
+    /**
+     * Port Zandronum uses when none is given
+     */
+    private static final int DEFAULT_PORT = 10666;
+
+    /**
+     * How many ports to try when the requested one is in use
+     */
+    private static final int PORT_ATTEMPTS = 64;
+
+    /**
+     * Names given to the fake players
+     */
+    private static final String[] NAMES = {"Tox", "DarkSlayer", "xX_Frag_Xx", "Korax", "Marine", "Ivy", "Blz",
+        "Pistolero", "LostSoul", "Revenant", "Ketchup", "Mancubus", "Cyb3r", "Hellknight", "Doomguy", "Baron"};
+
+    /**
+     * Things the fake players say
+     */
+    private static final String[] CHAT = {"gg", "lol", "nice shot", "red base is open", "need backup on blue",
+        "who took the flag", "brb", "map vote?", "lag spike", "wp", "defend!", "incoming mid", "one more round"};
+
+    /**
+     * The settings from the command line
+     */
+    private final ServerSettings settings;
+
+    /**
+     * Players that are currently in the game
+     */
+    private final List<String> players = new ArrayList<>();
+
+    /**
+     * Random source for the events
+     */
+    private final Random random;
+
+    /**
+     * Relative weights of chat, connect, disconnect, vote, mapend and rename
+     * events
+     */
+    private final int[] weights;
+
+    /**
+     * Events printed per second
+     */
+    private final double eventsPerSecond;
+
+    /**
+     * Constructor
+     *
+     * @param settings ServerSettings - the parsed command line
+     */
+    public FakeZandronumServer(ServerSettings settings) {
+        this.settings = settings;
+        String seed = System.getenv("FAKE_ZAN_SEED");
+        this.random = seed == null ? new Random() : new Random(Long.parseLong(seed));
+        this.weights = parseWeights(getenv("FAKE_ZAN_WEIGHTS", "60,15,10,5,5,5"));
+        this.eventsPerSecond = Double.parseDouble(getenv("FAKE_ZAN_EVENTS_PER_SECOND", "1.0"));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        new FakeZandronumServer(ServerSettings.parse(args)).run();
+    }
+
+    /**
+     * Starts the server and blocks until it quits
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, InterruptedException {
+        System.out.println("Zandronum 1.1.1 (fake server for load testing)");
+        for (String file : settings.files) {
+            if (!new File(file).exists()) {
+                // Real servers give up on a missing wad before networking starts
+                System.out.println("Could not find \"" + file + "\"");
+                System.exit(1);
+            }
+            System.out.println("adding " + file);
+        }
+        Thread.sleep(Long.parseLong(getenv("FAKE_ZAN_STARTUP_MS", "500"))
+                + settings.files.size() * Long.parseLong(getenv("FAKE_ZAN_FILE_MS", "50")));
+
+        DatagramSocket socket = bind();
+        new FakeQueryResponder(socket, this).start();
+        System.out.println("UDP Initialized.");
+        System.out.println("*** " + settings.getFirstMap().toUpperCase() + ": Fake Level ***");
+
+        startEvents();
+        startCrashTimer();
+
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = console.readLine()) != null) {
+            if (!handleCommand(line.trim())) {
+                break;
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Binds the requested port, moving on to the next one if it is in use
+     * like a real server does
+     *
+     * @return the bound socket
+     * @throws SocketException if no port could be bound
+     */
+    private DatagramSocket bind() throws SocketException {
+        int port = settings.port != 0 ? settings.port : DEFAULT_PORT;
+        if (settings.port != 0) {
+            System.out.println("Server using alternate port " + port + ".");
+        }
+        for (int i = 0; i < PORT_ATTEMPTS; i++) {
+            try {
+                DatagramSocket socket = new DatagramSocket(port);
+                settings.port = port;
+                return socket;
+            } catch (SocketException e) {
+                System.out.println("NETWORK_Construct: Couldn't bind to " + port + ". Binding to " + (port + 1) + " instead...");
+                port++;
+            }
+        }
+        throw new SocketException("Could not bind any port");
+    }
+
+    /**
+     * Runs a console command
+     *
+     * @param command String - the command
+     * @return false if the server should quit
+     */
+    private boolean handleCommand(String command) {
+        if (command.isEmpty()) {
+            return true;
+        }
+        String[] keywords = command.split(" ", 2);
+        String argument = keywords.length > 1 ? keywords[1] : "";
+        switch (keywords[0].toLowerCase()) {
+            case "quit":
+            case "exit":
+                return false;
+            case "say":
+                System.out.println("<server>: " + unquote(argument));
+                break;
+            case "map":
+            case "changemap":
+                System.out.println("*** " + argument.toUpperCase() + ": Fake Level ***");
+                break;
+            case "addban":
+                System.out.println("addban: " + argument.split(" ")[0] + " banned.");
+                break;
+            case "kick":
+                System.out.println(argument + " was kicked from the game.");
+                break;
+            case "sv_rconpassword":
+                System.out.println("-> sv_rconpassword " + argument + " (was changed)");
+                break;
+            case "sv_hostname":
+                settings.hostname = unquote(argument);
+                break;
+            default:
+                // Treat anything else as a cvar being set
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Prints game events at the configured rate on a daemon thread
+     */
+    private void startEvents() {
+        if (eventsPerSecond <= 0) {
+            return;
+        }
+        final long interval = Math.max(1, (long) (1000 / eventsPerSecond));
+        Thread events = new Thread("FakeEvents") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        printEvent();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        events.setDaemon(true);
+        events.start();
+    }
+
+    /**
+     * Crashes the server after a random uptime if crashes are enabled
+     */
+    private void startCrashTimer() {
+        double mean = Double.parseDouble(getenv("FAKE_ZAN_CRASH_MEAN_SECONDS", "0"));
+        if (mean <= 0) {
+            return;
+        }
+        final long uptime = (long) (-Math.log(1 - random.nextDouble()) * mean * 1000);
+        Thread crash = new Thread("FakeCrash") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(uptime);
+                    System.out.println("Segmentation fault (core dumped)");
+                    Runtime.getRuntime().halt(139);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        crash.setDaemon(true);
+        crash.start();
+    }
+
+    /**
+     * Prints one random game event and updates the player list
+     */
+    private synchronized void printEvent() {
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        int pick = random.nextInt(Math.max(1, total));
+        int event = 0;
+        while (event < weights.length - 1 && pick >= weights[event]) {
+            pick -= weights[event];
+            event++;
+        }
+        if (players.isEmpty() || (event == 1 && players.size() < settings.maxplayers)) {
+            connect();
+            return;
+        }
+        String player = players.get(random.nextInt(players.size()));
+        switch (event) {
+            case 0:
+                System.out.println(player + ": " + CHAT[random.nextInt(CHAT.length)]);
+                break;
+            case 1:
+            case 2:
+                players.remove(player);
+                System.out.println(random.nextBoolean() ? "client " + player + " disconnected." : player + " timed out.");
+                break;
+            case 3:
+                System.out.println(player + " (" + randomAddress() + ") has called a vote (\"map map"
+                        + String.format("%02d", 1 + random.nextInt(32)) + "\").");
+                if (random.nextBoolean()) {
+                    System.out.println("Vote passed!");
+                }
+                break;
+            case 4:
+                System.out.println(random.nextBoolean() ? player + " wins!" : player + " exited the level.");
+                break;
+            default:
+                String renamed = player + random.nextInt(100);
+                players.set(players.indexOf(player), renamed);
+                System.out.println(player + " is now known as " + renamed);
+                break;
+        }
+    }
+
+    /**
+     * Adds a new player to the game
+     */
+    private void connect() {
+        String player = NAMES[random.nextInt(NAMES.length)];
+        if (players.contains(player)) {
+            player += random.nextInt(100);
+        }
+        players.add(player);
+        System.out.println("CONNECTION " + player + " " + randomAddress() + ":" + (10000 + random.nextInt(50000)));
+        System.out.println(player + " has connected.");
+        System.out.println(player + " joined the game.");
+    }
+
+    /**
+     * @return a random IPv4 address
+     */
+    private String randomAddress() {
+        return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + (1 + random.nextInt(254));
+    }
+
+    /**
+     * Returns the players currently in the game
+     *
+     * @return a copy of the player list
+     */
+    public synchronized List<String> getPlayers() {
+        return new ArrayList<>(players);
+    }
+
+    /**
+     * @return the settings from the command line
+     */
+    public ServerSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Removes surrounding quotes from a console argument
+     *
+     * @param s String - the argument
+     * @return the argument without quotes
+     */
+    private static String unquote(String s) {
+        if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")) {
+            return s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+    /**
+     * Reads a setting from the environment
+     *
+     * @param name String - the variable
+     * @param def String - the default value
+     * @return the value
+     */
+    private static String getenv(String name, String def) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? def : value;
+    }
+
+    /**
+     * Parses the event weights
+     *
+     * @param s String - comma separated weights
+     * @return the weights
+     */
+    private static int[] parseWeights(String s) {
+        String[] parts = s.split(",");
+        int[] result = new int[6];
+        for (int i = 0; i < result.length && i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Collects command latencies and timeouts for each kind of command
+ */
+public class LatencyStats {
+
+    /**
+     * Latencies in nanoseconds for each kind
+     */
+    private final Map<CommandKind, long[]> samples = new EnumMap<>(CommandKind.class);
+
+    /**
+     * Number of samples used in each array
+     */
+    private final Map<CommandKind, Integer> counts = new EnumMap<>(CommandKind.class);
+
+    /**
+     * Number of commands that were never answered
+     */
+    private final Map<CommandKind, Integer> timeouts = new EnumMap<>(CommandKind.class);
+
+    /**
+     * Records an answered command
+     *
+     * @param kind CommandKind - the command
+     * @param nanos long - time until the reply arrived
+     */
+    public synchronized void record(CommandKind kind, long nanos) {
+        long[] values = samples.get(kind);
+        int count = counts.containsKey(kind) ? counts.get(kind) : 0;
+        if (values == null) {
+            values = new long[256];
+        } else if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count] = nanos;
+        samples.put(kind, values);
+        counts.put(kind, count + 1);
+    }
+
+    /**
+     * Records a command that got no reply
+     *
+     * @param kind CommandKind - the command
+     */
+    public synchronized void timeout(CommandKind kind) {
+        timeouts.put(kind, (timeouts.containsKey(kind) ? timeouts.get(kind) : 0) + 1);
+    }
+
+    /**
+     * @return a table with the count, timeouts and latency percentiles in
+     * milliseconds of each command
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder(String.format("%-8s %7s %8s %9s %9s %9s %9s%n",
+                "command", "count", "timeouts", "p50", "p90", "p99", "max"));
+        for (CommandKind kind : CommandKind.values()) {
+            int count = counts.containsKey(kind) ? counts.get(kind) : 0;
+            int timedOut = timeouts.containsKey(kind) ? timeouts.get(kind) : 0;
+            if (count == 0 && timedOut == 0) {
+                continue;
+            }
+            long[] sorted = count == 0 ? new long[0] : Arrays.copyOf(samples.get(kind), count);
+            Arrays.sort(sorted);
+            sb.append(String.format("%-8s %7d %8d %9s %9s %9s %9s%n", kind.name().toLowerCase(), count, timedOut,
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 1.0)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a percentile of sorted samples in milliseconds
+     */
+    private static String percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return String.format("%.1f", sorted[Math.max(0, index)] / 1000000.0);
+    }
+}
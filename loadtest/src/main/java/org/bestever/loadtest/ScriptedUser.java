@@ -0,0 +1,290 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An IRC user that logs in to the bot and then keeps sending commands from
+ * the configured mix, one at a time, until the test ends
+ */
+public class ScriptedUser extends Thread {
+
+    /**
+     * Private message the bot sends when a server of the user has started
+     */
+    private static final Pattern STARTED = Pattern.compile("\\.kill (\\d+) to kill just this one");
+
+    /**
+     * Channel message the bot sends when a server has stopped
+     */
+    private static final Pattern STOPPED = Pattern.compile("^Server stopped on port (\\d+)!");
+
+    /**
+     * The test this user is part of
+     */
+    private final BotLoadTest test;
+
+    /**
+     * The user's nick, also used as the account name
+     */
+    private final String nick;
+
+    /**
+     * True if this user passes channel messages on to the test, only one
+     * user does, so every message is seen once
+     */
+    private final boolean observer;
+
+    /**
+     * Picks the commands
+     */
+    private final Random random;
+
+    /**
+     * Ports of the servers this user is running
+     */
+    private final List<Integer> ports = new CopyOnWriteArrayList<>();
+
+    /**
+     * Released once the IRC server has accepted the user
+     */
+    private final CountDownLatch registered = new CountDownLatch(1);
+
+    /**
+     * Writes to the IRC server
+     */
+    private Writer out;
+
+    /**
+     * Number of .host commands sent, used to keep the host names unique
+     */
+    private int hosted;
+
+    /**
+     * Constructor
+     *
+     * @param test BotLoadTest - the test
+     * @param nick String - nick and account name
+     * @param observer boolean - true if channel messages should be passed on
+     * @param seed long - seed for picking commands
+     */
+    public ScriptedUser(BotLoadTest test, String nick, boolean observer, long seed) {
+        super("ScriptedUser-" + nick);
+        this.test = test;
+        this.nick = nick;
+        this.observer = observer;
+        this.random = new Random(seed);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), test.getIrcPort())) {
+            socket.setTcpNoDelay(true);
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            startReader(socket);
+            send("NICK " + nick);
+            send("USER " + nick + " 0 * :" + nick);
+            if (!registered.await(10, TimeUnit.SECONDS)) {
+                System.out.println(nick + " could not register with the IRC server.");
+                return;
+            }
+            send("JOIN " + test.getChannel());
+            if (test.isRegisterAccounts()) {
+                send("PRIVMSG " + test.getBotNick() + " :register " + nick + " " + test.getPassword());
+                Thread.sleep(2000);
+            }
+            execute(CommandKind.LOGIN, "PRIVMSG " + test.getBotNick() + " :login " + nick + " " + test.getPassword());
+            while (test.isRunning()) {
+                CommandKind kind = pick();
+                execute(kind, "PRIVMSG " + test.getChannel() + " :" + format(kind));
+                Thread.sleep(test.getThinkTime());
+            }
+            if (!ports.isEmpty()) {
+                send("PRIVMSG " + test.getChannel() + " :.killmine");
+            }
+            send("QUIT :done");
+        } catch (IOException e) {
+            System.out.println(nick + " lost the connection: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a command and waits for the reply or the timeout
+     *
+     * @param kind CommandKind - the command
+     * @param line String - the IRC line that sends it
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void execute(CommandKind kind, String line) throws IOException, InterruptedException {
+        BotLoadTest.Pending pending = new BotLoadTest.Pending(this, kind);
+        test.sent(pending);
+        send(line);
+        test.await(pending);
+    }
+
+    /**
+     * Picks the next command from the weighted mix, leaving out commands
+     * that need a server when the user has none
+     *
+     * @return the command
+     */
+    private CommandKind pick() {
+        List<CommandKind> eligible = new ArrayList<>();
+        int total = 0;
+        for (CommandKind kind : CommandKind.values()) {
+            boolean needsServer = kind == CommandKind.KILL || kind == CommandKind.SERVERS
+                    || (kind == CommandKind.QUERY && test.getQueryTarget() == null);
+            if (test.getWeight(kind) > 0 && (!needsServer || !ports.isEmpty())) {
+                eligible.add(kind);
+                total += test.getWeight(kind);
+            }
+        }
+        if (total == 0) {
+            return CommandKind.HOST;
+        }
+        int roll = random.nextInt(total);
+        for (CommandKind kind : eligible) {
+            roll -= test.getWeight(kind);
+            if (roll < 0) {
+                return kind;
+            }
+        }
+        return CommandKind.HOST;
+    }
+
+    /**
+     * Builds the channel message for a command
+     *
+     * @param kind CommandKind - the command
+     * @return the message
+     */
+    private String format(CommandKind kind) {
+        switch (kind) {
+            case HOST:
+                return ".host hostname=\"Load test " + nick + " " + (++hosted) + "\" " + test.getHostOptions();
+            case SERVERS:
+                return ".servers";
+            case QUERY:
+                if (test.getQueryTarget() != null) {
+                    return ".query " + test.getQueryTarget();
+                }
+                return ".query 127.0.0.1:" + ports.get(random.nextInt(ports.size()));
+            case KILL:
+                return ".kill " + ports.remove(random.nextInt(ports.size()));
+            default:
+                throw new IllegalArgumentException("Not a channel command: " + kind);
+        }
+    }
+
+    /**
+     * Sends a line to the IRC server
+     *
+     * @param line String - the line
+     * @throws IOException
+     */
+    private void send(String line) throws IOException {
+        synchronized (out) {
+            out.write(line);
+            out.write("\r\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * Starts the thread that reads from the IRC server
+     *
+     * @param socket Socket - the connection
+     * @throws IOException
+     */
+    private void startReader(Socket socket) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(getName() + "-reader") {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        handle(line);
+                    }
+                } catch (IOException e) {
+                    // The connection is closed at the end of the test
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Handles one line from the IRC server
+     *
+     * @param line String - the line
+     */
+    private void handle(String line) {
+        String sender = "";
+        if (line.startsWith(":")) {
+            int end = line.indexOf('!');
+            int space = line.indexOf(' ');
+            sender = line.substring(1, end > 0 && end < space ? end : Math.max(space, 1));
+        }
+        List<String> params = EmbeddedIrcServer.parse(line);
+        String command = params.get(0);
+        if (command.equals("001")) {
+            registered.countDown();
+            return;
+        }
+        if (!command.equals("PRIVMSG") && !command.equals("NOTICE") || params.size() < 3
+                || !sender.equalsIgnoreCase(test.getBotNick())) {
+            return;
+        }
+        String target = params.get(1);
+        String message = params.get(2);
+        if (target.startsWith("#")) {
+            Matcher m = STOPPED.matcher(message);
+            if (m.find()) {
+                ports.remove(Integer.valueOf(m.group(1)));
+            }
+            if (observer) {
+                test.botMessage(null, message);
+            }
+        } else {
+            Matcher m = STARTED.matcher(message);
+            if (m.find()) {
+                ports.add(Integer.valueOf(m.group(1)));
+            }
+            test.botMessage(this, message);
+        }
+    }
+}
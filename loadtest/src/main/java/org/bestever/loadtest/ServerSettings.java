@@ -0,0 +1,176 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.loadtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bestever.serverquery.ServerQueryFlags;
+
+/**
+ * The parts of a zandronum-server command line the fake server cares about
+ */
+public class ServerSettings {
+
+    /**
+     * Game mode cvars and the launcher protocol value for each
+     */
+    private static final Map<String, Integer> GAMEMODES = new HashMap<>();
+
+    static {
+        GAMEMODES.put("cooperative", ServerQueryFlags.GAMEMODE_COOPERATIVE);
+        GAMEMODES.put("survival", ServerQueryFlags.GAMEMODE_SURVIVAL);
+        GAMEMODES.put("invasion", ServerQueryFlags.GAMEMODE_INVASION);
+        GAMEMODES.put("deathmatch", ServerQueryFlags.GAMEMODE_DEATHMATCH);
+        GAMEMODES.put("teamplay", ServerQueryFlags.GAMEMODE_TEAMPLAY);
+        GAMEMODES.put("duel", ServerQueryFlags.GAMEMODE_DUEL);
+        GAMEMODES.put("terminator", ServerQueryFlags.GAMEMODE_TERMINATOR);
+        GAMEMODES.put("lastmanstanding", ServerQueryFlags.GAMEMODE_LASTMANSTANDING);
+        GAMEMODES.put("teamlms", ServerQueryFlags.GAMEMODE_TEAMLMS);
+        GAMEMODES.put("possession", ServerQueryFlags.GAMEMODE_POSSESSION);
+        GAMEMODES.put("teampossession", ServerQueryFlags.GAMEMODE_TEAMPOSSESSION);
+        GAMEMODES.put("teamgame", ServerQueryFlags.GAMEMODE_TEAMGAME);
+        GAMEMODES.put("ctf", ServerQueryFlags.GAMEMODE_CTF);
+        GAMEMODES.put("oneflagctf", ServerQueryFlags.GAMEMODE_ONEFLAGCTF);
+        GAMEMODES.put("skulltag", ServerQueryFlags.GAMEMODE_SKULLTAG);
+        GAMEMODES.put("domination", ServerQueryFlags.GAMEMODE_DOMINATION);
+    }
+
+    /**
+     * The requested port, 0 if none was given
+     */
+    public int port;
+
+    /**
+     * The server name
+     */
+    public String hostname = "Unnamed";
+
+    /**
+     * Path of the iwad
+     */
+    public String iwad = "doom2.wad";
+
+    /**
+     * Paths of the loaded wads
+     */
+    public final List<String> files = new ArrayList<>();
+
+    /**
+     * Maps added with +addmap
+     */
+    public final List<String> maps = new ArrayList<>();
+
+    /**
+     * Every other +cvar value pair
+     */
+    public final Map<String, String> cvars = new HashMap<>();
+
+    /**
+     * Maximum players
+     */
+    public int maxplayers = 8;
+
+    /**
+     * Parses a command line
+     *
+     * @param args String[] - the arguments
+     * @return the settings
+     */
+    public static ServerSettings parse(String[] args) {
+        ServerSettings settings = new ServerSettings();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String value = i + 1 < args.length ? args[i + 1].trim() : "";
+            switch (arg) {
+                case "-port":
+                    settings.port = Integer.parseInt(value);
+                    i++;
+                    break;
+                case "-iwad":
+                    settings.iwad = value;
+                    i++;
+                    break;
+                case "-file":
+                    settings.files.add(value);
+                    i++;
+                    break;
+                case "+sv_hostname":
+                    settings.hostname = value;
+                    i++;
+                    break;
+                case "+sv_maxplayers":
+                    settings.maxplayers = Integer.parseInt(value);
+                    i++;
+                    break;
+                case "+addmap":
+                    settings.maps.add(value);
+                    i++;
+                    break;
+                default:
+                    if (arg.startsWith("+")) {
+                        settings.cvars.put(arg.substring(1).toLowerCase(), value);
+                        i++;
+                    }
+                    break;
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * @return the launcher protocol value of the game mode
+     */
+    public int getGamemode() {
+        int gamemode = ServerQueryFlags.GAMEMODE_COOPERATIVE;
+        for (Map.Entry<String, Integer> entry : GAMEMODES.entrySet()) {
+            if ("1".equals(cvars.get(entry.getKey()))) {
+                gamemode = entry.getValue();
+            }
+        }
+        return gamemode;
+    }
+
+    /**
+     * Returns a numeric cvar
+     *
+     * @param name String - the cvar
+     * @return its value, or 0 if it was not set
+     */
+    public int getInt(String name) {
+        String value = cvars.get(name);
+        try {
+            return value == null ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the file name of the iwad
+     */
+    public String getIwadName() {
+        return new File(iwad).getName();
+    }
+
+    /**
+     * @return the map the server starts on
+     */
+    public String getFirstMap() {
+        return maps.isEmpty() ? "map01" : maps.get(0);
+    }
+}
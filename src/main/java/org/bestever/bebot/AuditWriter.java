@@ -0,0 +1,412 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Writes the server log and wad pages to the database in the background.
+ * Records are queued and inserted in batches when the flush interval passes
+ * or enough of them are waiting, so hosting a server never waits on MySQL.
+ * If the database cannot be reached the records are appended to a spill file,
+ * which is replayed before anything else once the database is back.
+ */
+public class AuditWriter {
+
+    /**
+     * A row to insert
+     */
+    public static class Record {
+
+        /**
+         * A row of the serverlog table: unique_id, servername, username
+         */
+        public static final String SERVER_LOG = "serverlog";
+
+        /**
+         * A row of the wad_pages table: key, wad_string
+         */
+        public static final String WAD_PAGE = "wad_pages";
+
+        /**
+         * The table the row goes into
+         */
+        private final String table;
+
+        /**
+         * When the record was made in ms
+         */
+        private final long time;
+
+        /**
+         * The column values
+         */
+        private final String[] values;
+
+        /**
+         * Constructor
+         */
+        Record(String table, long time, String... values) {
+            this.table = table;
+            this.time = time;
+            this.values = values;
+        }
+
+        /**
+         * @return the table the row goes into
+         */
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * @return when the record was made in ms
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @param i int - the column
+         * @return the value of the column
+         */
+        public String getValue(int i) {
+            return values[i];
+        }
+
+        /**
+         * @return the record as a line of the spill file
+         */
+        String toLine() {
+            StringBuilder line = new StringBuilder(table).append('\t').append(time);
+            for (String value : values) {
+                line.append('\t');
+                if (value == null) {
+                    line.append("\\0");
+                    continue;
+                }
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    switch (c) {
+                        case '\\':
+                            line.append("\\\\");
+                            break;
+                        case '\t':
+                            line.append("\\t");
+                            break;
+                        case '\n':
+                            line.append("\\n");
+                            break;
+                        case '\r':
+                            line.append("\\r");
+                            break;
+                        default:
+                            line.append(c);
+                    }
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+         * Reads a record from a line of the spill file
+         *
+         * @param line String - the line
+         * @return the record, or null if the line is damaged
+         */
+        static Record fromLine(String line) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length < 2) {
+                return null;
+            }
+            String[] values = new String[parts.length - 2];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = unescape(parts[i + 2]);
+            }
+            try {
+                return new Record(parts[0], Long.parseLong(parts[1]), values);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Undoes the escaping of toLine()
+         */
+        private static String unescape(String value) {
+            if (value.equals("\\0")) {
+                return null;
+            }
+            if (value.indexOf('\\') < 0) {
+                return value;
+            }
+            StringBuilder sb = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    char next = value.charAt(++i);
+                    sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Records waiting to be written
+     */
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of records in the queue
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Set while a flush triggered by the batch size is scheduled
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Runs the flushes
+     */
+    private final Timer timer = new Timer("audit", true);
+
+    /**
+     * Where records go while the database is unavailable
+     */
+    private final File spillFile;
+
+    /**
+     * Records in a batch, a full queue is flushed right away
+     */
+    private final int batchSize;
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public AuditWriter(Bot bot) {
+        ConfigData cfg = bot.cfg_data;
+        this.batchSize = Math.max(1, cfg.audit_batch_size);
+        this.spillFile = new File(cfg.audit_spill_file.isEmpty() ? cfg.bot_logfiledir + "audit.spill" : cfg.audit_spill_file);
+        Metrics.gauge("audit.queue", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return queued.get();
+            }
+        });
+    }
+
+    /**
+     * Starts flushing in the background
+     *
+     * @param interval int - seconds between flushes
+     */
+    public void start(int interval) {
+        long period = Math.max(1, interval) * 1000L;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Logs a hosted server
+     *
+     * @param servername String - the name of the server
+     * @param unique_id String - the server's unique ID
+     * @param username String - username of server host
+     */
+    public void logServer(String servername, String unique_id, String username) {
+        add(new Record(Record.SERVER_LOG, System.currentTimeMillis(), unique_id, servername, username));
+    }
+
+    /**
+     * Creates a wad page; the key is made here, so it can be used before the
+     * page has been written
+     *
+     * @param wads String - comma separated wads
+     * @return the key of the page, or null if it could not be made
+     */
+    public String createWadPage(String wads) {
+        String key;
+        try {
+            key = Functions.generateHash();
+        } catch (NoSuchAlgorithmException e) {
+            logMessage(LOGLEVEL_CRITICAL, "Error generating MD5 hash!");
+            return null;
+        }
+        add(new Record(Record.WAD_PAGE, System.currentTimeMillis(), key, wads));
+        return key;
+    }
+
+    /**
+     * Queues a record, flushing soon if a batch is full
+     *
+     * @param record Record - the record
+     */
+    private void add(Record record) {
+        queue.add(record);
+        if (queued.incrementAndGet() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+            try {
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        flushScheduled.set(false);
+                        flush();
+                    }
+                }, 0);
+            } catch (IllegalStateException e) {
+                // Closed, the final flush takes care of it
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the spill file and then the queued records; whatever cannot be
+     * written is appended to the spill file
+     */
+    public synchronized void flush() {
+        List<Record> records = new ArrayList<>();
+        Record record;
+        while ((record = queue.poll()) != null) {
+            queued.decrementAndGet();
+            records.add(record);
+        }
+        boolean available = replaySpill();
+        while (available && !records.isEmpty()) {
+            List<Record> batch = records.subList(0, Math.min(batchSize, records.size()));
+            if (!MySQL.insertAuditRecords(batch)) {
+                available = false;
+                break;
+            }
+            batch.clear();
+        }
+        if (!records.isEmpty()) {
+            spill(records);
+        }
+    }
+
+    /**
+     * Writes the records in the spill file to the database
+     *
+     * @return true if the spill file is gone, false if the database could
+     * not be reached
+     */
+    private boolean replaySpill() {
+        if (!spillFile.exists()) {
+            return true;
+        }
+        List<Record> records = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(spillFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Record record = Record.fromLine(line);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not read audit spill file " + spillFile.getPath() + ": " + e.getMessage());
+            return false;
+        }
+        int written = 0;
+        while (written < records.size()) {
+            List<Record> batch = records.subList(written, Math.min(written + batchSize, records.size()));
+            if (!MySQL.insertAuditRecords(batch)) {
+                break;
+            }
+            written += batch.size();
+        }
+        if (written == 0 && !records.isEmpty()) {
+            return false;
+        }
+
+        // Keep whatever was not written yet
+        File tempFile = new File(spillFile.getPath() + ".tmp");
+        if (written < records.size()) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+                for (Record record : records.subList(written, records.size())) {
+                    writer.write(record.toLine());
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                logMessage(LOGLEVEL_IMPORTANT, "Could not rewrite audit spill file: " + e.getMessage());
+                return false;
+            }
+            if (!spillFile.delete() || !tempFile.renameTo(spillFile)) {
+                logMessage(LOGLEVEL_IMPORTANT, "Could not replace audit spill file " + spillFile.getPath());
+            }
+            logMessage(LOGLEVEL_NORMAL, "Replayed " + written + " of " + records.size() + " audit records from the spill file.");
+            return false;
+        }
+        if (!spillFile.delete()) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not delete audit spill file " + spillFile.getPath());
+            return false;
+        }
+        logMessage(LOGLEVEL_NORMAL, "Replayed " + written + " audit records from the spill file.");
+        return true;
+    }
+
+    /**
+     * Appends records to the spill file
+     *
+     * @param records List - the records
+     */
+    private void spill(List<Record> records) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(spillFile, true))) {
+            for (Record record : records) {
+                writer.write(record.toLine());
+                writer.newLine();
+            }
+            logMessage(LOGLEVEL_IMPORTANT, "Database unavailable, spilled " + records.size() + " audit records to " + spillFile.getPath());
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_CRITICAL, "Could not spill " + records.size() + " audit records: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes what is left
+     */
+    public void close() {
+        timer.cancel();
+        flush();
+    }
+}
@@ -31,10 +31,10 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Timer;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
@@ -82,9 +82,9 @@ public class Bot extends ListenerAdapter {
     private PircBotXThread pircBotThread;
 
     /**
-     * List of active user sessions
+     * Active user sessions
      */
-    private static HashMap<String, String> userSessions;
+    private static SessionStore userSessions;
 
     /**
      * Path to the configuration file relative to the bot
@@ -102,6 +102,46 @@ public class Bot extends ListenerAdapter {
      */
     protected BotWatcher botWatcher;
 
+    /**
+     * Handles stopping server processes
+     */
+    protected ProcessLifecycleManager processLifecycle;
+
+    /**
+     * Restarts crashed servers
+     */
+    protected RestartScheduler restartScheduler;
+
+    /**
+     * Idle servers that are handed over to matching .host commands
+     */
+    protected StandbyPool standbyPool;
+
+    /**
+     * Samples the resource use of the server processes
+     */
+    protected ProcessSampler processSampler;
+
+    /**
+     * Checks the wads of host commands in parallel
+     */
+    protected WadValidator wadValidator;
+
+    /**
+     * Writes the server log and wad pages to the database in the background
+     */
+    protected AuditWriter auditWriter;
+
+    /**
+     * Journal of the running servers, used to bring them back after a restart
+     */
+    protected ServerJournal serverJournal;
+
+    /**
+     * Serves the metrics over HTTP, null if it is disabled
+     */
+    protected MetricsExporter metricsExporter;
+
     /**
      * Holds connection status. Use this to check connection status.
      */
@@ -153,6 +193,13 @@ public class Bot extends ListenerAdapter {
     // Debugging purposes only
     public static Bot staticBot;
 
+    /**
+     * Private message commands that are timed
+     */
+    private static final List<String> PRIVATE_COMMANDS = Arrays.asList("login", "register", ".addban", ".addstartwad",
+            ".delstartwad", ".rcon", "changepass", "changepassword", "changepw", ".banwad", ".unbanwad", ".delban",
+            ".msg", ".purgebans", ".raw", ".rejoin", ".send");
+
     private void buildAndStartIrcBot() {
         Configuration.Builder configBuilder = new Configuration.Builder()
                 .setName(cfg_data.ircName)
@@ -206,11 +253,13 @@ public class Bot extends ListenerAdapter {
      */
     @SuppressWarnings("LeakingThisInConstructor")
     public Bot(ConfigData cfgfile) {
-        userSessions = new HashMap<>();
         cfg_data = cfgfile;
+        userSessions = new SessionStore(cfg_data.session_expiry);
         buildAndStartIrcBot();
         ircMessageQueue = new IRCMessageQueueWatcher(this);
         botWatcher = new BotWatcher(this);
+        processLifecycle = new ProcessLifecycleManager(this);
+        restartScheduler = new RestartScheduler(this);
 
         // Set up the logger
         Logger.setLogFile(cfg_data.bot_logfile);
@@ -238,14 +287,48 @@ public class Bot extends ListenerAdapter {
         // Set up MySQL
         MySQL.setMySQL(this, cfg_data.mysql_host, cfg_data.mysql_user, cfg_data.mysql_pass, cfg_data.mysql_port, cfg_data.mysql_db);
 
-        // Load persistent sessions
-        MySQL.loadSessions();
+        // Load persistent sessions, changes are saved in the background
+        Map<String, SessionStore.Session> sessions = MySQL.loadSessions();
+        if (sessions != null) {
+            userSessions.load(sessions);
+        }
+        userSessions.start(cfg_data.session_flush_interval);
+
+        // Server logs and wad pages are written in batches
+        auditWriter = new AuditWriter(this);
+        auditWriter.start(cfg_data.audit_flush_interval);
 
         // Get the time the bot was started
         this.time_started = System.currentTimeMillis();
 
         // Begin a server query thread that will run
         queryManager = new QueryManager(this);
+
+        // Start keeping metrics and log them periodically (if set)
+        Metrics.start(cfg_data.stats_interval);
+        Trace.configure(cfg_data.trace_slow_ms, cfg_data.trace_buffer);
+        metricsExporter = MetricsExporter.start(this);
+
+        // Watch the resource use of the servers (if set)
+        processSampler = new ProcessSampler(this);
+        processSampler.start();
+
+        wadValidator = new WadValidator(this);
+
+        // Bring back the servers that were running when the bot stopped
+        serverJournal = new ServerJournal(new File(cfg_data.journal_file.isEmpty() ? cfg_data.bot_logfiledir + "servers.journal" : cfg_data.journal_file));
+        List<ServerJournal.Entry> running = serverJournal.replay();
+        if (cfg_data.journal_restore) {
+            Server.loadServers(this, running);
+        } else {
+            for (ServerJournal.Entry entry : running) {
+                serverJournal.stopped(entry.getServerId());
+            }
+        }
+
+        // Start the standby servers (if set)
+        standbyPool = new StandbyPool(this);
+        standbyPool.start();
     }
 
     /**
@@ -418,11 +501,25 @@ public class Bot extends ListenerAdapter {
         if (targetServer != null) {
             targetServer.auto_restart = false;
             targetServer.killServer();
+        } else if (cancelPendingRestart(port)) {
+            sendMessageToChannel("Cancelled the restart of the server on port " + port + ".");
         } else {
             sendMessageToChannel("Could not find a server with the port " + port + "!");
         }
     }
 
+    /**
+     * Cancels the restart of a crashed server that is waiting to be started
+     * again on a port
+     *
+     * @param port int - the port
+     * @return true if a restart was cancelled
+     */
+    private boolean cancelPendingRestart(int port) {
+        Server pending = restartScheduler.getPendingRestart(port);
+        return pending != null && restartScheduler.cancelRestart(pending);
+    }
+
     /**
      * Toggles the auto-restart feature on or off
      *
@@ -441,6 +538,7 @@ public class Bot extends ListenerAdapter {
                         s.auto_restart = true;
                         sendMessageToChannel("Autorestart set up on server.");
                     }
+                    serverJournal.updated(s);
                 }
             } else {
                 sendMessageToChannel("Correct usage is .autorestart <port>");
@@ -469,6 +567,7 @@ public class Bot extends ListenerAdapter {
                         s.protected_server = true;
                         sendMessageToChannel("Kill protection enabled.");
                     }
+                    serverJournal.updated(s);
                 }
             } else {
                 sendMessageToChannel("Correct usage is .protect <port>");
@@ -569,8 +668,11 @@ public class Bot extends ListenerAdapter {
             // Generate an array of keywords from the message
             String[] keywords = event.getMessage().split(" ");
 
+            long start = System.nanoTime();
+            String command = keywords[0].toLowerCase();
+            Trace.start(command);
             int userlevel = MySQL.getLevel(getUserName(user));
-            switch (keywords[0].toLowerCase()) {
+            switch (command) {
                 case ".autorestart":
                     toggleAutoRestart(userlevel, keywords);
                     break;
@@ -646,6 +748,9 @@ public class Bot extends ListenerAdapter {
                 case ".owner":
                     processOwner(event.getUser(), userlevel, keywords);
                     break;
+                case ".profile":
+                    processProfile(userlevel, keywords);
+                    break;
                 case ".protect":
                     protectServer(userlevel, keywords);
                     break;
@@ -683,6 +788,9 @@ public class Bot extends ListenerAdapter {
                 case ".slot":
                     MySQL.showSlot(user, keywords);
                     break;
+                case ".stats":
+                    processStats(userlevel, keywords);
+                    break;
                 case ".uptime":
                     if (keywords.length == 1) {
                         sendMessageToChannel("I have been running for " + Functions.calculateTime(System.currentTimeMillis() - time_started));
@@ -694,8 +802,12 @@ public class Bot extends ListenerAdapter {
                     sendMessageToChannel(getLoggedIn(user));
                     break;
                 default:
-                    break;
+                    // Unknown commands are not timed
+                    Trace.discard();
+                    return;
             }
+            Metrics.histogram("command" + command).recordSince(start);
+            Trace.end();
         } else {
             globalBroadcast(user, message);
         }
@@ -768,6 +880,52 @@ public class Bot extends ListenerAdapter {
         return "Server load average: " + String.valueOf(ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
     }
 
+    /**
+     * Sends the metrics to the channel, several to a line
+     *
+     * @param userlevel The user's bitmask level
+     * @param keywords String[] - optionally a prefix to filter the metrics by
+     */
+    private void processStats(int userlevel, String[] keywords) {
+        if (!isAccountTypeOf(userlevel, ADMIN, MODERATOR)) {
+            return;
+        }
+        List<String> stats = Metrics.snapshot(keywords.length > 1 ? keywords[1] : "");
+        if (stats.isEmpty()) {
+            sendMessageToChannel("No metrics recorded" + (keywords.length > 1 ? " for " + keywords[1] : "") + ".");
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        for (String stat : stats) {
+            if (line.length() > 0 && line.length() + stat.length() > 400) {
+                sendMessageToChannel(line.toString());
+                line.setLength(0);
+            }
+            line.append(line.length() == 0 ? "" : " | ").append(stat);
+        }
+        sendMessageToChannel(line.toString());
+    }
+
+    /**
+     * Records a flight recorder profile of the bot, or stops the one being
+     * recorded
+     *
+     * @param userlevel int - the user's level
+     * @param keywords String[] - the command
+     */
+    private void processProfile(int userlevel, String[] keywords) {
+        if (!isAccountTypeOf(userlevel, ADMIN)) {
+            return;
+        }
+        if (keywords.length == 2 && keywords[1].equalsIgnoreCase("stop")) {
+            sendMessageToChannel(Profiler.stop());
+        } else if (keywords.length == 2 && keywords[1].matches("\\d{1,9}")) {
+            sendMessageToChannel(Profiler.start(this, Integer.parseInt(keywords[1]), cfg_data.ircChannel));
+        } else {
+            sendMessageToChannel("Proper syntax: .profile <seconds> or .profile stop");
+        }
+    }
+
     /**
      * Purges an IP address from all banlists
      *
@@ -806,11 +964,11 @@ public class Bot extends ListenerAdapter {
         if (isAccountTypeOf(userlevel, ADMIN)) {
             return ".addban .addstartwad .autorestart .banwad .broadcast .commands .cpu .delban .delete .delstartwad .download .file .get .help"
                     + " .host .kill .killall .killmine .killinactive .liststartwads .load "
-                    + ".notice .off .on .owner .protect .purgebans .query .quit .rcon .save .send .servers .slot .unbanwad .uptime .whoami";
+                    + ".notice .off .on .owner .profile .protect .purgebans .query .quit .rcon .save .send .servers .slot .stats .unbanwad .uptime .whoami";
         } else if (isAccountTypeOf(userlevel, MODERATOR)) {
             return ".addban .addstartwad .autorestart .banwad .broadcast .commands .cpu .delban .delstartwad .file .get .help .host"
                     + " .kill .killmine .killinactive .liststartwads .load "
-                    + ".notice .owner .protect .purgebans .query .rcon .save .send .servers .slot .unbanwad .uptime .whoami";
+                    + ".notice .owner .protect .purgebans .query .rcon .save .send .servers .slot .stats .unbanwad .uptime .whoami";
         } else if (isAccountTypeOf(userlevel, REGISTERED)) {
             return ".commands .cpu .file .get .help .host .kill .killmine .load .owner .query .rcon .save .servers .slot .uptime .whoami";
         } else {
@@ -892,6 +1050,7 @@ public class Bot extends ListenerAdapter {
      * @param port
      */
     public void processHost(String username, int userlevel, String sender, String channel, String message, boolean autoRestart, int port) {
+        Trace.mark("processHost");
         logMessage(LOGLEVEL_NORMAL, "Processing the host command for " + username + " with the message \"" + message + "\".");
         if (botEnabled || isAccountTypeOf(userlevel, ADMIN, MODERATOR)) {
             if (isAccountTypeOf(userlevel, REGISTERED)) {
@@ -913,7 +1072,6 @@ public class Bot extends ListenerAdapter {
 
     public static void addUserSession(String usermask, String username) {
         userSessions.put(usermask, username);
-        MySQL.saveSession(usermask, username);
     }
 
     public static void addUserSession(User user, String username) {
@@ -921,13 +1079,13 @@ public class Bot extends ListenerAdapter {
     }
 
     public static boolean checkSession(User user) {
-        return userSessions.containsKey(genUserKey(user));
+        return userSessions.get(genUserKey(user)) != null;
     }
 
     public static void expireSession(User user) {
-        if (userSessions.containsKey(genUserKey(user))) {
-            logMessage(LOGLEVEL_NORMAL, "Expiring user session: " + getUserName(user));
-            userSessions.remove(genUserKey(user));
+        String username = userSessions.remove(genUserKey(user));
+        if (username != null) {
+            logMessage(LOGLEVEL_NORMAL, "Expiring user session: " + username);
         }
     }
 
@@ -940,10 +1098,8 @@ public class Bot extends ListenerAdapter {
     }
 
     public static String getUserName(String nick, String login, String hostmask) {
-        if (userSessions.containsKey(genUserKey(nick, login, hostmask))) {
-            return userSessions.get(genUserKey(nick, login, hostmask));
-        }
-        return "";
+        String username = userSessions.get(genUserKey(nick, login, hostmask));
+        return username == null ? "" : username;
     }
 
     public static String genUserKey(String nick, String login, String hostmask) {
@@ -1066,8 +1222,8 @@ public class Bot extends ListenerAdapter {
             return;
         }
 
-        // If server list is empty
-        if (servers.isEmpty()) {
+        // If server list is empty, a crashed server may still be waiting to restart
+        if (servers.isEmpty() && restartScheduler.getPendingRestarts().isEmpty()) {
             sendMessageToChannel("There are currently no servers running!");
             return;
         }
@@ -1075,10 +1231,18 @@ public class Bot extends ListenerAdapter {
         // Registered can only kill their own servers
         if (isAccountTypeOf(userlevel, REGISTERED)) {
             if (Functions.isNumeric(keywords[1])) {
-                Server server = getServer(Integer.parseInt(keywords[1]));
+                int port = Integer.parseInt(keywords[1]);
+                Server server = getServer(port);
+                if (server == null) {
+                    server = restartScheduler.getPendingRestart(port);
+                }
                 if (server != null) {
                     if (!getUserName(user).isEmpty() || isAccountTypeOf(userlevel, MODERATOR, ADMIN)) {
-                        if (server.serverprocess != null) {
+                        if (restartScheduler.getPendingRestart(port) == server) {
+                            if (restartScheduler.cancelRestart(server)) {
+                                sendMessageToChannel("Cancelled the restart of the server on port " + port + ".");
+                            }
+                        } else if (server.serverprocess != null) {
                             server.auto_restart = false;
                             server.serverprocess.terminateServer();
                         } else {
@@ -1112,7 +1276,12 @@ public class Bot extends ListenerAdapter {
             // As a temporary solution, we can create a temporary list that will hold the values of the real list at the time it was called
             List<Server> tempList = new LinkedList<>(servers);
             int serverCount = servers.size();
-            if (tempList.size() > 0) {
+            for (Server s : restartScheduler.getPendingRestarts()) {
+                if (restartScheduler.cancelRestart(s)) {
+                    serverCount++;
+                }
+            }
+            if (serverCount > 0) {
                 for (Server s : tempList) {
                     s.hide_stop_message = true;
                     s.auto_restart = false;
@@ -1127,6 +1296,29 @@ public class Bot extends ListenerAdapter {
         }
     }
 
+    /**
+     * Stops every server in parallel and waits for them to exit, this is used
+     * when the bot itself is shutting down. The journal is closed first so the
+     * servers are started again on the next start, and detached servers are
+     * left running to be reattached.
+     */
+    private void shutdownServers() {
+        logMessage(LOGLEVEL_IMPORTANT, "Shutting down all servers. " + standbyPool.getStatus());
+        serverJournal.close();
+        standbyPool.shutdown();
+        List<Server> tempList = new LinkedList<>();
+        for (Server s : servers) {
+            if (s.serverprocess == null || !(s.serverprocess.getProcess() instanceof DetachedProcess)) {
+                tempList.add(s);
+            }
+        }
+        for (Server s : tempList) {
+            s.hide_stop_message = true;
+            s.auto_restart = false;
+        }
+        processLifecycle.terminateAll(tempList);
+    }
+
     /**
      * This will look through the list and kill all the servers that the
      * hostname owns
@@ -1146,6 +1338,12 @@ public class Bot extends ListenerAdapter {
                     s.killServer();
                     ports.add(String.valueOf(s.port));
                 }
+                String username = getUserName(user);
+                for (Server s : restartScheduler.getPendingRestarts()) {
+                    if (s.username.equals(username) && restartScheduler.cancelRestart(s)) {
+                        ports.add(String.valueOf(s.port));
+                    }
+                }
                 if (ports.size() > 0) {
                     sendMessageToChannel(Functions.pluralize("Killed " + ports.size() + " server{s} (" + Joiner.on(", ").join(ports) + ")", ports.size()));
                 } else {
@@ -1357,6 +1555,9 @@ public class Bot extends ListenerAdapter {
     private void processQuit(int userlevel) {
         logMessage(LOGLEVEL_CRITICAL, "Requested bot termination. Shutting down program.");
         if (isAccountTypeOf(userlevel, ADMIN)) {
+            userSessions.close();
+            auditWriter.close();
+            serverJournal.close();
             System.exit(0);
         }
     }
@@ -1416,8 +1617,10 @@ public class Bot extends ListenerAdapter {
         String nick = event.getUser().getNick();
         User user = event.getUser();
         String[] keywords = message.split(" ");
+        long start = System.nanoTime();
+        String command = keywords[0].toLowerCase();
 
-        switch (keywords[0].toLowerCase()) {
+        switch (command) {
             case "login":
                 if (keywords.length > 2) {
                     if (MySQL.userLogin(user, keywords[1], keywords[2])) {
@@ -1520,6 +1723,9 @@ public class Bot extends ListenerAdapter {
         } else {
             asyncIRCMessage(nick, "You are not logged in!");
         }
+        if (PRIVATE_COMMANDS.contains(command)) {
+            Metrics.histogram("command.pm." + command.replace(".", "")).recordSince(start);
+        }
     }
 
     /**
@@ -1732,9 +1938,27 @@ public class Bot extends ListenerAdapter {
                 if (line.equalsIgnoreCase("list")) {
                     b.listUsers();
                 }
+                if (line.startsWith("profile ")) {
+                    String profileArgs[] = line.split(" ");
+                    if (profileArgs.length > 1 && profileArgs[1].equalsIgnoreCase("stop")) {
+                        System.out.println(Profiler.stop());
+                    } else if (profileArgs.length > 1 && profileArgs[1].matches("\\d{1,9}")) {
+                        System.out.println(Profiler.start(b, Integer.parseInt(profileArgs[1]), null));
+                    } else {
+                        System.out.println("Usage: profile <seconds> or profile stop");
+                    }
+                }
+                if (line.equalsIgnoreCase("traces")) {
+                    for (Trace trace : Trace.getRecent()) {
+                        System.out.println(trace);
+                    }
+                }
                 if (line.equalsIgnoreCase("quit") || line.equalsIgnoreCase("exit")) {
                     b.pircBotThread.cancel();
-                    b.processKillAll(ADMIN);
+                    b.restartScheduler.cancel();
+                    b.processSampler.cancel();
+                    b.shutdownServers();
+                    b.processLifecycle.cancel();
                     b.queryManager.cancel();
                     b.ircMessageQueue.cancel();
                     b.botWatcher.cancel();
@@ -1754,7 +1978,11 @@ public class Bot extends ListenerAdapter {
      */
     public void blockingIRCMessage(String target, String message) {
         if (this.isConnected()) {
+            long start = System.nanoTime();
             bot.sendIRC().message(target, message);
+            Metrics.histogram("irc.send").recordSince(start);
+            Profiler.ircSend(target, message, start);
+            Metrics.counter("irc.sent").increment();
         }
     }
 
@@ -1919,7 +2147,11 @@ public class Bot extends ListenerAdapter {
      */
     public void blockingCTCPMessage(String target, String message) {
         if (this.isConnected()) {
+            long start = System.nanoTime();
             bot.sendIRC().ctcpResponse(target, message);
+            Metrics.histogram("irc.send").recordSince(start);
+            Profiler.ircSend(target, message, start);
+            Metrics.counter("irc.sent").increment();
         }
     }
 
@@ -243,6 +243,187 @@ public class ConfigData {
      */
     public int cleanup_interval;
 
+    /**
+     * Time (ms) a server is given to exit after being sent "quit" before it
+     * is sent a terminate signal
+     */
+    public int shutdown_quit_timeout;
+
+    /**
+     * Time (ms) a server is given to exit after the terminate signal before it
+     * is forcibly killed
+     */
+    public int shutdown_kill_timeout;
+
+    /**
+     * Delay (seconds) before restarting a crashed server the first time, this
+     * doubles for every crash within the crash window
+     */
+    public int restart_delay;
+
+    /**
+     * The longest delay (seconds) before restarting a crashed server
+     */
+    public int restart_max_delay;
+
+    /**
+     * Number of crashes within the crash window after which a server will no
+     * longer be restarted
+     */
+    public int restart_max_crashes;
+
+    /**
+     * The window (seconds) in which crashes are counted
+     */
+    public int restart_crash_window;
+
+    /**
+     * Standby servers to keep running, as a comma separated list of
+     * iwad:gamemode:count entries (ex: doom2:ctf:2,doom2:dm:1)
+     */
+    public String standby_pool;
+
+    /**
+     * How often a snapshot of the metrics is written to the log (seconds), 0
+     * to never log them
+     */
+    public int stats_interval;
+
+    /**
+     * Command traces slower than this (ms) are written to the log, 0 to never
+     * log them
+     */
+    public int trace_slow_ms;
+
+    /**
+     * Number of recent command traces that are kept
+     */
+    public int trace_buffer;
+
+    /**
+     * How often the server processes are sampled (seconds), 0 to disable
+     */
+    public int sampler_interval;
+
+    /**
+     * CPU use (percent of one core) above which a server is over its limit, 0
+     * for no limit
+     */
+    public int sampler_cpu_limit;
+
+    /**
+     * Resident memory (MB) above which a server is over its limit, 0 for no
+     * limit
+     */
+    public int sampler_mem_limit;
+
+    /**
+     * Open files above which a server is over its limit, 0 for no limit
+     */
+    public int sampler_fd_limit;
+
+    /**
+     * Samples in a row a server must be over a limit before acting
+     */
+    public int sampler_grace;
+
+    /**
+     * What to do with a server that is over a limit: "alert" or "kill"
+     */
+    public String sampler_action;
+
+    /**
+     * Number of wads of a host command that are checked at the same time
+     */
+    public int wad_validation_threads;
+
+    /**
+     * Days a login session lasts without being used, 0 for forever
+     */
+    public int session_expiry;
+
+    /**
+     * Seconds between writes of session changes to the database
+     */
+    public int session_flush_interval;
+
+    /**
+     * Most server log and wad page records written to the database at once
+     */
+    public int audit_batch_size;
+
+    /**
+     * Seconds between writes of server log and wad page records
+     */
+    public int audit_flush_interval;
+
+    /**
+     * File holding the records that could not be written to the database,
+     * empty to use audit.spill in the log directory
+     */
+    public String audit_spill_file;
+
+    /**
+     * File the running servers are journaled to, empty to use servers.journal
+     * in the log directory
+     */
+    public String journal_file;
+
+    /**
+     * Start the servers from the journal again when the bot starts
+     */
+    public boolean journal_restore;
+
+    /**
+     * How servers are started: "pipe" runs them as children of the bot,
+     * "fifo" runs them detached with their console in the runtime directory so
+     * they survive a bot restart; standby servers always use "pipe"
+     */
+    public String launch_mode;
+
+    /**
+     * Directory holding the consoles of detached servers
+     */
+    public String runtime_dir;
+
+    /**
+     * Console lines of a server buffered for processing, lines beyond this
+     * are dropped so the server never waits on the bot
+     */
+    public int console_buffer_lines;
+
+    /**
+     * Milliseconds of game events grouped into one digest before they are
+     * relayed to IRC
+     */
+    public int relay_window;
+
+    /**
+     * Lines a server may relay to IRC per window
+     */
+    public int relay_lines;
+
+    /**
+     * Messages waiting in the IRC queue from which only results, votes and
+     * announcements are relayed, 0 to never drop
+     */
+    public int relay_backpressure;
+
+    /**
+     * Serve the metrics over HTTP
+     */
+    public boolean metrics_enabled;
+
+    /**
+     * Address the metrics endpoint listens on
+     */
+    public String metrics_address;
+
+    /**
+     * Port the metrics endpoint listens on
+     */
+    public int metrics_port;
+
     /**
      * This constructor once initialized will parse the config file based on the
      * path
@@ -313,6 +494,18 @@ public class ConfigData {
         this.mysql_pass = mysql.get("pass");
         this.mysql_port = Integer.parseInt(mysql.get("port"));
 
+        // Load the metrics section (optional)
+        Ini.Section metrics = ini.get("metrics");
+        if (metrics != null) {
+            this.metrics_enabled = Boolean.parseBoolean(metrics.get("enabled", "false"));
+            this.metrics_address = metrics.get("address", "127.0.0.1");
+            this.metrics_port = Integer.parseInt(metrics.get("port", "9150"));
+        } else {
+            this.metrics_enabled = false;
+            this.metrics_address = "127.0.0.1";
+            this.metrics_port = 9150;
+        }
+
         // Load the bot section
         Ini.Section bot = ini.get("bot");
         this.bot_accountfile = bot.get("accountfile");
@@ -342,6 +535,159 @@ public class ConfigData {
         } else {
             this.cleanup_interval = 1000;
         }
+        if (bot.get("shutdown_quit_timeout") != null) {
+            this.shutdown_quit_timeout = Integer.parseInt(bot.get("shutdown_quit_timeout"));
+        } else {
+            this.shutdown_quit_timeout = 3000;
+        }
+        if (bot.get("shutdown_kill_timeout") != null) {
+            this.shutdown_kill_timeout = Integer.parseInt(bot.get("shutdown_kill_timeout"));
+        } else {
+            this.shutdown_kill_timeout = 5000;
+        }
+        if (bot.get("restart_delay") != null) {
+            this.restart_delay = Integer.parseInt(bot.get("restart_delay"));
+        } else {
+            this.restart_delay = 2;
+        }
+        if (bot.get("restart_max_delay") != null) {
+            this.restart_max_delay = Integer.parseInt(bot.get("restart_max_delay"));
+        } else {
+            this.restart_max_delay = 300;
+        }
+        if (bot.get("restart_max_crashes") != null) {
+            this.restart_max_crashes = Integer.parseInt(bot.get("restart_max_crashes"));
+        } else {
+            this.restart_max_crashes = 5;
+        }
+        if (bot.get("restart_crash_window") != null) {
+            this.restart_crash_window = Integer.parseInt(bot.get("restart_crash_window"));
+        } else {
+            this.restart_crash_window = 600;
+        }
+        if (bot.get("standby_pool") != null) {
+            this.standby_pool = bot.get("standby_pool");
+        } else {
+            this.standby_pool = "";
+        }
+        if (bot.get("stats_interval") != null) {
+            this.stats_interval = Integer.parseInt(bot.get("stats_interval"));
+        } else {
+            this.stats_interval = 300;
+        }
+        if (bot.get("trace_slow_ms") != null) {
+            this.trace_slow_ms = Integer.parseInt(bot.get("trace_slow_ms"));
+        } else {
+            this.trace_slow_ms = 2000;
+        }
+        if (bot.get("trace_buffer") != null) {
+            this.trace_buffer = Integer.parseInt(bot.get("trace_buffer"));
+        } else {
+            this.trace_buffer = 128;
+        }
+        if (bot.get("sampler_interval") != null) {
+            this.sampler_interval = Integer.parseInt(bot.get("sampler_interval"));
+        } else {
+            this.sampler_interval = 10;
+        }
+        if (bot.get("sampler_cpu_limit") != null) {
+            this.sampler_cpu_limit = Integer.parseInt(bot.get("sampler_cpu_limit"));
+        } else {
+            this.sampler_cpu_limit = 0;
+        }
+        if (bot.get("sampler_mem_limit") != null) {
+            this.sampler_mem_limit = Integer.parseInt(bot.get("sampler_mem_limit"));
+        } else {
+            this.sampler_mem_limit = 0;
+        }
+        if (bot.get("sampler_fd_limit") != null) {
+            this.sampler_fd_limit = Integer.parseInt(bot.get("sampler_fd_limit"));
+        } else {
+            this.sampler_fd_limit = 0;
+        }
+        if (bot.get("sampler_grace") != null) {
+            this.sampler_grace = Integer.parseInt(bot.get("sampler_grace"));
+        } else {
+            this.sampler_grace = 3;
+        }
+        if (bot.get("sampler_action") != null) {
+            this.sampler_action = bot.get("sampler_action");
+        } else {
+            this.sampler_action = "alert";
+        }
+        if (bot.get("wad_validation_threads") != null) {
+            this.wad_validation_threads = Integer.parseInt(bot.get("wad_validation_threads"));
+        } else {
+            this.wad_validation_threads = 4;
+        }
+        if (bot.get("session_expiry") != null) {
+            this.session_expiry = Integer.parseInt(bot.get("session_expiry"));
+        } else {
+            this.session_expiry = 30;
+        }
+        if (bot.get("session_flush_interval") != null) {
+            this.session_flush_interval = Integer.parseInt(bot.get("session_flush_interval"));
+        } else {
+            this.session_flush_interval = 5;
+        }
+        if (bot.get("audit_batch_size") != null) {
+            this.audit_batch_size = Integer.parseInt(bot.get("audit_batch_size"));
+        } else {
+            this.audit_batch_size = 50;
+        }
+        if (bot.get("audit_flush_interval") != null) {
+            this.audit_flush_interval = Integer.parseInt(bot.get("audit_flush_interval"));
+        } else {
+            this.audit_flush_interval = 5;
+        }
+        if (bot.get("audit_spill_file") != null) {
+            this.audit_spill_file = bot.get("audit_spill_file");
+        } else {
+            this.audit_spill_file = "";
+        }
+        if (bot.get("journal_file") != null) {
+            this.journal_file = bot.get("journal_file");
+        } else {
+            this.journal_file = "";
+        }
+        if (bot.get("journal_restore") != null) {
+            this.journal_restore = Boolean.parseBoolean(bot.get("journal_restore"));
+        } else {
+            this.journal_restore = true;
+        }
+        if (bot.get("launch_mode") != null) {
+            this.launch_mode = bot.get("launch_mode");
+        } else {
+            this.launch_mode = "pipe";
+        }
+        if (bot.get("runtime_dir") != null) {
+            this.runtime_dir = bot.get("runtime_dir");
+        } else {
+            this.runtime_dir = "";
+        }
+        if (this.runtime_dir.isEmpty()) {
+            this.runtime_dir = this.bot_logfiledir + "run/";
+        }
+        if (bot.get("console_buffer_lines") != null) {
+            this.console_buffer_lines = Integer.parseInt(bot.get("console_buffer_lines"));
+        } else {
+            this.console_buffer_lines = 8192;
+        }
+        if (bot.get("relay_window") != null) {
+            this.relay_window = Integer.parseInt(bot.get("relay_window"));
+        } else {
+            this.relay_window = 1000;
+        }
+        if (bot.get("relay_lines") != null) {
+            this.relay_lines = Integer.parseInt(bot.get("relay_lines"));
+        } else {
+            this.relay_lines = 3;
+        }
+        if (bot.get("relay_backpressure") != null) {
+            this.relay_backpressure = Integer.parseInt(bot.get("relay_backpressure"));
+        } else {
+            this.relay_backpressure = 20;
+        }
         if (bot.get("notice") != null) {
             this.bot_notice = bot.get("notice");
         }
@@ -0,0 +1,199 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Reads the console output of a server on its own thread as fast as the server
+ * writes it, into a bounded buffer that the server thread processes at its own
+ * pace. A server blocks when its output pipe is full, so if processing falls
+ * behind (slow ban lookups, IRC, disk) lines are dropped and counted rather
+ * than making the game lag. Lines the bot cannot do without, such as player
+ * connections that must be checked for bans and the startup lines, may use
+ * some room at the end of the buffer that other lines may not, so they are
+ * still kept when it is full, in order with the rest.
+ */
+public class ConsoleCapture implements Runnable {
+
+    /**
+     * The console output of the server
+     */
+    private final InputStream input;
+
+    /**
+     * Lines waiting to be processed
+     */
+    private final BlockingQueue<String> lines;
+
+    /**
+     * Most lines buffered that are not important, the rest of the buffer is
+     * kept for important lines
+     */
+    private final int capacity;
+
+    /**
+     * The reading thread
+     */
+    private Thread thread;
+
+    /**
+     * Lines dropped since the last call to takeDropped()
+     */
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Lines dropped from every server
+     */
+    private final Metrics.Counter droppedTotal = Metrics.counter("console.dropped");
+
+    /**
+     * Set once the server has closed its output
+     */
+    private volatile boolean closed;
+
+    /**
+     * Set once the bot has stopped reading
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Constructor
+     *
+     * @param input InputStream - the console output of the server
+     * @param capacity int - most lines buffered
+     */
+    public ConsoleCapture(InputStream input, int capacity) {
+        this.input = input;
+        this.capacity = Math.max(16, capacity);
+        this.lines = new ArrayBlockingQueue<>(this.capacity + Math.max(16, this.capacity / 8));
+    }
+
+    /**
+     * Starts reading the output
+     *
+     * @param name String - name of the reading thread
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops reading and closes the output, lines still buffered can be taken
+     */
+    public void close() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        try {
+            input.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Reads lines until the server closes its output
+     */
+    @Override
+    public void run() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // Only this thread adds lines, so the size can only shrink after the check
+                boolean room = lines.size() < capacity || isImportant(line);
+                if (!room || !lines.offer(line)) {
+                    dropped.incrementAndGet();
+                    droppedTotal.increment();
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                logMessage(LOGLEVEL_IMPORTANT, "Error reading server console: " + e.getMessage());
+            }
+        } finally {
+            closed = true;
+        }
+    }
+
+    /**
+     * Returns if a line must not be dropped
+     *
+     * @param line String - the console line
+     * @return true for connections and the lines that report the port and
+     * startup
+     */
+    static boolean isImportant(String line) {
+        return line.startsWith("CONNECTION")
+                || line.startsWith("Server using alternate port ")
+                || line.startsWith("NETWORK_Construct: Couldn't bind to ")
+                || line.equalsIgnoreCase("UDP Initialized.");
+    }
+
+    /**
+     * Waits for the next line
+     *
+     * @return the line, or null once the server has closed its output and
+     * every line has been returned
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    public String take() throws InterruptedIOException {
+        try {
+            while (true) {
+                String line = lines.poll(100, TimeUnit.MILLISECONDS);
+                if (line != null) {
+                    return line;
+                }
+                if (closed && lines.isEmpty()) {
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for console output");
+        }
+    }
+
+    /**
+     * Returns if no lines are waiting, so buffered output can be flushed
+     *
+     * @return true if the buffer is empty
+     */
+    public boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    /**
+     * Returns the number of lines dropped since the last call
+     *
+     * @return the number of lines
+     */
+    public int takeDropped() {
+        return dropped.getAndSet(0);
+    }
+}
@@ -0,0 +1,246 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Handles a single line of server console output: bans connecting players,
+ * keeps the player list up to date, tracks the RCON password and relays game
+ * events to IRC. Everything that reaches outside of the server goes through
+ * the sink, so lines can be processed without a bot or a running server.
+ */
+public class ConsoleLineProcessor {
+
+    /**
+     * Receives the effects of processing console lines
+     */
+    public interface Sink {
+
+        /**
+         * Relays a game event to the IRC channel
+         *
+         * @param kind RelayDigest.Kind - the kind of event
+         * @param player String - the player the event is about, or null
+         * @param message String - the message
+         */
+        void relay(RelayDigest.Kind kind, String player, String message);
+
+        /**
+         * Sends a command to the server console
+         *
+         * @param command String - the command
+         */
+        void sendCommand(String command);
+
+        /**
+         * Checks if an IP address is banned
+         *
+         * @param ip String - the IP address
+         * @return the matching ban, or null if the IP is not banned
+         */
+        String checkBanned(String ip);
+
+        /**
+         * Called when a player joins or connects
+         */
+        void activity();
+    }
+
+    /**
+     * Player chat (ex: Player: hello)
+     */
+    private static final Pattern CHAT = Pattern.compile("^(.*): (.*)");
+
+    /**
+     * A player joined the game
+     */
+    private static final Pattern JOINED = Pattern.compile("^(.*) joined the game\\.");
+
+    /**
+     * A player connected to the server
+     */
+    private static final Pattern CONNECTED = Pattern.compile("(.*) has connected\\.");
+
+    /**
+     * A player disconnected
+     */
+    private static final Pattern DISCONNECTED = Pattern.compile("^client (.*) disconnected\\.");
+
+    /**
+     * A player timed out
+     */
+    private static final Pattern TIMED_OUT = Pattern.compile("(.*) timed out\\.");
+
+    /**
+     * A player called a vote
+     */
+    private static final Pattern VOTE_CALLED = Pattern.compile("(.*) \\(.*\\) has called a vote.*");
+
+    /**
+     * A vote passed
+     */
+    private static final Pattern VOTE_PASSED = Pattern.compile("Vote passed!");
+
+    /**
+     * A player or team won
+     */
+    private static final Pattern WINS = Pattern.compile("^(.*) wins!");
+
+    /**
+     * A player exited the level
+     */
+    private static final Pattern EXITED = Pattern.compile("^(.*) exited the level.");
+
+    /**
+     * A player changed their name
+     */
+    private static final Pattern RENAMED = Pattern.compile("^(.*) is now known as (.*)");
+
+    /**
+     * Server announcements (ex: *** MAP01: Entryway ***)
+     */
+    private static final Pattern ANNOUNCEMENT = Pattern.compile("^\\*\\*\\* \\w+: .* \\*\\*\\*$");
+
+    /**
+     * Where the effects of each line go
+     */
+    private final Sink sink;
+
+    /**
+     * Formats the time stamp of log lines
+     */
+    private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MMM-dd HH:mm:ss");
+
+    /**
+     * Constructor
+     *
+     * @param sink Sink - receives the effects of processing lines
+     */
+    public ConsoleLineProcessor(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Formats a console line for the server log file
+     *
+     * @param line String - the console line
+     * @return the line with a time stamp and a line break
+     */
+    public String formatLogLine(String line) {
+        return formatter.format(new Date()) + " " + line + "\n";
+    }
+
+    /**
+     * Processes one line of console output
+     *
+     * @param server Server - the server that printed the line
+     * @param line String - the console line
+     */
+    public void process(Server server, String line) {
+        long start = Profiler.isRecording() ? System.nanoTime() : 0;
+        String[] keywords = line.split(" ");
+
+        // Check for banned players
+        if (keywords[0].equals("CONNECTION")) {
+            String ip = keywords[keywords.length - 1].split(":")[0];
+            String pIP;
+            if ((pIP = sink.checkBanned(ip)) != null) {
+                sink.sendCommand("addban " + pIP + " perm \"You have been banned.\"");
+            }
+        }
+
+        // Check for RCON password changes
+        if (keywords.length > 3) {
+            if (keywords[0].equals("->") && keywords[1].equalsIgnoreCase("sv_rconpassword")) {
+                server.rcon_password = keywords[2];
+            } else if (keywords[0].equalsIgnoreCase("\"sv_rconpassword\"")) {
+                server.rcon_password = keywords[2].replace("\"", "");
+            }
+        }
+
+        // Catch player chat messages
+        Matcher m = CHAT.matcher(line);
+        if (m.find()) {
+            String player = m.group(1);
+            if (server.playerList.contains(player)) {
+                String message = m.group(2);
+                sink.relay(RelayDigest.Kind.CHAT, player, "[" + server.servername + "] <" + player + "> " + message);
+            }
+        }
+
+        m = JOINED.matcher(line);
+        if (m.find()) {
+            sink.activity();
+            sink.relay(RelayDigest.Kind.JOIN, m.group(1), "[" + server.servername + "] " + line);
+        }
+
+        m = CONNECTED.matcher(line);
+        if (m.find()) {
+            String player = m.group(1);
+            if (!server.playerList.contains(player)) {
+                server.playerList.add(player);
+            }
+            sink.activity();
+            sink.relay(RelayDigest.Kind.CONNECT, player, "[" + server.servername + "] " + line);
+        }
+
+        m = DISCONNECTED.matcher(line);
+        if (m.find()) {
+            server.playerList.remove(m.group(1));
+            sink.relay(RelayDigest.Kind.DISCONNECT, m.group(1), "[" + server.servername + "] " + line);
+        }
+
+        m = TIMED_OUT.matcher(line);
+        if (m.find()) {
+            server.playerList.remove(m.group(1));
+            sink.relay(RelayDigest.Kind.TIMEOUT, m.group(1), "[" + server.servername + "] " + line);
+        }
+
+        m = VOTE_CALLED.matcher(line);
+        if (m.find()) {
+            server.playerList.remove(m.group(1));
+            sink.relay(RelayDigest.Kind.VOTE, m.group(1), "[" + server.servername + "] " + line);
+        }
+
+        if (VOTE_PASSED.matcher(line).find()) {
+            sink.relay(RelayDigest.Kind.VOTE, null, "[" + server.servername + "] " + line);
+        } else if (WINS.matcher(line).find() || EXITED.matcher(line).find()) {
+            sink.relay(RelayDigest.Kind.RESULT, null, "[" + server.servername + "] " + line);
+        }
+
+        m = RENAMED.matcher(line);
+        if (m.find()) {
+            String oldName = m.group(1);
+            String newName = m.group(2);
+            if (!server.playerList.contains(newName)) {
+                server.playerList.add(newName);
+            }
+            server.playerList.remove(oldName);
+            sink.relay(RelayDigest.Kind.RENAME, newName, "[" + server.servername + "] " + line);
+        }
+
+        if (ANNOUNCEMENT.matcher(line).find()) {
+            sink.relay(RelayDigest.Kind.ANNOUNCEMENT, null, "[" + server.servername + "] " + line);
+        }
+
+        if (start != 0) {
+            Profiler.consoleLine(server.port, line.length(), start);
+        }
+    }
+}
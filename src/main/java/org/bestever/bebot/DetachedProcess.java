@@ -0,0 +1,525 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * A server process that does not depend on the bot to keep running. Its
+ * console input is a named FIFO and its output goes to a file, both in a
+ * directory named after the server ID under the runtime directory, and it runs
+ * in its own session. When the bot restarts it attaches to the process again
+ * through those files instead of starting a new one.
+ * <p>
+ * Output goes to a file rather than a second FIFO so the server never blocks
+ * on a full pipe while no bot is reading. The server itself writes to a FIFO
+ * that a small shell loop started next to it drains into the file, and the
+ * loop moves the file to out.1 whenever it grows past a limit, so at most two
+ * files' worth of output is kept. The bot follows the file across these
+ * moves, reading the old one to its end before going on to the new one, so
+ * no lines are lost while it keeps up.
+ */
+public class DetachedProcess extends Process {
+
+    /**
+     * Sets up the console of the server and replaces itself with it, the
+     * arguments are the input FIFO, the output file, its size limit and the
+     * command. The input FIFO is opened for reading and writing so it never
+     * blocks or reports the end of input while the bot is gone. The output
+     * goes through out.pipe to a loop in the background that appends it to
+     * the output file and rotates it, and marks out.done once the server has
+     * closed its output.
+     */
+    private static final String SHIM = "in=$1; out=$2; max=$3; shift 3\n"
+            + "(\n"
+            + "  exec 3>>\"$out\"; size=$(wc -c <\"$out\")\n"
+            + "  while IFS= read -r line || [ -n \"$line\" ]; do\n"
+            + "    printf '%s\\n' \"$line\" >&3\n"
+            + "    size=$((size + ${#line} + 1))\n"
+            + "    if [ \"$size\" -ge \"$max\" ]; then mv -f \"$out\" \"$out.1\"; exec 3>>\"$out\"; size=0; fi\n"
+            + "  done\n"
+            + "  : >\"$out.done\"\n"
+            + ") <\"$out.pipe\" &\n"
+            + "exec \"$@\" 0<>\"$in\" >\"$out.pipe\" 2>&1";
+
+    /**
+     * The output file is moved to out.1 once it is this big
+     */
+    private static final long ROTATE_SIZE = 1 << 20;
+
+    /**
+     * How long to wait for the last output after the server exited in ms
+     */
+    private static final long DRAIN_TIMEOUT = 2000;
+
+    /**
+     * Files in the console directory
+     */
+    private static final String[] FILES = {"in", "out", "out.1", "out.pipe", "out.done", "shim.log"};
+
+    /**
+     * How often the output file is checked for new lines in ms
+     */
+    private static final long POLL_INTERVAL = 50;
+
+    /**
+     * The ID the server was started with, it is on the command line
+     */
+    private final String launchId;
+
+    /**
+     * The operating system ID of the process
+     */
+    private final long pid;
+
+    /**
+     * Directory holding the console files
+     */
+    private final File directory;
+
+    /**
+     * The process, if it was started by this bot
+     */
+    private final Process child;
+
+    /**
+     * Writes to the console input FIFO
+     */
+    private final OutputStream input;
+
+    /**
+     * Reads from the console output file
+     */
+    private final InputStream output;
+
+    /**
+     * Constructor
+     */
+    private DetachedProcess(String launchId, long pid, File directory, Process child, long offset) throws IOException {
+        this.launchId = launchId;
+        this.pid = pid;
+        this.directory = directory;
+        this.child = child;
+        // Opening a FIFO for reading and writing does not wait for the other end
+        this.input = new FileOutputStream(new RandomAccessFile(new File(directory, "in"), "rw").getFD());
+        this.output = new TailInputStream(new File(directory, "out"), offset);
+    }
+
+    /**
+     * Starts a server in its own session with its console in the runtime
+     * directory
+     *
+     * @param command List - the command that runs the server
+     * @param runtimeDir String - the runtime directory
+     * @param launchId String - the server ID the server is started with
+     * @return the process
+     * @throws IOException if the console files or the process could not be
+     * created
+     */
+    public static DetachedProcess start(List<String> command, String runtimeDir, String launchId) throws IOException {
+        File directory = new File(runtimeDir, launchId);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getPath());
+        }
+        File in = new File(directory, "in");
+        File out = new File(directory, "out");
+        for (String name : FILES) {
+            Files.deleteIfExists(new File(directory, name).toPath());
+        }
+        run("mkfifo", "-m", "600", in.getPath(), out.getPath() + ".pipe");
+        if (!out.createNewFile()) {
+            throw new IOException("Could not create " + out.getPath());
+        }
+
+        List<String> shim = new ArrayList<>(command.size() + 7);
+        shim.add("setsid");
+        shim.add("sh");
+        shim.add("-c");
+        shim.add(SHIM);
+        shim.add("shim");
+        shim.add(in.getPath());
+        shim.add(out.getPath());
+        shim.add(String.valueOf(ROTATE_SIZE));
+        shim.addAll(command);
+        ProcessBuilder pb = new ProcessBuilder(shim);
+        pb.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        // Only errors of the shim itself end up here
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(directory, "shim.log")));
+        pb.redirectErrorStream(true);
+        Process child = pb.start();
+        return new DetachedProcess(launchId, ProcStat.getPid(child), directory, child, 0);
+    }
+
+    /**
+     * Attaches to a server that was started before the bot restarted
+     *
+     * @param runtimeDir String - the runtime directory
+     * @param launchId String - the server ID the server was started with
+     * @param pid long - the process ID the server had
+     * @return the process, or null if the server is not running anymore
+     */
+    public static DetachedProcess attach(String runtimeDir, String launchId, long pid) {
+        File directory = new File(runtimeDir, launchId);
+        File out = new File(directory, "out");
+        if (pid <= 0 || !out.isFile() || !isServerProcess(pid, launchId)) {
+            return null;
+        }
+        try {
+            // Output from while the bot was gone has already happened, skip it
+            return new DetachedProcess(launchId, pid, directory, null, out.length());
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not attach to server " + launchId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks if a process is running with the server ID on its command line
+     *
+     * @param pid long - the process ID
+     * @param launchId String - the server ID the server was started with
+     * @return true if the process is that server
+     */
+    static boolean isServerProcess(long pid, String launchId) {
+        File cmdline = new File("/proc/" + pid + "/cmdline");
+        try {
+            return cmdline.exists() && new String(Files.readAllBytes(cmdline.toPath()), StandardCharsets.ISO_8859_1).contains(launchId);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a signal to a process
+     *
+     * @param pid long - the process ID
+     * @param signal String - the signal name (ex: TERM)
+     * @throws IOException
+     */
+    static void signal(long pid, String signal) throws IOException {
+        new ProcessBuilder("kill", "-" + signal, String.valueOf(pid)).start();
+    }
+
+    /**
+     * Runs a command and waits for it to succeed
+     */
+    private static void run(String... command) throws IOException {
+        try {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            if (!p.waitFor(5, TimeUnit.SECONDS) || p.exitValue() != 0) {
+                throw new IOException(command[0] + " failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(command[0] + " was interrupted");
+        }
+    }
+
+    /**
+     * Removes the console files, once the server has exited
+     */
+    public void cleanup() {
+        if (isAlive()) {
+            return;
+        }
+        try {
+            input.close();
+            output.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (String name : FILES) {
+            new File(directory, name).delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * @return the server ID the server was started with
+     */
+    public String getLaunchId() {
+        return launchId;
+    }
+
+    /**
+     * @return the operating system ID of the process; this is Process.pid()
+     * from Java 9
+     */
+    public long pid() {
+        return pid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return input;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return output;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        if (child != null) {
+            return child.waitFor();
+        }
+        while (isAlive()) {
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return exitValue();
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+        if (child != null) {
+            return child.waitFor(timeout, unit);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (isAlive()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * @return the exit code, or -1 if the process was not started by this bot
+     * and its exit code is not known
+     */
+    @Override
+    public int exitValue() {
+        if (child != null) {
+            return child.exitValue();
+        }
+        if (isAlive()) {
+            throw new IllegalThreadStateException("process has not exited");
+        }
+        return -1;
+    }
+
+    @Override
+    public void destroy() {
+        if (child != null) {
+            child.destroy();
+            return;
+        }
+        try {
+            signal(pid, "TERM");
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not stop process " + pid + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Process destroyForcibly() {
+        if (child != null) {
+            child.destroyForcibly();
+            return this;
+        }
+        try {
+            signal(pid, "KILL");
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not kill process " + pid + ": " + e.getMessage());
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isAlive() {
+        if (child != null) {
+            return child.isAlive();
+        }
+        return isServerProcess(pid, launchId);
+    }
+
+    /**
+     * Reads the output file as it grows and follows it when it is rotated,
+     * and reports the end of the stream once the process has exited and
+     * everything has been read
+     */
+    private class TailInputStream extends InputStream {
+
+        /**
+         * The output file
+         */
+        private final File out;
+
+        /**
+         * Where the output file is moved when it is rotated
+         */
+        private final File rotated;
+
+        /**
+         * The file being read, which may have been moved to out.1 since
+         */
+        private RandomAccessFile file;
+
+        /**
+         * Identity of the file being read
+         */
+        private Object fileKey;
+
+        /**
+         * When the server was first seen to have exited, 0 while it runs
+         */
+        private long exited;
+
+        /**
+         * Constructor
+         */
+        TailInputStream(File out, long offset) throws IOException {
+            this.out = out;
+            this.rotated = new File(out.getPath() + ".1");
+            while (!open(out)) {
+                // Being rotated
+            }
+            file.seek(Math.min(offset, file.length()));
+        }
+
+        /**
+         * Opens a file, unless it is moved while it is being opened
+         *
+         * @return true if it was opened
+         */
+        private boolean open(File name) throws IOException {
+            Object before = key(name);
+            if (before == null) {
+                return false;
+            }
+            RandomAccessFile opened;
+            try {
+                opened = new RandomAccessFile(name, "r");
+            } catch (FileNotFoundException e) {
+                return false;
+            }
+            if (!before.equals(key(name))) {
+                opened.close();
+                return false;
+            }
+            file = opened;
+            fileKey = before;
+            return true;
+        }
+
+        /**
+         * Goes on to the file that was written after the one that has been
+         * read to its end. That is out.1 unless the file just read is out.1;
+         * if the bot fell behind by more than one rotation the files in
+         * between are gone.
+         */
+        private void next() throws IOException {
+            file.close();
+            Object finished = fileKey;
+            while (true) {
+                Object previous = key(rotated);
+                File name = finished.equals(previous) || previous == null ? out : rotated;
+                if (open(name)) {
+                    // If it was rotated meanwhile the file that was opened may be too new
+                    if (Objects.equals(previous, key(rotated))) {
+                        return;
+                    }
+                    file.close();
+                }
+            }
+        }
+
+        /**
+         * @return the identity of a file, or null if it does not exist
+         */
+        private Object key(File name) throws IOException {
+            try {
+                return Files.readAttributes(name.toPath(), BasicFileAttributes.class).fileKey();
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int n = file.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                Object current = key(out);
+                if (current != null && !current.equals(fileKey)) {
+                    // Rotated, nothing is written to the old file anymore once it is read to the end
+                    n = file.read(b, off, len);
+                    if (n > 0) {
+                        return n;
+                    }
+                    next();
+                    continue;
+                }
+                if (!isAlive()) {
+                    // The output loop marks when it has written everything
+                    if (exited == 0) {
+                        exited = System.currentTimeMillis();
+                    }
+                    boolean done = new File(out.getPath() + ".done").exists();
+                    if (done || System.currentTimeMillis() - exited > DRAIN_TIMEOUT) {
+                        n = file.read(b, off, len);
+                        return n > 0 ? n : -1;
+                    }
+                }
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while reading server output");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
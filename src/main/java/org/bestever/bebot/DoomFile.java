@@ -15,11 +15,9 @@
 package org.bestever.bebot;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * This class encapsulated wads, but also has methods for PK3's
@@ -61,6 +59,16 @@ public class DoomFile {
      */
     public String[] levelNames;
 
+    /**
+     * The lump names packed into longs, in directory order
+     */
+    private long[] lumpKeys;
+
+    /**
+     * Finds lumps by name, the last lump with a name wins
+     */
+    private LumpIndex lumpIndex;
+
     /**
      * If theres a location finding error
      */
@@ -72,6 +80,16 @@ public class DoomFile {
      */
     public static final String[] lumpMapNames = {"THINGS", "LINEDEFS", "SIDEDEFS", "VERTEXES", "SEGS", "SSECTORS", "REJECT", "BLOCKMAP", "GL_VERT", "GL_SEGS", "GL_SSECT", "GL_NODES", "TEXTMAP", "ZNODES", "DIALOGUE", "ENDMAP"};
 
+    /**
+     * Index of the lumps that belong to a map, used to find map markers
+     */
+    private static final LumpIndex MAP_LUMPS = LumpIndex.of(lumpMapNames);
+
+    /**
+     * Packed "GL_", the prefix of GL node lumps
+     */
+    private static final long GL_PREFIX = LumpIndex.pack("GL_");
+
     /**
      * Accepts a path to the wad file and will parse it upon invoking the
      * constructor
@@ -81,45 +99,86 @@ public class DoomFile {
      */
     public DoomFile(String path) throws IOException {
         byte[] wadData = Utility.getByteArrayFromFile(path);
-        this.headerType = Utility.bytesToString(Arrays.copyOfRange(wadData, 0, 4));
-        this.headerTotalLumps = Utility.bytesToInt(wadData[4], wadData[5], wadData[6], wadData[7]);
-        this.headerPointerToDirectory = Utility.bytesToInt(wadData[8], wadData[9], wadData[10], wadData[11]);
+        if (wadData.length < 12) {
+            throw new IOException("File is too small to be a wad: " + path);
+        }
+        this.headerType = Utility.getName(wadData, 0, 4);
+        this.headerTotalLumps = Utility.getIntLE(wadData, 4);
+        this.headerPointerToDirectory = Utility.getIntLE(wadData, 8);
+        if (this.headerTotalLumps < 0 || this.headerPointerToDirectory < 0 || this.headerPointerToDirectory > wadData.length) {
+            throw new IOException("Wad header is corrupt: " + path);
+        }
         System.out.println("Wad data: " + this.headerType + ", " + this.headerTotalLumps + " total lumps, " + this.headerPointerToDirectory + " directory offset");
         parseDirectory(wadData);
         parseLevelNames(wadData);
-        System.gc(); // There may be a fair amount of junk to remove after getting the level names
     }
 
     /**
      * Given the path to a pk3, this function will open the pk3 file and get the
-     * maps.
+     * maps, see Pk3Scanner.findMaps().
      *
      * @param pathToFile The path to (and including) the file
      * @return A String designed for running (ex: "+addmap zdmap01 +addmap
      * zdmap02")
      */
     public static String getPK3MapNames(String pathToFile) {
-        ZipFile zip;
+        List<String> maps;
         try {
-            zip = new ZipFile(pathToFile);
-        } catch (IOException e2) {
+            maps = Pk3Scanner.findMaps(pathToFile);
+        } catch (IOException e) {
             return null;
         }
-        Enumeration<? extends ZipEntry> e = zip.entries();
-        String mapNames = "";
-        while (e.hasMoreElements()) {
-            ZipEntry ze = (ZipEntry) e.nextElement();
-            String temp;
-            if ((!ze.isDirectory()) && (ze.getName().toLowerCase().startsWith("maps/"))) {
-                temp = ze.getName().substring(5);
-                mapNames += "+addmap " + temp.substring(0, temp.length() - 4) + " ";
+        StringBuilder mapNames = new StringBuilder(maps.size() * 16);
+        for (String map : maps) {
+            mapNames.append("+addmap ").append(map).append(' ');
+        }
+        return mapNames.toString();
+    }
+
+    /**
+     * Gets the maps of a wad by reading only its header and directory, so
+     * the lump data is never loaded
+     *
+     * @param path String - path to the wad
+     * @return the map names, sorted
+     * @throws IOException if the file cannot be read or is not a wad
+     */
+    public static String[] readLevelNames(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            byte[] header = new byte[12];
+            if (raf.length() < header.length) {
+                throw new IOException("File is too small to be a wad: " + path);
+            }
+            raf.readFully(header);
+            int lumps = Utility.getIntLE(header, 4);
+            long directory = Utility.getIntLE(header, 8) & 0xFFFFFFFFL;
+            if (lumps < 0 || directory + lumps * 16L > raf.length()) {
+                throw new IOException("Wad header is corrupt: " + path);
             }
+            byte[] data = new byte[lumps * 16];
+            raf.seek(directory);
+            raf.readFully(data);
+            return findLevelNames(data, lumps);
         }
-        try {
-            zip.close();
-        } catch (IOException e1) {
+    }
+
+    /**
+     * Finds the maps in a raw wad directory
+     *
+     * @param directory byte[] - the directory entries, 16 bytes each
+     * @param lumps int - number of entries
+     * @return the map names, sorted and without duplicates
+     */
+    static String[] findLevelNames(byte[] directory, int lumps) {
+        String[] names = new String[lumps];
+        long[] keys = new long[lumps];
+        int[] sizes = new int[lumps];
+        for (int i = 0, off = 0; i < lumps; i++, off += 16) {
+            sizes[i] = Utility.getIntLE(directory, off + 4);
+            names[i] = Utility.getName(directory, off + 8, 8);
+            keys[i] = LumpIndex.pack(directory, off + 8);
         }
-        return mapNames;
+        return findLevelNames(names, keys, sizes);
     }
 
     /**
@@ -128,36 +187,34 @@ public class DoomFile {
      * @param wadData The files data in bytes
      */
     private void parseDirectory(byte[] wadData) {
+        // A truncated directory keeps the lumps that could be read
+        this.headerTotalLumps = Math.min(this.headerTotalLumps, (wadData.length - this.headerPointerToDirectory) / 16);
         this.fileOffset = new int[this.headerTotalLumps];
         this.fileSize = new int[this.headerTotalLumps];
         this.lumpName = new String[this.headerTotalLumps];
-        int c = 0;
+        this.lumpKeys = new long[this.headerTotalLumps];
+        this.lumpIndex = new LumpIndex(this.headerTotalLumps);
         System.out.println("Pointer: " + this.headerPointerToDirectory + ", total length: " + wadData.length + ", difference = " + (wadData.length - this.headerPointerToDirectory));
-        for (int off = this.headerPointerToDirectory; off < wadData.length; off += 16) {
-            this.fileOffset[c] = Utility.bytesToInt(wadData[off], wadData[(off + 1)], wadData[(off + 2)], wadData[(off + 3)]);
-            this.fileSize[c] = Utility.bytesToInt(wadData[(off + 4)], wadData[(off + 5)], wadData[(off + 6)], wadData[(off + 7)]);
-            this.lumpName[c] = new String(Arrays.copyOfRange(wadData, off + 8, off + 16)).trim();
-            c++;
+        int off = this.headerPointerToDirectory;
+        for (int c = 0; c < this.headerTotalLumps; c++, off += 16) {
+            this.fileOffset[c] = Utility.getIntLE(wadData, off);
+            this.fileSize[c] = Utility.getIntLE(wadData, off + 4);
+            this.lumpName[c] = Utility.getName(wadData, off + 8, 8);
+            this.lumpKeys[c] = LumpIndex.pack(wadData, off + 8);
+            this.lumpIndex.put(this.lumpKeys[c], c);
         }
     }
 
     /**
      * Will search through the wad to find the offset of the lump's location
      *
-     * @param lumpname The name of the lump to find (it is converted to
-     * uppercase in the function)
+     * @param lumpname The name of the lump to find (case insensitive, if
+     * there is more than one the last one is used)
      * @return The index of the lump
      */
     public int findLumpLocation(String lumpname) {
-        String name = lumpname.toUpperCase();
-        int index = -1;
-        for (int i = 0; i < this.lumpName.length; i++) {
-            if (this.lumpName[i].equals(name)) {
-                index = i;
-                break;
-            }
-        }
-        if (index != -1) {
+        int index = this.lumpIndex.get(lumpname);
+        if (index != LumpIndex.NOT_FOUND) {
             return this.fileOffset[index];
         }
         System.out.println("Could not find lump name = " + lumpname);
@@ -170,23 +227,40 @@ public class DoomFile {
      * @param wadData The data of the wad
      */
     private void parseLevelNames(byte[] wadData) {
-        String[] temp = new String[this.lumpName.length];
-        Arrays.fill(temp, "");
+        this.levelNames = findLevelNames(this.lumpName, this.lumpKeys, this.fileSize);
+    }
+
+    /**
+     * Finds the maps in a wad directory. A map starts with an empty marker
+     * lump followed by a map lump, so each lump is looked up in the map lump
+     * index only once.
+     *
+     * @param names String[] - the lump names
+     * @param keys long[] - the packed lump names
+     * @param sizes int[] - the lump sizes
+     * @return the map names, sorted and without duplicates
+     */
+    static String[] findLevelNames(String[] names, long[] keys, int[] sizes) {
+        String[] temp = new String[names.length];
         int tempIndex = 0;
-        List<String> listMapNames = Arrays.asList(lumpMapNames);
-        for (int i = 0; i < this.lumpName.length; i++) {
-            if ((i != this.lumpName.length - 1) && (this.fileSize[i] == 0) && (listMapNames.contains(this.lumpName[(i + 1)])) && (!listMapNames.contains(this.lumpName[i])) && (!this.lumpName[i].startsWith("GL_"))) {
-                temp[tempIndex] = this.lumpName[i];
-                tempIndex++;
+        boolean isMapLump = keys.length > 0 && MAP_LUMPS.contains(keys[0]);
+        for (int i = 0; i < keys.length - 1; i++) {
+            boolean nextIsMapLump = MAP_LUMPS.contains(keys[i + 1]);
+            if (sizes[i] == 0 && nextIsMapLump && !isMapLump && !LumpIndex.startsWith(keys[i], GL_PREFIX, 3)) {
+                temp[tempIndex++] = names[i];
             }
+            isMapLump = nextIsMapLump;
         }
-        if (tempIndex == 0) {
-            this.levelNames = new String[0];
-            return;
+        Arrays.sort(temp, 0, tempIndex, String.CASE_INSENSITIVE_ORDER);
+
+        // A map that is in the wad more than once is only listed once
+        int unique = 0;
+        for (int i = 0; i < tempIndex; i++) {
+            if (unique == 0 || !temp[i].equalsIgnoreCase(temp[unique - 1])) {
+                temp[unique++] = temp[i];
+            }
         }
-        this.levelNames = new String[tempIndex];
-        System.arraycopy(temp, 0, this.levelNames, 0, tempIndex);
-        Arrays.sort(this.levelNames);
+        return Arrays.copyOf(temp, unique);
     }
 
     /**
@@ -214,6 +288,8 @@ public class DoomFile {
         this.fileOffset = null;
         this.fileSize = null;
         this.lumpName = null;
+        this.lumpKeys = null;
+        this.lumpIndex = null;
         this.levelNames = null;
     }
 
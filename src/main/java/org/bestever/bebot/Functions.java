@@ -156,22 +156,7 @@ public class Functions {
      * @return
      */
     public static boolean checkUserMask(User user, String userMask) {
-        String mask[] = userMask.split("[\\!\\@]", 3);
-        if (mask.length == 3) {
-            String gUser = RegexGlobber.createRegexFromGlob(mask[0]);
-            String gLogin = RegexGlobber.createRegexFromGlob(mask[1]);
-            String gHost = RegexGlobber.createRegexFromGlob(mask[2]);
-            System.out.println("gUser: " + gUser);
-            System.out.println("gLogin: " + gLogin);
-            System.out.println("gHost: " + gHost);
-            System.out.println("rUser: " + user.getNick());
-            System.out.println("rLogin: " + user.getLogin());
-            System.out.println("rHost: " + user.getHostmask());
-            return (user.getNick().matches(gUser)
-                    && user.getLogin().matches(gLogin)
-                    && user.getHostmask().matches(gHost));
-        }
-        return false;
+        return HostmaskMatcher.forMask(userMask).matches(user.getNick(), user.getLogin(), user.getHostmask());
     }
 
     /**
@@ -183,16 +168,7 @@ public class Functions {
      * @return
      */
     public static boolean checkUserMask(String nick, String login, String host, String userMask) {
-        String mask[] = userMask.split("[\\!\\@]", 3);
-        if (mask.length == 3) {
-            String gUser = RegexGlobber.createRegexFromGlob(mask[0]);
-            String gLogin = RegexGlobber.createRegexFromGlob(mask[1]);
-            String gHost = RegexGlobber.createRegexFromGlob(mask[2]);
-            return (nick.matches(gUser)
-                    && login.matches(gLogin)
-                    && host.matches(gHost));
-        }
-        return false;
+        return HostmaskMatcher.forMask(userMask).matches(nick, login, host);
     }
 
     /**
@@ -0,0 +1,364 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import com.google.common.base.Joiner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns the key=value options of a .host command into a server. The command
+ * is tokenized in a single pass and every option is parsed before anything is
+ * checked against the filesystem or the database, so all wads are validated
+ * with one query and every problem is reported at once.
+ */
+public class HostCommandCompiler {
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public HostCommandCompiler(Bot bot) {
+        this.bot = bot;
+    }
+
+    /**
+     * The outcome of compiling a host command
+     */
+    public static class Result {
+
+        /**
+         * The server the command describes
+         */
+        private final Server server;
+
+        /**
+         * Everything that is wrong with the command
+         */
+        private final List<String> errors;
+
+        /**
+         * Things the user should know that do not stop the server from being
+         * hosted
+         */
+        private final List<String> warnings;
+
+        /**
+         * Constructor
+         */
+        private Result(Server server, List<String> errors, List<String> warnings) {
+            this.server = server;
+            this.errors = Collections.unmodifiableList(errors);
+            this.warnings = Collections.unmodifiableList(warnings);
+        }
+
+        /**
+         * @return the server, only usable if there are no errors
+         */
+        public Server getServer() {
+            return server;
+        }
+
+        /**
+         * @return every error found in the command
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return warnings about the command
+         */
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        /**
+         * @return true if the server can be hosted
+         */
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+    }
+
+    /**
+     * Parses and validates the options of a host command into the server
+     *
+     * @param server Server - a server with the user's details filled in, the
+     * options are applied to it
+     * @param message String - the full host command
+     * @return the result
+     */
+    public Result compile(Server server, String message) {
+        List<String> errors = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        List<String> wads = new ArrayList<>();
+
+        // Tokenize key=value and key="quoted value" options in one pass
+        int length = message.length();
+        int i = 0;
+        while (i < length) {
+            if (!isWordChar(message.charAt(i))) {
+                i++;
+                continue;
+            }
+            int keyStart = i;
+            while (i < length && isWordChar(message.charAt(i))) {
+                i++;
+            }
+            if (i >= length || message.charAt(i) != '=') {
+                continue;
+            }
+            String key = message.substring(keyStart, i).toLowerCase();
+            i++;
+            int quotes = i;
+            while (i < length && message.charAt(i) == '"') {
+                i++;
+            }
+            String value;
+            int closing = quotes < i ? message.indexOf('"', i) : -1;
+            if (closing > i) {
+                value = message.substring(i, closing);
+                i = closing;
+            } else {
+                int valueStart = i;
+                while (i < length && !Character.isWhitespace(message.charAt(i))) {
+                    i++;
+                }
+                value = message.substring(valueStart, i);
+            }
+            while (i < length && message.charAt(i) == '"') {
+                i++;
+            }
+            if (!value.isEmpty()) {
+                applyOption(server, key, value, wads, errors, warnings);
+            }
+        }
+
+        // Nothing below this point depends on the order of the options
+        validate(server, wads, errors, warnings);
+        return new Result(server, errors, warnings);
+    }
+
+    /**
+     * Returns if the character can be part of an option name
+     *
+     * @param c char - the character
+     * @return true if it is a letter, digit or underscore
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Applies a single option to the server
+     *
+     * @param server Server - the server
+     * @param key String - lowercase option name
+     * @param value String - option value
+     * @param wads List - collects the wads to validate
+     * @param errors List - collects errors
+     * @param warnings List - collects warnings
+     */
+    private void applyOption(Server server, String key, String value, List<String> wads, List<String> errors, List<String> warnings) {
+        switch (key) {
+            case "autorestart":
+                server.auto_restart = Server.handleTrue(value);
+                break;
+            case "binary":
+                switch (value.toLowerCase()) {
+                    case "zandronum":
+                        break;
+                    case "kpatch":
+                        server.executableType = bot.cfg_data.bot_executable_kpatch;
+                        break;
+                    case "developer":
+                        warnings.add("Important: Developer repositories may be completely broken, will not run, or have many bugs. Use at your own risk! If it keeps crashing, it's probably the repository and there is nothing we can do to solve that.");
+                        server.executableType = bot.cfg_data.bot_executable_developerrepository;
+                        break;
+                    default:
+                        errors.add("Invalid binary (" + value + "); please use 'kpatch' or 'developer' to use custom binaries (ex: binary=kpatch), or remove it to use default Zandronum.");
+                        break;
+                }
+                break;
+            case "buckshot":
+                server.buckshot = Server.handleTrue(value);
+                break;
+            case "compatflags":
+                server.compatflags = parseFlags(value, "compatflags", errors);
+                break;
+            case "compatflags2":
+                server.compatflags2 = parseFlags(value, "compatflags2", errors);
+                break;
+            case "config":
+                server.config = Functions.cleanInputFile(value.toLowerCase());
+                break;
+            case "data":
+            case "stdata":
+                server.enable_skulltag_data = Server.handleTrue(value);
+                break;
+            case "dmflags":
+                server.dmflags = parseFlags(value, "dmflags", errors);
+                break;
+            case "dmflags2":
+                server.dmflags2 = parseFlags(value, "dmflags2", errors);
+                break;
+            case "dmflags3":
+                server.dmflags3 = parseFlags(value, "dmflags3", errors);
+                break;
+            case "duellimit":
+                server.duellimit = parseNumber(value, key, server.duellimit, errors);
+                break;
+            case "fraglimit":
+                server.fraglimit = parseNumber(value, key, server.fraglimit, errors);
+                break;
+            case "gamemode":
+                server.gamemode = Server.getGamemode(value);
+                break;
+            case "hostname":
+                server.servername = value;
+                break;
+            case "instagib":
+                server.instagib = Server.handleTrue(value);
+                break;
+            case "maprotation":
+                server.maprotation = Server.handleTrue(value);
+                break;
+            case "randommaprotation":
+                server.randommaprotation = Server.handleTrue(value);
+                break;
+            case "iwad":
+                server.iwad = Server.getIwad(Functions.cleanInputFile(value));
+                break;
+            case "mapwad":
+                server.mapwads = Server.addWads(value);
+                break;
+            case "map":
+            case "maps":
+                server.maplist = Server.addMaps(value);
+                break;
+            case "maxplayers":
+                server.maxplayers = parseNumber(value, key, server.maxplayers, errors);
+                break;
+            case "port":
+                if (Functions.checkValidPort(value)) {
+                    server.temp_port = Integer.parseInt(value);
+                    if (bot.getServer(server.temp_port) != null) {
+                        errors.add("Port " + server.temp_port + " is already in use.");
+                    }
+                } else {
+                    errors.add("You did not input a valid port.");
+                }
+                break;
+            case "skill":
+                server.skill = Server.handleSkill(value);
+                if (server.skill == -1) {
+                    errors.add("Skill must be between 0-4");
+                }
+                break;
+            case "timelimit":
+                server.timelimit = parseNumber(value, key, server.timelimit, errors);
+                break;
+            case "wad":
+                wads.addAll(Arrays.asList(Server.addWads(value)));
+                break;
+        }
+    }
+
+    /**
+     * Parses a dmflags/compatflags value
+     *
+     * @param value String - the value
+     * @param name String - the option name, used in the error
+     * @param errors List - collects errors
+     * @return the flags, or 0 if they could not be parsed
+     */
+    private static int parseFlags(String value, String name, List<String> errors) {
+        int flags = Server.handleGameFlags(value);
+        if (flags == Server.FLAGS_ERROR) {
+            errors.add("Problem with parsing " + name);
+            return 0;
+        }
+        return flags;
+    }
+
+    /**
+     * Parses a numeric value
+     *
+     * @param value String - the value
+     * @param name String - the option name, used in the error
+     * @param current int - value to keep if it cannot be parsed
+     * @param errors List - collects errors
+     * @return the number
+     */
+    private static int parseNumber(String value, String name, int current, List<String> errors) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            errors.add(name + " must be a number");
+            return current;
+        }
+    }
+
+    /**
+     * Checks the parsed server against the filesystem and the database, wads
+     * are checked all at once in parallel
+     *
+     * @param server Server - the server
+     * @param wads List - the wads that were given
+     * @param errors List - collects errors
+     * @param warnings List - collects warnings
+     */
+    private void validate(Server server, List<String> wads, List<String> errors, List<String> warnings) {
+        if (server.iwad == null) {
+            errors.add("You are missing an iwad, or have specified an incorrect iwad. You can add it by appending: iwad=your_iwad");
+        }
+        if (server.gamemode == null) {
+            errors.add("You are missing the gamemode, or have specified an incorrect gamemode. You can add it by appending: gamemode=your_gamemode");
+        }
+        if (server.servername == null) {
+            errors.add("You are missing the hostname, or your hostname syntax is wrong. You can add it by appending: hostname=\"Your Server Name\"");
+        }
+        if (server.config != null && !Functions.fileExists(bot.cfg_data.bot_cfg_directory_path + server.config)) {
+            errors.add("Config file '" + server.config + "' does not exist.");
+        }
+
+        // Check the wads and read their maps, all at the same time
+        WadValidator.Report report = bot.wadValidator.validate(wads, server.iwad);
+        server.wads.addAll(report.getWads());
+        errors.addAll(report.getErrors());
+
+        // The maps can only be checked if every file could be read
+        if (errors.isEmpty() && report.isMapsComplete()) {
+            List<String> missing = new ArrayList<>();
+            for (String map : server.maplist) {
+                if (!report.hasMap(map)) {
+                    missing.add(map);
+                }
+            }
+            if (!missing.isEmpty()) {
+                warnings.add("Warning: these maps were not found in the iwad or wads: " + Joiner.on(", ").join(missing));
+            }
+        }
+    }
+}
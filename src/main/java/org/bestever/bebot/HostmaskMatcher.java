@@ -0,0 +1,200 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Matches users against nick!login@host masks, where * matches any number of
+ * characters and ? matches exactly one. Each part of the mask is compiled
+ * once into a small glob matcher that does not use regular expressions, and
+ * compiled masks are kept in a bounded LRU cache so checking the same mask
+ * again only costs the comparison itself.
+ */
+public class HostmaskMatcher {
+
+    /**
+     * Number of compiled masks that are kept
+     */
+    private static final int CACHE_SIZE = 256;
+
+    /**
+     * Compiled masks by mask, least recently used first
+     */
+    private static final Map<String, HostmaskMatcher> CACHE = new LinkedHashMap<String, HostmaskMatcher>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostmaskMatcher> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The part matches anything
+     */
+    private static final int ANY = 0;
+
+    /**
+     * The part has no wildcards
+     */
+    private static final int EXACT = 1;
+
+    /**
+     * The part has wildcards
+     */
+    private static final int GLOB = 2;
+
+    /**
+     * The nick, login and host parts of the mask, null if the mask is not
+     * valid
+     */
+    private final String[] parts;
+
+    /**
+     * How each part is matched
+     */
+    private final int[] kinds;
+
+    /**
+     * Compiles a mask
+     *
+     * @param mask String - the mask
+     */
+    private HostmaskMatcher(String mask) {
+        // Same split as before: the first two ! or @ separate the parts
+        int first = indexOfSeparator(mask, 0);
+        int second = first < 0 ? -1 : indexOfSeparator(mask, first + 1);
+        if (second < 0) {
+            this.parts = null;
+            this.kinds = null;
+            return;
+        }
+        this.parts = new String[]{mask.substring(0, first), mask.substring(first + 1, second), mask.substring(second + 1)};
+        this.kinds = new int[3];
+        for (int i = 0; i < 3; i++) {
+            String part = parts[i];
+            if (part.equals("*")) {
+                kinds[i] = ANY;
+            } else if (part.indexOf('*') < 0 && part.indexOf('?') < 0) {
+                kinds[i] = EXACT;
+            } else {
+                kinds[i] = GLOB;
+            }
+        }
+    }
+
+    /**
+     * Returns the compiled matcher of a mask
+     *
+     * @param mask String - the mask (ex: *!*@*.example.com)
+     * @return the matcher
+     */
+    public static HostmaskMatcher forMask(String mask) {
+        synchronized (CACHE) {
+            HostmaskMatcher matcher = CACHE.get(mask);
+            if (matcher == null) {
+                matcher = new HostmaskMatcher(mask);
+                CACHE.put(mask, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * Checks a user against the mask
+     *
+     * @param nick String - the user's nick
+     * @param login String - the user's login
+     * @param host String - the user's host
+     * @return true if every part matches, false if not or if the mask is not
+     * valid
+     */
+    public boolean matches(String nick, String login, String host) {
+        return parts != null
+                && matchPart(0, nick)
+                && matchPart(1, login)
+                && matchPart(2, host);
+    }
+
+    /**
+     * Checks one part of the mask
+     *
+     * @param i int - the part
+     * @param text String - what to match it against
+     * @return true if it matches
+     */
+    private boolean matchPart(int i, String text) {
+        switch (kinds[i]) {
+            case ANY:
+                return true;
+            case EXACT:
+                return parts[i].equals(text);
+            default:
+                return globMatches(parts[i], text);
+        }
+    }
+
+    /**
+     * Matches a glob, backtracking only to the last * seen
+     *
+     * @param glob String - the glob
+     * @param text String - the text
+     * @return true if the whole text matches
+     */
+    static boolean globMatches(String glob, String text) {
+        int g = 0;
+        int t = 0;
+        int star = -1;
+        int mark = 0;
+        int globLength = glob.length();
+        int textLength = text.length();
+        while (t < textLength) {
+            char c = g < globLength ? glob.charAt(g) : 0;
+            if (g < globLength && c == '*') {
+                star = g++;
+                mark = t;
+            } else if (g < globLength && (c == '?' || c == text.charAt(t))) {
+                g++;
+                t++;
+            } else if (star >= 0) {
+                g = star + 1;
+                t = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (g < globLength && glob.charAt(g) == '*') {
+            g++;
+        }
+        return g == globLength;
+    }
+
+    /**
+     * Finds the next ! or @
+     *
+     * @param mask String - the mask
+     * @param from int - where to start
+     * @return the index, or -1
+     */
+    private static int indexOfSeparator(String mask, int from) {
+        for (int i = from; i < mask.length(); i++) {
+            char c = mask.charAt(i);
+            if (c == '!' || c == '@') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
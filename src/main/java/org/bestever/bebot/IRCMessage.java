@@ -10,9 +10,15 @@ public class IRCMessage {
     public String message;
     public boolean ctcpResponse;
 
+    /**
+     * Trace of the command this message answers, released once it is sent
+     */
+    public Trace trace;
+
     public IRCMessage(String target, String message, boolean ctcpResponse) {
         this.target = target;
         this.message = message;
         this.ctcpResponse = ctcpResponse;
+        this.trace = Trace.handOff();
     }
 }
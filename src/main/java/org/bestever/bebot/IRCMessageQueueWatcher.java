@@ -1,5 +1,7 @@
 package org.bestever.bebot;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
@@ -22,6 +24,12 @@ public class IRCMessageQueueWatcher {
     public IRCMessageQueueWatcher(final Bot bot) {
         this.bot = bot;
         this.timer = new Timer();
+        Metrics.gauge("irc.queue", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return queue.size();
+            }
+        });
         startWatcher();
     }
 
@@ -43,6 +51,10 @@ public class IRCMessageQueueWatcher {
             } else {
                 bot.blockingIRCMessage(ircMessage.target, ircMessage.message);
             }
+            if (ircMessage.trace != null) {
+                ircMessage.trace.stage("irc reply");
+                ircMessage.trace.release();
+            }
         }
     }
 
@@ -51,13 +63,25 @@ public class IRCMessageQueueWatcher {
     }
 
     public String clearQueue() {
-        int size = queue.size();
-        if (!queue.isEmpty()) {
-            queue.clear();
+        List<IRCMessage> removed = new ArrayList<>();
+        queue.drainTo(removed);
+        int size = removed.size();
+        for (IRCMessage ircMessage : removed) {
+            if (ircMessage.trace != null) {
+                ircMessage.trace.release();
+            }
         }
         return "Elements removed from message queue: " + size;
     }
 
+    /**
+     *
+     * @return the number of messages waiting to be sent
+     */
+    public int size() {
+        return queue.size();
+    }
+
     /**
      *
      * @param ircMessage
@@ -0,0 +1,385 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import com.google.common.base.Joiner;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Holds everything needed to launch a server with a given configuration: the
+ * executable, its arguments, the resolved wad paths and the wad page. Plans
+ * never change once built and are cached by the hash of their arguments, so
+ * hosting the same configuration again (such as loading the same slot) reuses
+ * the plan and its wad page; the arguments are still assembled to find it. A
+ * server keeps its plan when it is restarted.
+ */
+public final class LaunchPlan {
+
+    /**
+     * How many plans are kept in the cache
+     */
+    private static final int CACHE_SIZE = 64;
+
+    /**
+     * Index of the port in the run command, after the executable and -port
+     */
+    static final int PORT_INDEX = 2;
+
+    /**
+     * Recently built plans, keyed by their hash
+     */
+    private static final Map<String, LaunchPlan> cache = new LinkedHashMap<String, LaunchPlan>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LaunchPlan> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The executable that runs the server
+     */
+    private final String executable;
+
+    /**
+     * Arguments that come from the server configuration
+     */
+    private final List<String> arguments;
+
+    /**
+     * The wads that are loaded, including skulltag data and extra wads
+     */
+    private final List<String> wads;
+
+    /**
+     * Full paths of the iwad and every wad that is loaded
+     */
+    private final List<String> files;
+
+    /**
+     * The key of the wad page created for these wads
+     */
+    private final String wadPageKey;
+
+    /**
+     * The URL of the wad page
+     */
+    private final String website;
+
+    /**
+     * Hash of the arguments, used as the cache key
+     */
+    private final String hash;
+
+    /**
+     * Constructor
+     */
+    private LaunchPlan(String executable, List<String> arguments, List<String> wads, List<String> files, String wadPageKey, String website, String hash) {
+        this.executable = executable;
+        this.arguments = Collections.unmodifiableList(arguments);
+        this.wads = Collections.unmodifiableList(wads);
+        this.files = Collections.unmodifiableList(files);
+        this.wadPageKey = wadPageKey;
+        this.website = website;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the plan for the server's configuration, building it only if an
+     * identical configuration has not been launched recently
+     *
+     * @param server Server - the server to build a plan for
+     * @param bot Bot - the bot
+     * @return the launch plan
+     */
+    public static LaunchPlan getPlan(Server server, Bot bot) {
+        ConfigData cfg = bot.cfg_data;
+        List<String> wads = new ArrayList<>();
+        if (server.enable_skulltag_data) {
+            // Add the skulltag_* data files first since they need to be accessed by other wads
+            wads.add("skulltag_actors_1-1-1.pk3");
+            wads.add("skulltag_data_126.pk3");
+        }
+
+        // Add the extra wads and clean duplicates
+        wads.addAll(server.wads);
+        wads.addAll(cfg.bot_extra_wads);
+        wads = Functions.removeDuplicateWads(new ArrayList<>(wads));
+
+        List<String> files = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        addParameter(args, "+exec", cfg.bot_cfg_directory_path + "global.cfg");
+
+        if (server.iwad != null) {
+            String iwad = cfg.bot_iwad_directory_path + server.iwad;
+            files.add(iwad);
+            addParameter(args, "-iwad", iwad);
+        }
+
+        for (String wad : wads) {
+            String path;
+            if (Server.isIwad(wad)) {
+                path = cfg.bot_iwad_directory_path + wad;
+            } else {
+                path = cfg.bot_wad_directory_path + wad;
+            }
+            files.add(path);
+            addParameter(args, "-file", path);
+        }
+
+        if (server.gamemode != null) {
+            addParameter(args, "+" + server.gamemode, " 1");
+            if (server.gamemode.equals("deathmatch")) {
+                addParameter(args, "+cooperative", " 0");
+            }
+        }
+
+        addSettings(args, server);
+
+        if (server.servername != null) {
+            addParameter(args, "+sv_hostname", cfg.bot_hostname_base + " " + server.servername);
+        }
+
+        if (server.config != null) {
+            addParameter(args, "+exec", cfg.bot_cfg_directory_path + server.config);
+        }
+
+        String hash = hash(server.executableType, args);
+        if (hash != null) {
+            synchronized (cache) {
+                LaunchPlan cached = cache.get(hash);
+                if (cached != null) {
+                    logMessage(LOGLEVEL_DEBUG, "Reusing launch plan " + hash + ".");
+                    return cached;
+                }
+            }
+        }
+
+        // Create a custom wadpage for us, and add it to sv_website to avoid large wad list lookups
+        String wadPageKey = bot.auditWriter.createWadPage(Joiner.on(",").join(wads));
+        String website = cfg.bot_wad_url + wadPageKey;
+        addParameter(args, "+sv_website", website);
+
+        LaunchPlan plan = new LaunchPlan(server.executableType, args, wads, files, wadPageKey, website, hash);
+        if (hash != null && wadPageKey != null) {
+            synchronized (cache) {
+                cache.put(hash, plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Brings back a plan that was saved by the server journal, the wad page
+     * it refers to already exists
+     *
+     * @return the launch plan
+     */
+    static LaunchPlan restore(String executable, List<String> arguments, List<String> wads, List<String> files, String wadPageKey, String website, String hash) {
+        LaunchPlan plan = new LaunchPlan(executable, new ArrayList<>(arguments), new ArrayList<>(wads), new ArrayList<>(files), wadPageKey, website, hash);
+        if (hash != null) {
+            synchronized (cache) {
+                cache.put(hash, plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Builds the full command to start a server with this plan, the port is
+     * at PORT_INDEX
+     *
+     * @param server Server - the server being started
+     * @param port int - the port to ask the server to use
+     * @param cfg ConfigData - the bot configuration
+     * @return the command, ready to be passed to a ProcessBuilder
+     */
+    public List<String> getRunCommand(Server server, int port, ConfigData cfg) {
+        List<String> command = new ArrayList<>(arguments.size() + 11);
+        command.add(executable);
+        addParameter(command, "-port", String.valueOf(port));
+        command.addAll(arguments);
+        addParameter(command, "+sv_rconpassword", server.server_id);
+        addParameter(command, "+sv_banfile", cfg.bot_banlistdir + server.server_id + ".txt");
+        addParameter(command, "+sv_adminlistfile", cfg.bot_adminlistdir + server.server_id + ".txt");
+        addParameter(command, "+sv_banexemptionfile", cfg.bot_whitelistdir + server.server_id + ".txt");
+        return command;
+    }
+
+    /**
+     * Adds the game settings of a server that differ from the defaults of
+     * global.cfg, used for the command line and for the console commands that
+     * set up a claimed standby server
+     *
+     * @param args List - the parameters are added to this, as +name value
+     * @param server Server - the server
+     */
+    static void addSettings(List<String> args, Server server) {
+        if (server.skill != -1) {
+            addParameter(args, "+skill", String.valueOf(server.skill));
+        }
+
+        if (server.dmflags > 0) {
+            addParameter(args, "+dmflags", Integer.toString(server.dmflags));
+        }
+
+        if (server.dmflags2 > 0) {
+            addParameter(args, "+dmflags2", Integer.toString(server.dmflags2));
+        }
+
+        if (server.dmflags3 > 0) {
+            addParameter(args, "+dmflags3", Integer.toString(server.dmflags3));
+        }
+
+        if (server.compatflags > 0) {
+            addParameter(args, "+compatflags", Integer.toString(server.compatflags));
+        }
+
+        if (server.compatflags2 > 0) {
+            addParameter(args, "+compatflags2", Integer.toString(server.compatflags2));
+        }
+
+        if (server.instagib) {
+            addParameter(args, "+instagib", "1");
+        }
+
+        if (server.randommaprotation) {
+            addParameter(args, "+sv_randommaprotation", "1");
+        }
+
+        if (server.maprotation) {
+            addParameter(args, "+sv_maprotation", "1");
+        }
+
+        if (server.buckshot) {
+            addParameter(args, "+buckshot", "1");
+        }
+
+        if (server.fraglimit > 0) {
+            addParameter(args, "+fraglimit", Integer.toString(server.fraglimit));
+        }
+
+        for (String s : server.maplist) {
+            addParameter(args, "+addmap", s);
+        }
+
+        if (server.duellimit > 0) {
+            addParameter(args, "+duellimit", Integer.toString(server.duellimit));
+        }
+
+        if (server.maxplayers > 0) {
+            addParameter(args, "+sv_maxplayers", Integer.toString(server.maxplayers));
+        }
+
+        if (server.timelimit > 0) {
+            addParameter(args, "+timelimit", Integer.toString(server.timelimit));
+        }
+    }
+
+    /**
+     * Adds a parameter to an argument list
+     *
+     * @param args List - the arguments
+     * @param param String - parameter
+     * @param arg String - argument
+     */
+    private static void addParameter(List<String> args, String param, String arg) {
+        logMessage(LOGLEVEL_DEBUG, "Adding param: " + param + " " + arg);
+        args.add(param);
+        args.add(arg);
+    }
+
+    /**
+     * Hashes the executable and arguments of a plan
+     *
+     * @param executable String - the executable
+     * @param args List - the arguments
+     * @return hex string of the hash, or null if it could not be made
+     */
+    private static String hash(String executable, List<String> args) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(String.valueOf(executable).getBytes(StandardCharsets.UTF_8));
+            for (String arg : args) {
+                md.update((byte) 0);
+                md.update(arg.getBytes(StandardCharsets.UTF_8));
+            }
+            return Functions.byteArrayToHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not hash launch plan: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the executable that runs the server
+     */
+    public String getExecutable() {
+        return executable;
+    }
+
+    /**
+     * @return the arguments that come from the server configuration
+     */
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return the wads that are loaded
+     */
+    public List<String> getWads() {
+        return wads;
+    }
+
+    /**
+     * @return the full paths of the iwad and wads
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the key of the wad page
+     */
+    public String getWadPageKey() {
+        return wadPageKey;
+    }
+
+    /**
+     * @return the URL of the wad page
+     */
+    public String getWebsite() {
+        return website;
+    }
+
+    /**
+     * @return the hash of the plan
+     */
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,220 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+/**
+ * Finds lumps by name in constant time. Lump names are at most eight bytes,
+ * so each name is packed into a long (first character in the lowest byte,
+ * upper cased, zero padded) and kept in an open addressing table with linear
+ * probing. Adding a name that is already in the table replaces it, so the
+ * last lump with a name wins like it does in the engine.
+ */
+public class LumpIndex {
+
+    /**
+     * Returned when a name is not in the index
+     */
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * Packed names, 0 is an empty slot
+     */
+    private final long[] keys;
+
+    /**
+     * Lump number of each slot
+     */
+    private final int[] values;
+
+    /**
+     * Used to wrap around the table
+     */
+    private final int mask;
+
+    /**
+     * Number of different names in the index
+     */
+    private int size;
+
+    /**
+     * Creates an index that can hold the given number of names while staying
+     * at most half full
+     *
+     * @param expected int - number of names that will be added
+     */
+    public LumpIndex(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Creates an index of a list of names, the position of each name is its
+     * lump number
+     *
+     * @param names String[] - the names
+     * @return the index
+     */
+    public static LumpIndex of(String... names) {
+        LumpIndex index = new LumpIndex(names.length);
+        for (int i = 0; i < names.length; i++) {
+            index.put(pack(names[i]), i);
+        }
+        return index;
+    }
+
+    /**
+     * Packs a lump name from a wad directory entry
+     *
+     * @param b byte[] - the wad data
+     * @param offset int - where the eight byte name starts
+     * @return the packed name, 0 if the name is empty
+     */
+    public static long pack(byte[] b, int offset) {
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            int c = b[offset + i] & 0xFF;
+            if (c == 0) {
+                break;
+            }
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            key |= (long) c << (i * 8);
+        }
+        return key;
+    }
+
+    /**
+     * Packs a lump name
+     *
+     * @param name String - the name
+     * @return the packed name, 0 if the name is empty or too long to be a lump
+     * name
+     */
+    public static long pack(String name) {
+        int length = name.length();
+        if (length > 8) {
+            return 0;
+        }
+        long key = 0;
+        for (int i = 0; i < length; i++) {
+            int c = name.charAt(i);
+            if (c > 0xFF) {
+                return 0;
+            }
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            key |= (long) c << (i * 8);
+        }
+        return key;
+    }
+
+    /**
+     * Returns if a packed name starts with the given prefix
+     *
+     * @param key long - the packed name
+     * @param prefix long - the packed prefix
+     * @param length int - the length of the prefix
+     * @return true if the name starts with the prefix
+     */
+    public static boolean startsWith(long key, long prefix, int length) {
+        return length >= 8 ? key == prefix : (key & ((1L << (length * 8)) - 1)) == prefix;
+    }
+
+    /**
+     * Spreads the bits of a packed name over the table
+     *
+     * @param key long - the packed name
+     * @return the first slot to look in
+     */
+    private int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /**
+     * Adds a name, replacing the lump number if it is already there
+     *
+     * @param key long - the packed name
+     * @param lump int - the lump number
+     */
+    public void put(long key, int lump) {
+        if (key == 0) {
+            return;
+        }
+        int i = slot(key);
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == 0) {
+            if (size + 1 > keys.length / 2) {
+                throw new IllegalStateException("Lump index is full");
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = lump;
+    }
+
+    /**
+     * Looks up a packed name
+     *
+     * @param key long - the packed name
+     * @return the lump number, or NOT_FOUND
+     */
+    public int get(long key) {
+        if (key == 0) {
+            return NOT_FOUND;
+        }
+        int i = slot(key);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Looks up a name, case insensitive
+     *
+     * @param name String - the name
+     * @return the lump number, or NOT_FOUND
+     */
+    public int get(String name) {
+        return get(pack(name));
+    }
+
+    /**
+     * @param key long - the packed name
+     * @return true if the name is in the index
+     */
+    public boolean contains(long key) {
+        return get(key) != NOT_FOUND;
+    }
+
+    /**
+     * @return the number of different names in the index
+     */
+    public int size() {
+        return size;
+    }
+}
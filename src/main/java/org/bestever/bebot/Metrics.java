@@ -0,0 +1,435 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Keeps counters, gauges and latency histograms for the bot. Recording is
+ * lock free so it can be done from any thread; names are dotted strings like
+ * "mysql.getLevel" or "console.lines.10666".
+ */
+public class Metrics {
+
+    /**
+     * How often counter rates are recalculated, in ms
+     */
+    private static final long RATE_INTERVAL = 10000;
+
+    /**
+     * Counters by name
+     */
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Gauges by name
+     */
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Histograms by name
+     */
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Recalculates rates and logs snapshots
+     */
+    private static Timer timer;
+
+    /**
+     * A count that only goes up
+     */
+    public static class Counter {
+
+        /**
+         * The count
+         */
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * The count when the rate was last calculated
+         */
+        private long lastCount;
+
+        /**
+         * Events per second over the last rate interval
+         */
+        private volatile double rate;
+
+        /**
+         * Adds one
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * Adds to the count
+         *
+         * @param n long - amount to add
+         */
+        public void add(long n) {
+            count.add(n);
+        }
+
+        /**
+         * @return the count
+         */
+        public long get() {
+            return count.sum();
+        }
+
+        /**
+         * @return events per second over the last rate interval
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        /**
+         * Recalculates the rate
+         *
+         * @param seconds double - time since the last update
+         */
+        private synchronized void updateRate(double seconds) {
+            long now = count.sum();
+            rate = (now - lastCount) / seconds;
+            lastCount = now;
+        }
+    }
+
+    /**
+     * A value that is read when it is reported
+     */
+    public interface Gauge {
+
+        /**
+         * @return the current value
+         */
+        long get();
+    }
+
+    /**
+     * A histogram of values (latencies in microseconds) with log-linear
+     * buckets: values below 16 get their own bucket, every power of two above
+     * that is split into 16 buckets, so percentiles are within about 6% of the
+     * recorded values while the histogram stays a fixed size
+     */
+    public static class Histogram {
+
+        /**
+         * Bits of precision below each power of two
+         */
+        private static final int SUB_BITS = 4;
+
+        /**
+         * Buckets per power of two
+         */
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /**
+         * Counts for each bucket
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+
+        /**
+         * Number of recorded values
+         */
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * Sum of the recorded values
+         */
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Largest recorded value
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a value
+         *
+         * @param value long - the value, negative values are recorded as 0
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Retry until the largest value is stored
+            }
+        }
+
+        /**
+         * Records the time since a System.nanoTime() value in microseconds
+         *
+         * @param startNanos long - when the timed work started
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return mean of the recorded values
+         */
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @return sum of the recorded values
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * @return largest recorded value
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns a percentile, the upper bound of the bucket it falls in
+         *
+         * @param p double - the percentile between 0 and 1
+         * @return the value, or 0 if nothing was recorded
+         */
+        public long getPercentile(double p) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * n));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * @return the bucket a value goes in
+         */
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the largest value that goes in a bucket
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            int shift = exponent - SUB_BITS;
+            return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Returns a counter, creating it if needed
+     *
+     * @param name String - the counter's name
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * Returns a histogram, creating it if needed
+     *
+     * @param name String - the histogram's name
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name
+     *
+     * @param name String - the gauge's name
+     * @param gauge Gauge - reads the value
+     */
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Registers a counter that is owned by someone else, so it can be removed
+     * again when the owner goes away
+     *
+     * @param name String - the counter's name
+     * @param counter Counter - the counter
+     */
+    public static void register(String name, Counter counter) {
+        counters.put(name, counter);
+    }
+
+    /**
+     * Removes a counter, gauge or histogram
+     *
+     * @param name String - the name
+     */
+    public static void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    /**
+     * @return counters sorted by name
+     */
+    public static Map<String, Counter> getCounters() {
+        return new TreeMap<>(counters);
+    }
+
+    /**
+     * @return gauges sorted by name
+     */
+    public static Map<String, Gauge> getGauges() {
+        return new TreeMap<>(gauges);
+    }
+
+    /**
+     * @return histograms sorted by name
+     */
+    public static Map<String, Histogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Starts recalculating rates and, if enabled, logging a snapshot
+     *
+     * @param logInterval int - seconds between logged snapshots, 0 to never
+     * log them
+     */
+    public static synchronized void start(int logInterval) {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer("Metrics", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            private long last = System.nanoTime();
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                double seconds = (now - last) / 1e9;
+                last = now;
+                for (Counter counter : counters.values()) {
+                    counter.updateRate(seconds);
+                }
+            }
+        }, RATE_INTERVAL, RATE_INTERVAL);
+        if (logInterval > 0) {
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    for (String line : snapshot("")) {
+                        logMessage(LOGLEVEL_NORMAL, "[stats] " + line);
+                    }
+                }
+            }, logInterval * 1000L, logInterval * 1000L);
+        }
+    }
+
+    /**
+     * Describes every metric whose name starts with the prefix, one metric per
+     * entry; counters show their total and rate, histograms their count and
+     * percentiles in ms
+     *
+     * @param prefix String - only include these metrics, "" for all
+     * @return the descriptions
+     */
+    public static List<String> snapshot(String prefix) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                Counter counter = entry.getValue();
+                lines.add(entry.getKey() + "=" + counter.get() + " (" + String.format("%.1f", counter.getRate()) + "/s)");
+            }
+        }
+        for (Map.Entry<String, Gauge> entry : getGauges().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                lines.add(entry.getKey() + "=" + entry.getValue().get());
+            }
+        }
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (entry.getKey().startsWith(prefix) && histogram.getCount() > 0) {
+                lines.add(entry.getKey() + " n=" + histogram.getCount()
+                        + " p50=" + toMillis(histogram.getPercentile(0.5))
+                        + " p99=" + toMillis(histogram.getPercentile(0.99))
+                        + " max=" + toMillis(histogram.getMax()) + "ms");
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Formats microseconds as milliseconds
+     */
+    private static String toMillis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+}
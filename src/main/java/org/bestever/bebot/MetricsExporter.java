@@ -0,0 +1,510 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Serves the metrics over HTTP in the Prometheus text format. A single thread
+ * handles every connection with a selector, and the response is built in a
+ * reused buffer, so frequent scrapes cost next to nothing. A connection has a
+ * few seconds to send its request and take the response, and only so many
+ * can be open at once, so clients that connect and never finish cannot use up
+ * the bot's file descriptors.
+ */
+public class MetricsExporter extends Thread {
+
+    /**
+     * Prefix of every metric name
+     */
+    private static final String PREFIX = "bestbot_";
+
+    /**
+     * Largest request that is accepted
+     */
+    private static final int MAX_REQUEST = 2048;
+
+    /**
+     * Time a connection may stay open in ms
+     */
+    private static final long CONNECTION_TIMEOUT = 5000;
+
+    /**
+     * Most connections open at the same time, more are closed right away
+     */
+    private static final int MAX_CONNECTIONS = 16;
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Waits for connections and data
+     */
+    private final Selector selector;
+
+    /**
+     * The listening socket
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The response body, reused for every scrape
+     */
+    private final StringBuilder body = new StringBuilder(8192);
+
+    /**
+     * The encoded response, reused for every scrape and grown when needed
+     */
+    private ByteBuffer response = ByteBuffer.allocateDirect(16384);
+
+    /**
+     * Reads the CPU and memory use of the servers
+     */
+    private final ProcStat procStat = new ProcStat();
+
+    /**
+     * CPU seconds of each server during a scrape, reused
+     */
+    private double[] cpuSeconds = new double[16];
+
+    /**
+     * Resident memory of each server during a scrape, reused
+     */
+    private long[] rssBytes = new long[16];
+
+    /**
+     * Family of the last metric written, so the TYPE line is only written once
+     */
+    private String lastFamily;
+
+    /**
+     * Constructor, binds the port
+     *
+     * @param bot Bot
+     * @param address String - address to listen on
+     * @param port int - port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    public MetricsExporter(Bot bot, String address, int port) throws IOException {
+        super("MetricsExporter");
+        this.bot = bot;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(address, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        setDaemon(true);
+    }
+
+    /**
+     * Starts the exporter if it is enabled in the config
+     *
+     * @param bot Bot
+     * @return the running exporter, or null if it is disabled or could not be
+     * started
+     */
+    public static MetricsExporter start(Bot bot) {
+        if (!bot.cfg_data.metrics_enabled) {
+            return null;
+        }
+        try {
+            MetricsExporter exporter = new MetricsExporter(bot, bot.cfg_data.metrics_address, bot.cfg_data.metrics_port);
+            exporter.start();
+            logMessage(LOGLEVEL_IMPORTANT, "Serving metrics on " + bot.cfg_data.metrics_address + ":" + bot.cfg_data.metrics_port);
+            return exporter;
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_CRITICAL, "Could not start the metrics endpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * State of one connection
+     */
+    private static class Connection {
+
+        /**
+         * The request read so far
+         */
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+
+        /**
+         * When the connection was accepted in ms
+         */
+        final long accepted = System.currentTimeMillis();
+
+        /**
+         * Part of the response that could not be written right away
+         */
+        ByteBuffer pending;
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                selector.select(CONNECTION_TIMEOUT / 5);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    } catch (RuntimeException e) {
+                        // A failing gauge must not take the endpoint down, only this request
+                        logMessage(LOGLEVEL_IMPORTANT, "Metrics endpoint error: " + e);
+                        if (key.channel() != serverChannel) {
+                            close(key);
+                        }
+                    }
+                }
+                closeExpired();
+            } catch (ClosedSelectorException e) {
+                // Closed while waiting
+                return;
+            } catch (IOException e) {
+                logMessage(LOGLEVEL_IMPORTANT, "Metrics endpoint error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops serving metrics
+     */
+    public void close() {
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    /**
+     * Accepts a new connection
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            // The listening socket has a key too
+            if (selector.keys().size() > MAX_CONNECTIONS) {
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    /**
+     * Reads the request and answers it once the headers are complete
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer request = connection.request;
+        if (channel.read(request) < 0) {
+            close(key);
+            return;
+        }
+        if (!endOfHeaders(request) && request.hasRemaining()) {
+            return;
+        }
+        boolean metrics = startsWith(request, "GET /metrics ") || startsWith(request, "GET / ");
+        buildResponse(metrics);
+        channel.write(response);
+        if (response.hasRemaining()) {
+            // Slow client, keep what is left for when it can take more
+            connection.pending = ByteBuffer.allocate(response.remaining());
+            connection.pending.put(response);
+            connection.pending.flip();
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            close(key);
+        }
+    }
+
+    /**
+     * Writes the rest of a response
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(connection.pending);
+        if (!connection.pending.hasRemaining()) {
+            close(key);
+        }
+    }
+
+    /**
+     * Closes the connections that have been open for too long
+     */
+    private void closeExpired() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object connection = key.attachment();
+            if (connection instanceof Connection && now - ((Connection) connection).accepted > CONNECTION_TIMEOUT) {
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * @return true if the request contains an empty line
+     */
+    private static boolean endOfHeaders(ByteBuffer request) {
+        for (int i = 3; i < request.position(); i++) {
+            if (request.get(i) == '\n' && request.get(i - 1) == '\r' && request.get(i - 2) == '\n' && request.get(i - 3) == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the request starts with the text
+     */
+    private static boolean startsWith(ByteBuffer request, String text) {
+        if (request.position() < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (request.get(i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the HTTP response in the response buffer
+     *
+     * @param metrics boolean - true for the metrics, false for a 404
+     */
+    private void buildResponse(boolean metrics) {
+        body.setLength(0);
+        String status;
+        if (metrics) {
+            status = "200 OK";
+            writeMetrics();
+        } else {
+            status = "404 Not Found";
+            body.append("Metrics are served at /metrics\n");
+        }
+        int length = body.length() + 128;
+        if (response.capacity() < length) {
+            response = ByteBuffer.allocateDirect(Math.max(length, response.capacity() * 2));
+        }
+        response.clear();
+        putAscii("HTTP/1.1 ").putAscii(status).putAscii("\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: ");
+        putAscii(Integer.toString(body.length())).putAscii("\r\nConnection: close\r\n\r\n");
+        putAscii(body);
+        response.flip();
+    }
+
+    /**
+     * Copies text into the response, everything written is ASCII
+     */
+    private MetricsExporter putAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            response.put((byte) text.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Writes every metric to the body
+     */
+    private void writeMetrics() {
+        lastFamily = null;
+        for (Map.Entry<String, Metrics.Counter> entry : Metrics.getCounters().entrySet()) {
+            String name = entry.getKey();
+            String port = portOf(name);
+            String family = family(name, port) + "_total";
+            sample(family, "counter", port == null ? null : "port", port, entry.getValue().get());
+        }
+        for (Map.Entry<String, Metrics.Gauge> entry : Metrics.getGauges().entrySet()) {
+            String name = entry.getKey();
+            String port = portOf(name);
+            sample(family(name, port), "gauge", port == null ? null : "port", port, entry.getValue().get());
+        }
+        for (Map.Entry<String, Metrics.Histogram> entry : Metrics.getHistograms().entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+            String family = family(entry.getKey(), null) + "_seconds";
+            type(family, "summary");
+            quantile(family, "0.5", histogram.getPercentile(0.5));
+            quantile(family, "0.9", histogram.getPercentile(0.9));
+            quantile(family, "0.99", histogram.getPercentile(0.99));
+            body.append(family).append("_sum ").append(histogram.getSum() / 1e6).append('\n');
+            body.append(family).append("_count ").append(histogram.getCount()).append('\n');
+        }
+
+        List<Server> servers = new ArrayList<>(bot.servers);
+        sample(PREFIX + "servers", "gauge", null, null, servers.size());
+        sample(PREFIX + "uptime_seconds", "gauge", null, null, (System.currentTimeMillis() - bot.time_started) / 1000);
+        for (Server server : servers) {
+            List<String> players = server.playerList;
+            sample(PREFIX + "server_players", "gauge", "port", Integer.toString(server.port), players == null ? 0 : players.size());
+        }
+        // Read every process once, the samples are written per family
+        if (cpuSeconds.length < servers.size()) {
+            cpuSeconds = new double[servers.size() * 2];
+            rssBytes = new long[servers.size() * 2];
+        }
+        for (int i = 0; i < servers.size(); i++) {
+            boolean read = readProcess(servers.get(i));
+            cpuSeconds[i] = read ? (double) procStat.getCpuTicks() / ProcStat.CLOCK_TICKS : -1;
+            rssBytes[i] = read ? procStat.getRssBytes() : -1;
+        }
+        for (int i = 0; i < servers.size(); i++) {
+            if (cpuSeconds[i] >= 0) {
+                sample(PREFIX + "server_cpu_seconds_total", "counter", "port", Integer.toString(servers.get(i).port), cpuSeconds[i]);
+            }
+        }
+        for (int i = 0; i < servers.size(); i++) {
+            if (rssBytes[i] >= 0) {
+                sample(PREFIX + "server_rss_bytes", "gauge", "port", Integer.toString(servers.get(i).port), rssBytes[i]);
+            }
+        }
+        for (Server server : servers) {
+            if (server.open_fds >= 0) {
+                sample(PREFIX + "server_open_fds", "gauge", "port", Integer.toString(server.port), server.open_fds);
+            }
+        }
+    }
+
+    /**
+     * Reads the /proc stats of a server's process
+     *
+     * @return true if they were read
+     */
+    private boolean readProcess(Server server) {
+        ServerProcess process = server.serverprocess;
+        long pid = process == null ? -1 : process.getPid();
+        return pid > 0 && procStat.read(pid);
+    }
+
+    /**
+     * Writes one sample
+     */
+    private void sample(String family, String type, String label, String value, long sample) {
+        name(family, type, label, value);
+        body.append(sample).append('\n');
+    }
+
+    /**
+     * Writes one sample with a fractional value
+     */
+    private void sample(String family, String type, String label, String value, double sample) {
+        name(family, type, label, value);
+        body.append(sample).append('\n');
+    }
+
+    /**
+     * Writes the name and label of a sample, with a TYPE line if it starts a
+     * new family
+     */
+    private void name(String family, String type, String label, String value) {
+        type(family, type);
+        body.append(family);
+        if (label != null) {
+            body.append('{').append(label).append("=\"").append(value).append("\"}");
+        }
+        body.append(' ');
+    }
+
+    /**
+     * Writes one quantile of a summary, converted to seconds
+     */
+    private void quantile(String family, String quantile, long micros) {
+        body.append(family).append("{quantile=\"").append(quantile).append("\"} ").append(micros / 1e6).append('\n');
+    }
+
+    /**
+     * Writes the TYPE line if the family changed
+     */
+    private void type(String family, String type) {
+        if (!family.equals(lastFamily)) {
+            body.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+            lastFamily = family;
+        }
+    }
+
+    /**
+     * Returns the port of a per-server metric
+     *
+     * @param name String - the metric name
+     * @return the last part of the name if it is a port, otherwise null
+     */
+    private static String portOf(String name) {
+        int dot = name.lastIndexOf('.');
+        String last = name.substring(dot + 1);
+        return dot > 0 && Functions.isNumeric(last) ? last : null;
+    }
+
+    /**
+     * Turns a metric name into a Prometheus name, without the port if there is
+     * one
+     */
+    private static String family(String name, String port) {
+        if (port != null) {
+            name = name.substring(0, name.length() - port.length() - 1);
+        }
+        StringBuilder sb = new StringBuilder(PREFIX.length() + name.length()).append(PREFIX);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? c : '_');
+        }
+        return sb.toString();
+    }
+}
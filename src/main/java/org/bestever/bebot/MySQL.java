@@ -23,11 +23,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
 import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
@@ -71,9 +77,14 @@ public class MySQL {
     public static String mysql_db;
 
     /**
-     * A constant in the database to indicate a server is considered online
+     * Number of connections that are currently open
      */
-    public static final int SERVER_ONLINE = 1;
+    private static final AtomicInteger OPEN_CONNECTIONS = new AtomicInteger();
+
+    /**
+     * If the sessions table has the last_used column, null until checked
+     */
+    private static volatile Boolean sessionsLastUsed;
 
     /**
      * Constructor for the MySQL Object
@@ -92,6 +103,12 @@ public class MySQL {
         MySQL.mysql_pass = pass;
         MySQL.mysql_port = port;
         MySQL.mysql_db = db;
+        Metrics.gauge("mysql.connections.open", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return OPEN_CONNECTIONS.get();
+            }
+        });
         try {
             Class.forName("com.mysql.jdbc.Driver");
         } catch (ClassNotFoundException e) {
@@ -116,7 +133,7 @@ public class MySQL {
      */
     public static ArrayList executeQuery(String query, Object... arguments) {
         ArrayList<HashMap<String, Object>> rows = new ArrayList<>();
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("executeQuery"); PreparedStatement pst = con.prepareStatement(query)) {
             // Go through each argument and check what type they are
             // We will then bind the value to the prepared statement
             if (arguments.length > 0) {
@@ -150,49 +167,141 @@ public class MySQL {
     }
 
     /**
-     * Returns the connection
+     * Returns the connection. The time until it is closed is recorded in the
+     * "mysql." histogram of the calling method, so every query is timed.
+     *
+     * @param method String - the name of the calling method
      */
-    private static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection("jdbc:mysql://" + mysql_host + ":" + mysql_port + "/" + mysql_db, mysql_user, mysql_pass);
+    private static Connection getConnection(String method) throws SQLException {
+        long start = System.nanoTime();
+        Connection con;
+        try {
+            con = DriverManager.getConnection("jdbc:mysql://" + mysql_host + ":" + mysql_port + "/" + mysql_db, mysql_user, mysql_pass);
+        } catch (SQLException e) {
+            Metrics.counter("mysql.errors").increment();
+            throw e;
+        }
+        return new TimedConnection(con, method, start, OPEN_CONNECTIONS);
     }
 
     /**
-     * Create a custom wadpage for our wads
+     * Inserts server log and wad page records in one transaction, with a
+     * batch insert for each table. If a record is rejected the records are
+     * inserted one at a time instead, and the ones the database rejects are
+     * dropped so they are not retried forever.
      *
-     * @param wads String[] - the wads to add
-     * @return
+     * @param records List - the records
+     * @return true if every record was written or dropped, false if the
+     * database could not be reached and they should be tried again
      */
-    public static String createWadPage(String wads) {
-        String query = "INSERT INTO `" + mysql_db + "`.`wad_pages` (`key`, `wad_string`) VALUES (?, ?)";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-            try {
-                String hash = Functions.generateHash();
-                pst.setString(1, hash);
-                pst.setString(2, wads);
-                pst.executeUpdate();
-                return hash;
-            } catch (NoSuchAlgorithmException e) {
+    public static boolean insertAuditRecords(List<AuditWriter.Record> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+        String serverlog = "INSERT INTO `" + mysql_db + "`.`serverlog` (`unique_id`, `servername`, `username`, `date`) VALUES (?, ?, ?, ?)";
+        String wadPages = "INSERT INTO `" + mysql_db + "`.`wad_pages` (`key`, `wad_string`) VALUES (?, ?)";
+        try (Connection con = getConnection("insertAuditRecords")) {
+            try (PreparedStatement logPst = con.prepareStatement(serverlog); PreparedStatement pagePst = con.prepareStatement(wadPages)) {
+                con.setAutoCommit(false);
+                try {
+                    int logs = 0;
+                    int pages = 0;
+                    for (AuditWriter.Record record : records) {
+                        PreparedStatement pst = bindAuditRecord(record, logPst, pagePst);
+                        if (pst == logPst) {
+                            logs++;
+                        } else if (pst == pagePst) {
+                            pages++;
+                        }
+                        if (pst != null) {
+                            pst.addBatch();
+                        }
+                    }
+                    if (logs > 0) {
+                        logPst.executeBatch();
+                    }
+                    if (pages > 0) {
+                        pagePst.executeBatch();
+                    }
+                    con.commit();
+                    return true;
+                } catch (SQLException e) {
+                    con.rollback();
+                    if (isRetryable(e)) {
+                        throw e;
+                    }
+                    logMessage(LOGLEVEL_IMPORTANT, "Audit batch was rejected, inserting records one at a time: " + e.getMessage());
+                }
+
+                // Find the records the database will not take
+                con.setAutoCommit(true);
+                logPst.clearBatch();
+                pagePst.clearBatch();
+                for (AuditWriter.Record record : records) {
+                    PreparedStatement pst = bindAuditRecord(record, logPst, pagePst);
+                    if (pst == null) {
+                        continue;
+                    }
+                    try {
+                        pst.executeUpdate();
+                    } catch (SQLException e) {
+                        if (isRetryable(e)) {
+                            throw e;
+                        }
+                        logMessage(LOGLEVEL_IMPORTANT, "Dropping audit record " + record.toLine() + " (SQL Error): " + e.getMessage());
+                    }
+                }
+                return true;
             }
         } catch (SQLException e) {
-            logMessage(LOGLEVEL_IMPORTANT, "Could not add wad page. (SQL Error): " + e.getMessage());
+            logMessage(LOGLEVEL_IMPORTANT, "Could not write " + records.size() + " audit records (SQL Error): " + e.getMessage());
+            return false;
         }
-        return null;
     }
 
-    public static void loadServers(Bot bot) {
-        String query = "SELECT `*` FROM `" + mysql_db + "`.`servers` WHERE `name` = ?";
-        try {
-            Connection con = getConnection();
-            PreparedStatement pst = con.prepareStatement(query);
-            ResultSet r = pst.executeQuery();
-            while (r.next()) {
-
-            }
-
-        } catch (SQLException e) {
+    /**
+     * Sets the parameters of the insert statement for a record
+     *
+     * @param record AuditWriter.Record - the record
+     * @param logPst PreparedStatement - inserts into serverlog
+     * @param pagePst PreparedStatement - inserts into wad_pages
+     * @return the statement that was bound, or null if the table is unknown
+     * @throws SQLException
+     */
+    private static PreparedStatement bindAuditRecord(AuditWriter.Record record, PreparedStatement logPst, PreparedStatement pagePst) throws SQLException {
+        switch (record.getTable()) {
+            case AuditWriter.Record.SERVER_LOG:
+                logPst.setString(1, record.getValue(0));
+                logPst.setString(2, record.getValue(1));
+                logPst.setString(3, record.getValue(2));
+                logPst.setTimestamp(4, new Timestamp(record.getTime()));
+                return logPst;
+            case AuditWriter.Record.WAD_PAGE:
+                pagePst.setString(1, record.getValue(0));
+                pagePst.setString(2, record.getValue(1));
+                return pagePst;
+            default:
+                logMessage(LOGLEVEL_IMPORTANT, "Dropping audit record for unknown table " + record.getTable());
+                return null;
+        }
+    }
 
-            logMessage(LOGLEVEL_IMPORTANT, "Could not blacklist wad (SQL Error)");
+    /**
+     * Returns if an error means the database could not be reached, rather
+     * than that it rejected the statement
+     *
+     * @param e SQLException - the error
+     * @return true if the statement should be tried again later
+     */
+    private static boolean isRetryable(SQLException e) {
+        if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        if (state == null && e.getCause() instanceof SQLException) {
+            return isRetryable((SQLException) e.getCause());
         }
+        return state == null || state.startsWith("08");
     }
 
     /**
@@ -203,7 +312,7 @@ public class MySQL {
      */
     public static void removeWadFromBlacklist(String filename, String sender) {
         String query = "DELETE FROM `" + mysql_db + "`.`blacklist` WHERE `name` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("removeWadFromBlacklist"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, filename);
             if (pst.executeUpdate() <= 0) {
                 bot.blockingIRCMessage(sender, "Wad '" + filename + "' is not in the blacklist.");
@@ -224,7 +333,7 @@ public class MySQL {
     public static void addWadToBlacklist(String filename, String sender) {
         String query = "SELECT `md5`,`name` FROM `" + mysql_db + "`.`blacklist` WHERE `name` = ?";
         try {
-            Connection con = getConnection();
+            Connection con = getConnection("addWadToBlacklist");
             PreparedStatement pst = con.prepareStatement(query);
             pst.setString(1, filename);
             ResultSet r = pst.executeQuery();
@@ -261,48 +370,51 @@ public class MySQL {
     }
 
     /**
-     * Checks any number of wads against the wad blacklist
+     * Checks any number of wads against the wad blacklist, the wads and the
+     * blacklist are read over a single connection
      *
-     * @param fileName String... - name of the file(s)
-     * @return true if is blacklisted, false if not
+     * @param fileName List - name of the file(s)
+     * @return a message for every blacklisted wad, empty if none are
+     * blacklisted, or null if the check could not be done
      */
-    public static boolean checkHashes(String... fileName) {
+    public static List<String> checkHashes(List<String> fileName) {
+        List<String> matches = new ArrayList<>();
+        if (fileName.isEmpty()) {
+            return matches;
+        }
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT `wadname`,`md5` FROM `").append(mysql_db).append("`.`wads` WHERE `wadname` IN (");
-        int i = 0;
-        for (; i < fileName.length; i++) {
-            if (i == fileName.length - 1) {
-                sb.append("?");
-            } else {
-                sb.append("?, ");
-            }
+        for (int i = 0; i < fileName.size(); i++) {
+            sb.append(i == 0 ? "?" : ", ?");
         }
         sb.append(")");
-        String query = sb.toString();
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-            for (int j = 1; j <= i; j++) {
-                pst.setString(j, fileName[j - 1]);
+        try (Connection con = getConnection("checkHashes"); PreparedStatement pst = con.prepareStatement(sb.toString());
+                Statement stm = con.createStatement()) {
+            HashMap<String, String> blacklist = new HashMap<>();
+            ResultSet blacklistedHashes = stm.executeQuery("SELECT `name`,`md5` FROM `" + mysql_db + "`.`blacklist`;");
+            while (blacklistedHashes.next()) {
+                blacklist.put(blacklistedHashes.getString("md5").toLowerCase(), blacklistedHashes.getString("name"));
+            }
+            if (blacklist.isEmpty()) {
+                return matches;
+            }
+            for (int i = 0; i < fileName.size(); i++) {
+                pst.setString(i + 1, fileName.get(i));
             }
             ResultSet checkHashes = pst.executeQuery();
-            try (Statement stm = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY)) {
-                ResultSet blacklistedHashes = stm.executeQuery("SELECT `name`,`md5` FROM `" + mysql_db + "`.`blacklist`;");
-                while (checkHashes.next()) {
-                    blacklistedHashes.beforeFirst();
-                    while (blacklistedHashes.next()) {
-                        if (blacklistedHashes.getString("md5").equalsIgnoreCase(checkHashes.getString("md5"))) {
-                            bot.sendMessageToChannel("Wad " + checkHashes.getString("wadname")
-                                    + " matches blacklist " + blacklistedHashes.getString("name") + " (hash: " + blacklistedHashes.getString("md5") + ")");
-                            return false;
-                        }
-                    }
+            while (checkHashes.next()) {
+                String md5 = checkHashes.getString("md5");
+                String name = md5 == null ? null : blacklist.get(md5.toLowerCase());
+                if (name != null) {
+                    matches.add("Wad " + checkHashes.getString("wadname") + " matches blacklist " + name + " (hash: " + md5 + ")");
                 }
             }
         } catch (SQLException e) {
 
             logMessage(LOGLEVEL_IMPORTANT, "Could not get hashes of file (SQL Error)");
-            return false;
+            return null;
         }
-        return true;
+        return matches;
     }
 
     /**
@@ -313,7 +425,7 @@ public class MySQL {
      */
     public static String getBanReason(String ip) {
         String query = "SELECT `reason` FROM `" + mysql_db + "`.`banlist` WHERE `ip` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("getBanReason"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, ip);
             ResultSet r = pst.executeQuery();
             return r.getString("reason");
@@ -333,7 +445,7 @@ public class MySQL {
      */
     public static String checkBanned(String ip) throws UnknownHostException {
         String query = "SELECT * FROM `" + mysql_db + "`.`banlist`";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("checkBanned"); PreparedStatement pst = con.prepareStatement(query)) {
             ResultSet r = pst.executeQuery();
             while (r.next()) {
                 String decIP = r.getString("ip");
@@ -362,7 +474,7 @@ public class MySQL {
      */
     public static void addBan(String ip, String reason, String sender) {
         String query = "INSERT INTO `" + mysql_db + "`.`banlist` VALUES (?, ?) ON DUPLICATE KEY UPDATE `reason` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("addBan"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, ip);
             pst.setString(2, reason);
             pst.setString(3, reason);
@@ -385,7 +497,7 @@ public class MySQL {
      */
     public static void delBan(String ip, String sender) {
         String query = "DELETE FROM `" + mysql_db + "`.`banlist` WHERE `ip` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("delBan"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, ip);
             if (pst.executeUpdate() <= 0) {
                 bot.blockingIRCMessage(sender, "IP does not exist.");
@@ -411,7 +523,7 @@ public class MySQL {
      */
     public static int getMaxSlots(String username) {
         String query = "SELECT `server_limit` FROM " + mysql_db + ".`login` WHERE `username` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("getMaxSlots"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, username);
             ResultSet r = pst.executeQuery();
             if (r.next()) {
@@ -434,7 +546,7 @@ public class MySQL {
      */
     public static boolean userLogin(User user, String username, String password) {
         String query = "SELECT `password`,`salt` FROM " + mysql_db + ".`login` WHERE `username` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("userLogin"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, username);
             ResultSet r = pst.executeQuery();
             if (r.next()) {
@@ -458,7 +570,7 @@ public class MySQL {
      */
     public static int getLevel(String username) {
         String query = "SELECT `level` FROM " + mysql_db + ".`login` WHERE `username` = ?";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+        try (Connection con = getConnection("getLevel"); PreparedStatement pst = con.prepareStatement(query)) {
             pst.setString(1, username);
             ResultSet r = pst.executeQuery();
             if (r.next()) {
@@ -497,7 +609,7 @@ public class MySQL {
 
         // Query to add entry to database
         String executeQuery = "INSERT INTO " + mysql_db + ".`login` ( `username`, `password`, `salt`, `level`, `activated`, `server_limit`, `remember_token` ) VALUES ( ?, ?, ?, 1, 1, 4, null )";
-        try (Connection con = getConnection(); PreparedStatement cs = con.prepareStatement(checkQuery); PreparedStatement xs = con.prepareStatement(executeQuery)) {
+        try (Connection con = getConnection("registerAccount"); PreparedStatement cs = con.prepareStatement(checkQuery); PreparedStatement xs = con.prepareStatement(executeQuery)) {
             // Query and check if see if the username exists
             cs.setString(1, username);
             ResultSet r = cs.executeQuery();
@@ -538,7 +650,7 @@ public class MySQL {
 
         // Query to update password
         String executeQuery = "UPDATE " + mysql_db + ".`login` SET `password` = ? WHERE `username` = ?";
-        try (Connection con = getConnection(); PreparedStatement cs = con.prepareStatement(checkQuery); PreparedStatement xs = con.prepareStatement(executeQuery)) {
+        try (Connection con = getConnection("changePassword"); PreparedStatement cs = con.prepareStatement(checkQuery); PreparedStatement xs = con.prepareStatement(executeQuery)) {
             // Query and check if see if the username exists
             cs.setString(1, Bot.getUserName(user));
             ResultSet r = cs.executeQuery();
@@ -579,7 +691,7 @@ public class MySQL {
                 bot.sendMessageToChannel("Saving host command: " + hostmessage);
                 int slot = Integer.parseInt(words[1]);
                 if (slot > 0 && slot < 11) {
-                    try (Connection con = getConnection()) {
+                    try (Connection con = getConnection("saveSlot")) {
                         String username = Bot.getUserName(user);
                         String query = "SELECT `slot` FROM " + mysql_db + ".`save` WHERE `slot` = ? && `username` = ?";
                         PreparedStatement pst = con.prepareStatement(query);
@@ -632,7 +744,7 @@ public class MySQL {
                     bot.sendMessageToChannel("Slot must be between 1 and 10.");
                     return;
                 }
-                try (Connection con = getConnection()) {
+                try (Connection con = getConnection("loadSlot")) {
                     String query = "SELECT `serverstring` FROM " + mysql_db + ".`save` WHERE `slot` = ? && `username` = ?";
                     PreparedStatement pst = con.prepareStatement(query);
                     pst.setInt(1, slot);
@@ -654,77 +766,102 @@ public class MySQL {
     }
 
     /**
-     * Saves a user session
+     * Writes session changes in one transaction. Each changed usermask is
+     * deleted and inserted again, so the table needs no unique key. When the
+     * sessions were last used is only saved if the table has a `last_used`
+     * DATETIME column (ALTER TABLE `sessions` ADD `last_used` DATETIME NULL).
      *
-     * @param usermask
-     * @param username
+     * @param upserts Map - sessions by usermask to save
+     * @param deletes Collection - usermasks to delete
+     * @return true if the changes were written
      */
-    public static void saveSession(String usermask, String username) {
-        try (Connection con = getConnection()) {
-            String query = "SELECT `usermask` FROM " + mysql_db + ".`sessions` WHERE `usermask` = ?";
-            PreparedStatement pst = con.prepareStatement(query);
-            pst.setString(1, usermask);
-            try (ResultSet rs = pst.executeQuery()) {
-                if (rs.next()) {
-                    query = "UPDATE " + mysql_db + ".`sessions` SET `username` = ? WHERE `usermask` = ?";
-                } else {
-                    query = "INSERT INTO " + mysql_db + ".`sessions` (`username`, `usermask`) VALUES (?, ?)";
+    public static boolean saveSessions(Map<String, SessionStore.Session> upserts, Collection<String> deletes) {
+        List<String> masks = new ArrayList<>(upserts.keySet());
+        masks.addAll(deletes);
+        if (masks.isEmpty()) {
+            return true;
+        }
+        try (Connection con = getConnection("saveSessions")) {
+            boolean lastUsed = hasSessionsLastUsed(con);
+            String query = lastUsed
+                    ? "INSERT INTO " + mysql_db + ".`sessions` (`username`, `usermask`, `last_used`) VALUES (?, ?, ?)"
+                    : "INSERT INTO " + mysql_db + ".`sessions` (`username`, `usermask`) VALUES (?, ?)";
+            con.setAutoCommit(false);
+            try (PreparedStatement delete = con.prepareStatement("DELETE FROM " + mysql_db + ".`sessions` WHERE `usermask` = ?");
+                    PreparedStatement insert = con.prepareStatement(query)) {
+                for (String usermask : masks) {
+                    delete.setString(1, usermask);
+                    delete.addBatch();
                 }
-                pst = con.prepareStatement(query);
-                pst.setString(1, username);
-                pst.setString(2, usermask);
-                pst.executeUpdate();
+                delete.executeBatch();
+                for (Map.Entry<String, SessionStore.Session> entry : upserts.entrySet()) {
+                    insert.setString(1, entry.getValue().username);
+                    insert.setString(2, entry.getKey());
+                    if (lastUsed) {
+                        insert.setTimestamp(3, new Timestamp(entry.getValue().lastUsed));
+                    }
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
             }
+            return true;
         } catch (SQLException e) {
-            logMessage(LOGLEVEL_IMPORTANT, "SQL Error in 'saveSession()': " + e.getMessage());
+            logMessage(LOGLEVEL_IMPORTANT, "SQL Error in 'saveSessions()': " + e.getMessage());
+            return false;
         }
-
     }
 
     /**
      * Loads persistent login sessions from database
      *
+     * @return sessions by usermask, or null if they could not be loaded
      */
-    public static void loadSessions() {
-        try (Connection con = getConnection()) {
-            String query = "SELECT `usermask`,`username` FROM " + mysql_db + ".`sessions`";
+    public static Map<String, SessionStore.Session> loadSessions() {
+        try (Connection con = getConnection("loadSessions")) {
+            boolean hasLastUsed = hasSessionsLastUsed(con);
+            String query = "SELECT `usermask`,`username`" + (hasLastUsed ? ",`last_used`" : "") + " FROM " + mysql_db + ".`sessions`";
             try (PreparedStatement pst = con.prepareStatement(query)) {
+                Map<String, SessionStore.Session> sessions = new HashMap<>();
+                long now = System.currentTimeMillis();
                 ResultSet r = pst.executeQuery();
                 while (r.next()) {
-                    Bot.addUserSession(r.getString("usermask"), r.getString("username"));
+                    // Sessions saved without the column count as used now
+                    Timestamp lastUsed = hasLastUsed ? r.getTimestamp("last_used") : null;
+                    sessions.put(r.getString("usermask"), new SessionStore.Session(r.getString("username"), lastUsed == null ? now : lastUsed.getTime()));
                 }
-                pst.close();
-                con.close();
+                return sessions;
             }
-            con.close();
         } catch (SQLException e) {
             Logger.logMessage(LOGLEVEL_IMPORTANT, "SQL Error in 'loadSessions()': " + e.getMessage());
+            return null;
         }
     }
 
     /**
-     * Logs a server to the database
+     * Checks once if the sessions table has the last_used column, so
+     * databases that were not migrated keep working without it
      *
-     * @param servername String - the name of the server
-     * @param unique_id String - the server's unique ID
-     * @param username String - username of server host
-     */
-    public static void logServer(String servername, String unique_id, String username) {
-        System.out.println("servername: " + servername);
-        System.out.println("unique_id: " + unique_id);
-        System.out.println("username: " + username);
-        String query = "INSERT INTO `" + mysql_db + "`.`serverlog` (`unique_id`, `servername`, `username`, `date`) VALUES (?, ?, ?, NOW())";
-        try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
-            pst.setString(1, unique_id);
-            pst.setString(2, servername);
-            pst.setString(3, username);
-            pst.executeUpdate();
-            pst.close();
-            con.close();
-        } catch (SQLException e) {
-            Logger.logMessage(LOGLEVEL_IMPORTANT, "SQL Exception in logServer()");
-
+     * @param con Connection - an open connection
+     * @return true if the column exists
+     * @throws SQLException if the table could not be described
+     */
+    private static boolean hasSessionsLastUsed(Connection con) throws SQLException {
+        Boolean exists = sessionsLastUsed;
+        if (exists == null) {
+            try (ResultSet r = con.getMetaData().getColumns(mysql_db, null, "sessions", "last_used")) {
+                exists = r.next();
+            }
+            if (!exists) {
+                logMessage(LOGLEVEL_IMPORTANT, "The sessions table has no last_used column, session expiry restarts with the bot. "
+                        + "Run: ALTER TABLE `sessions` ADD `last_used` DATETIME NULL");
+            }
+            sessionsLastUsed = exists;
         }
+        return exists;
     }
 
     public static boolean isLoggedIn(User user) {
@@ -751,7 +888,7 @@ public class MySQL {
                 if (slot > 0 && slot < 11) {
                     String username = Bot.getUserName(user);
                     String query = "SELECT `serverstring`,`slot` FROM `save` WHERE `slot` = ? && `username` = ?";
-                    try (Connection con = getConnection(); PreparedStatement pst = con.prepareStatement(query)) {
+                    try (Connection con = getConnection("showSlot"); PreparedStatement pst = con.prepareStatement(query)) {
                         pst.setInt(1, slot);
                         pst.setString(2, username);
                         ResultSet rs = pst.executeQuery();
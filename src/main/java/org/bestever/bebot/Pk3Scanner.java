@@ -0,0 +1,566 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Reads the contents of pk3 files without extracting them. The file listing
+ * comes from the zip central directory alone, which is a single read at the
+ * end of the file no matter how large the archive is. To find maps, only the
+ * header and directory of each embedded wad and the MAPINFO lumps are read,
+ * streamed through a small buffer.
+ *
+ * PK7 (7-Zip) archives are not supported.
+ */
+public class Pk3Scanner {
+
+    /**
+     * End of central directory record
+     */
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+
+    /**
+     * Zip64 end of central directory locator
+     */
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    /**
+     * Zip64 end of central directory record
+     */
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+    /**
+     * Central directory file header
+     */
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+    /**
+     * Local file header
+     */
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    /**
+     * Size of the end of central directory record without its comment
+     */
+    private static final int EOCD_SIZE = 22;
+
+    /**
+     * Compression method of entries that are not compressed
+     */
+    private static final int STORED = 0;
+
+    /**
+     * Compression method of deflated entries
+     */
+    private static final int DEFLATED = 8;
+
+    /**
+     * MAPINFO lumps larger than this are skipped
+     */
+    private static final int MAX_MAPINFO_SIZE = 1 << 20;
+
+    /**
+     * A file in the archive, as described by the central directory
+     */
+    public static class Entry {
+
+        /**
+         * Full path of the file in the archive
+         */
+        private final String name;
+
+        /**
+         * Compression method
+         */
+        private final int method;
+
+        /**
+         * Size of the file in the archive
+         */
+        private final long compressedSize;
+
+        /**
+         * Size of the file once extracted
+         */
+        private final long size;
+
+        /**
+         * Where the local header of the file starts
+         */
+        private final long localOffset;
+
+        /**
+         * Constructor
+         */
+        private Entry(String name, int method, long compressedSize, long size, long localOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localOffset = localOffset;
+        }
+
+        /**
+         * @return the full path of the file in the archive
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the size of the file once extracted
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return true if the entry is a directory
+         */
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Lists the files in a pk3
+     *
+     * @param path String - path to the pk3
+     * @return every entry in the central directory
+     * @throws IOException if the file cannot be read or is not a zip file
+     */
+    public static List<Entry> listEntries(String path) throws IOException {
+        checkSupported(path);
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            return readCentralDirectory(raf, path);
+        }
+    }
+
+    /**
+     * Finds the maps in a pk3. These are the wads in maps/, the maps inside
+     * wads in the root of the archive, and the maps defined in MAPINFO,
+     * ZMAPINFO or UMAPINFO.
+     *
+     * @param path String - path to the pk3
+     * @return the map names, upper cased and sorted
+     * @throws IOException if the file cannot be read or is not a zip file
+     */
+    public static List<String> findMaps(String path) throws IOException {
+        checkSupported(path);
+        TreeSet<String> maps = new TreeSet<>();
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            for (Entry entry : readCentralDirectory(raf, path)) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.name.toLowerCase(Locale.ENGLISH);
+                int slash = name.lastIndexOf('/');
+                if (name.endsWith(".wad") && slash == 4 && name.startsWith("maps/")) {
+                    maps.add(entry.name.substring(5, entry.name.length() - 4).toUpperCase(Locale.ENGLISH));
+                } else if (slash >= 0) {
+                    continue;
+                } else if (name.endsWith(".wad")) {
+                    for (String map : readWadMaps(raf, entry)) {
+                        maps.add(map.toUpperCase(Locale.ENGLISH));
+                    }
+                } else if (isMapinfo(name)) {
+                    readMapinfo(raf, entry, maps);
+                }
+            }
+        }
+        return new ArrayList<>(maps);
+    }
+
+    /**
+     * Rejects archive formats that cannot be read
+     *
+     * @param path String - path to the archive
+     * @throws IOException if the format is not supported
+     */
+    private static void checkSupported(String path) throws IOException {
+        String lower = path.toLowerCase(Locale.ENGLISH);
+        if (lower.endsWith(".pk7") || lower.endsWith(".7z")) {
+            throw new IOException("PK7 (7-Zip) archives are not supported: " + path);
+        }
+    }
+
+    /**
+     * Returns if a file in the root of the archive is a MAPINFO lump
+     *
+     * @param name String - the lower case file name
+     * @return true for mapinfo, zmapinfo and umapinfo with any extension
+     */
+    private static boolean isMapinfo(String name) {
+        int dot = name.indexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        return base.equals("mapinfo") || base.equals("zmapinfo") || base.equals("umapinfo");
+    }
+
+    /**
+     * Reads the central directory of the archive
+     *
+     * @param raf RandomAccessFile - the archive
+     * @param path String - path to the archive, used in errors
+     * @return the entries
+     * @throws IOException if the archive is not a zip file or is corrupt
+     */
+    private static List<Entry> readCentralDirectory(RandomAccessFile raf, String path) throws IOException {
+        long length = raf.length();
+        int tail = (int) Math.min(length, EOCD_SIZE + 0xFFFF);
+        if (tail < EOCD_SIZE) {
+            throw new IOException("Not a zip file: " + path);
+        }
+        byte[] buf = new byte[tail];
+        raf.seek(length - tail);
+        raf.readFully(buf);
+
+        // The record is followed by a comment of up to 64 KB, so search back for it;
+        // the comment may contain the signature too, the real record's comment ends the file
+        int eocd = -1;
+        for (int i = tail - EOCD_SIZE; i >= 0; i--) {
+            if (Utility.getIntLE(buf, i) == EOCD_SIGNATURE && i + EOCD_SIZE + (Utility.getShortLE(buf, i + 20) & 0xFFFF) == tail) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file: " + path);
+        }
+        long count = Utility.getShortLE(buf, eocd + 10) & 0xFFFF;
+        long cdSize = Utility.getIntLE(buf, eocd + 12) & 0xFFFFFFFFL;
+        long cdOffset = Utility.getIntLE(buf, eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) {
+            int locator = eocd - 20;
+            if (locator < 0 || Utility.getIntLE(buf, locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("Zip64 locator is missing: " + path);
+            }
+            byte[] record = new byte[56];
+            raf.seek(Utility.getLongLE(buf, locator + 8));
+            raf.readFully(record);
+            if (Utility.getIntLE(record, 0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory is corrupt: " + path);
+            }
+            count = Utility.getLongLE(record, 32);
+            cdSize = Utility.getLongLE(record, 40);
+            cdOffset = Utility.getLongLE(record, 48);
+        }
+        if (cdSize > Integer.MAX_VALUE || cdOffset < 0 || cdOffset + cdSize > length) {
+            throw new IOException("Zip central directory is corrupt: " + path);
+        }
+
+        byte[] cd = new byte[(int) cdSize];
+        raf.seek(cdOffset);
+        raf.readFully(cd);
+        List<Entry> entries = new ArrayList<>((int) Math.min(count, cd.length / 46));
+        int off = 0;
+        while (off + 46 <= cd.length && Utility.getIntLE(cd, off) == CENTRAL_SIGNATURE) {
+            int flags = Utility.getShortLE(cd, off + 8) & 0xFFFF;
+            int method = Utility.getShortLE(cd, off + 10) & 0xFFFF;
+            long compressedSize = Utility.getIntLE(cd, off + 20) & 0xFFFFFFFFL;
+            long size = Utility.getIntLE(cd, off + 24) & 0xFFFFFFFFL;
+            int nameLength = Utility.getShortLE(cd, off + 28) & 0xFFFF;
+            int extraLength = Utility.getShortLE(cd, off + 30) & 0xFFFF;
+            int commentLength = Utility.getShortLE(cd, off + 32) & 0xFFFF;
+            long localOffset = Utility.getIntLE(cd, off + 42) & 0xFFFFFFFFL;
+            int next = off + 46 + nameLength + extraLength + commentLength;
+            if (next > cd.length) {
+                throw new IOException("Zip central directory is corrupt: " + path);
+            }
+            String name = new String(cd, off + 46, nameLength, (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+            // Zip64 sizes and offsets are in the extra field, only the ones that did not fit are there
+            if (size == 0xFFFFFFFFL || compressedSize == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL) {
+                int extra = off + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = Utility.getShortLE(cd, extra) & 0xFFFF;
+                    int dataLength = Utility.getShortLE(cd, extra + 2) & 0xFFFF;
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+                        if (size == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                            size = Utility.getLongLE(cd, field);
+                            field += 8;
+                        }
+                        if (compressedSize == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                            compressedSize = Utility.getLongLE(cd, field);
+                            field += 8;
+                        }
+                        if (localOffset == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                            localOffset = Utility.getLongLE(cd, field);
+                        }
+                        break;
+                    }
+                    extra += 4 + dataLength;
+                }
+            }
+            entries.add(new Entry(name, method, compressedSize, size, localOffset));
+            off = next;
+        }
+        return entries;
+    }
+
+    /**
+     * Opens a file in the archive for reading
+     *
+     * @param raf RandomAccessFile - the archive
+     * @param entry Entry - the file
+     * @return a stream of the extracted data, or null if the compression
+     * method is not supported
+     * @throws IOException if the local header is corrupt
+     */
+    private static InputStream open(RandomAccessFile raf, Entry entry) throws IOException {
+        if (entry.method != STORED && entry.method != DEFLATED) {
+            logMessage(LOGLEVEL_DEBUG, "Skipping " + entry.name + ", compression method " + entry.method + " is not supported.");
+            return null;
+        }
+        byte[] header = new byte[30];
+        raf.seek(entry.localOffset);
+        raf.readFully(header);
+        if (Utility.getIntLE(header, 0) != LOCAL_SIGNATURE) {
+            throw new IOException("Zip local header is corrupt: " + entry.name);
+        }
+        long start = entry.localOffset + 30 + (Utility.getShortLE(header, 26) & 0xFFFF) + (Utility.getShortLE(header, 28) & 0xFFFF);
+        InputStream region = new RegionInputStream(raf, start, entry.compressedSize);
+        if (entry.method == STORED) {
+            return region;
+        }
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(region, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    /**
+     * Finds the maps in a wad inside the archive, reading only its header and
+     * directory
+     *
+     * @param raf RandomAccessFile - the archive
+     * @param entry Entry - the wad
+     * @return the map names
+     * @throws IOException if the archive cannot be read
+     */
+    private static List<String> readWadMaps(RandomAccessFile raf, Entry entry) throws IOException {
+        if (entry.size < 12) {
+            return Collections.emptyList();
+        }
+        try (InputStream in = open(raf, entry)) {
+            if (in == null) {
+                return Collections.emptyList();
+            }
+            byte[] header = new byte[12];
+            readFully(in, header, header.length);
+            String type = Utility.getName(header, 0, 4);
+            int lumps = Utility.getIntLE(header, 4);
+            long directory = Utility.getIntLE(header, 8) & 0xFFFFFFFFL;
+            if ((!type.equals("PWAD") && !type.equals("IWAD")) || lumps <= 0 || directory < 12 || directory + lumps * 16L > entry.size) {
+                logMessage(LOGLEVEL_DEBUG, "Skipping " + entry.name + ", it is not a valid wad.");
+                return Collections.emptyList();
+            }
+            // A zip64 entry can claim a directory too large to hold in memory
+            if (lumps * 16L > Integer.MAX_VALUE) {
+                logMessage(LOGLEVEL_DEBUG, "Skipping " + entry.name + ", its directory is too large.");
+                return Collections.emptyList();
+            }
+            skipFully(in, directory - 12);
+            byte[] data = new byte[lumps * 16];
+            readFully(in, data, data.length);
+
+            return Arrays.asList(DoomFile.findLevelNames(data, lumps));
+        }
+    }
+
+    /**
+     * Adds the maps defined in a MAPINFO, ZMAPINFO or UMAPINFO lump. Every
+     * format starts a map definition with "map" followed by the map lump.
+     *
+     * @param raf RandomAccessFile - the archive
+     * @param entry Entry - the lump
+     * @param maps TreeSet - the maps are added to this
+     * @throws IOException if the archive cannot be read
+     */
+    private static void readMapinfo(RandomAccessFile raf, Entry entry, TreeSet<String> maps) throws IOException {
+        if (entry.size > MAX_MAPINFO_SIZE) {
+            logMessage(LOGLEVEL_DEBUG, "Skipping " + entry.name + ", it is too large.");
+            return;
+        }
+        byte[] text = new byte[(int) entry.size];
+        try (InputStream in = open(raf, entry)) {
+            if (in == null) {
+                return;
+            }
+            readFully(in, text, text.length);
+        }
+
+        int i = 0;
+        int length = text.length;
+        boolean lineStart = true;
+        while (i < length) {
+            byte c = text[i];
+            if (c == '/' && i + 1 < length && text[i + 1] == '/') {
+                while (i < length && text[i] != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && text[i + 1] == '*') {
+                i += 2;
+                while (i + 1 < length && !(text[i] == '*' && text[i + 1] == '/')) {
+                    i++;
+                }
+                i += 2;
+            } else if (c == '\n') {
+                lineStart = true;
+                i++;
+            } else if (c == ' ' || c == '\t' || c == '\r') {
+                i++;
+            } else if (lineStart && i + 3 < length && (c | 0x20) == 'm' && (text[i + 1] | 0x20) == 'a' && (text[i + 2] | 0x20) == 'p'
+                    && (text[i + 3] == ' ' || text[i + 3] == '\t')) {
+                i += 3;
+                while (i < length && (text[i] == ' ' || text[i] == '\t')) {
+                    i++;
+                }
+                boolean quoted = i < length && text[i] == '"';
+                if (quoted) {
+                    i++;
+                }
+                int start = i;
+                while (i < length && text[i] > ' ' && text[i] != '"' && text[i] != '{') {
+                    i++;
+                }
+                if (i > start) {
+                    maps.add(new String(text, start, i - start, StandardCharsets.ISO_8859_1).toUpperCase(Locale.ENGLISH));
+                }
+                lineStart = false;
+            } else {
+                lineStart = false;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Reads exactly the given number of bytes
+     *
+     * @param in InputStream - the stream
+     * @param b byte[] - where to put them
+     * @param length int - how many to read
+     * @throws IOException if the stream ends first
+     */
+    private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(b, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Skips exactly the given number of bytes
+     *
+     * @param in InputStream - the stream
+     * @param length long - how many to skip
+     * @throws IOException if the stream ends first
+     */
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long n = in.skip(length);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+
+    /**
+     * Reads part of a file, used for the data of one file in the archive
+     */
+    private static class RegionInputStream extends InputStream {
+
+        /**
+         * The archive
+         */
+        private final RandomAccessFile raf;
+
+        /**
+         * Where the next byte is read from
+         */
+        private long position;
+
+        /**
+         * Bytes left in the region
+         */
+        private long remaining;
+
+        /**
+         * Constructor
+         */
+        RegionInputStream(RandomAccessFile raf, long position, long length) {
+            this.raf = raf;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            raf.seek(position);
+            int n = raf.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                position += n;
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Reads the CPU time, memory use and open files of a process from /proc. One instance
+ * reuses its buffer for every read, so it should only be used by one thread.
+ */
+public class ProcStat {
+
+    /**
+     * Clock ticks per second used by /proc/&lt;pid&gt;/stat (USER_HZ, 100 on
+     * every common Linux platform)
+     */
+    public static final int CLOCK_TICKS = 100;
+
+    /**
+     * Size of a memory page in bytes
+     */
+    public static final int PAGE_SIZE = 4096;
+
+    /**
+     * Holds the contents of the file being read
+     */
+    private final byte[] buffer = new byte[1024];
+
+    /**
+     * User plus system CPU time of the last read process, in clock ticks
+     */
+    private long cpuTicks;
+
+    /**
+     * Resident set size of the last read process, in pages
+     */
+    private long rssPages;
+
+    /**
+     * Reads the stats of a process
+     *
+     * @param pid long - the process ID
+     * @return true if the process exists and its stats were read
+     */
+    public boolean read(long pid) {
+        int length = readFile("/proc/" + pid + "/stat");
+        if (length < 0) {
+            return false;
+        }
+        // The command name may contain spaces, so count fields from the last ')'
+        int i = length - 1;
+        while (i >= 0 && buffer[i] != ')') {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        // utime and stime are the 12th and 13th fields after the name
+        long utime = 0;
+        long stime = 0;
+        int field = 0;
+        i += 2;
+        while (i < length && field <= 12) {
+            long value = 0;
+            while (i < length && buffer[i] != ' ') {
+                value = value * 10 + (buffer[i] - '0');
+                i++;
+            }
+            field++;
+            if (field == 12) {
+                utime = value;
+            } else if (field == 13) {
+                stime = value;
+            }
+            i++;
+        }
+        if (field < 13) {
+            return false;
+        }
+
+        length = readFile("/proc/" + pid + "/statm");
+        if (length < 0) {
+            return false;
+        }
+        i = 0;
+        while (i < length && buffer[i] != ' ') {
+            i++;
+        }
+        long rss = 0;
+        for (i++; i < length && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+            rss = rss * 10 + (buffer[i] - '0');
+        }
+        cpuTicks = utime + stime;
+        rssPages = rss;
+        return true;
+    }
+
+    /**
+     * @return CPU time of the last read process in clock ticks
+     */
+    public long getCpuTicks() {
+        return cpuTicks;
+    }
+
+    /**
+     * @return resident memory of the last read process in bytes
+     */
+    public long getRssBytes() {
+        return rssPages * PAGE_SIZE;
+    }
+
+    /**
+     * Counts the open file descriptors of a process
+     *
+     * @param pid long - the process ID
+     * @return the number of open files, or -1 if they could not be listed
+     */
+    public int countOpenFiles(long pid) {
+        String[] fds = new File("/proc/" + pid + "/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    /**
+     * Reads a file into the buffer
+     *
+     * @param path String - the file
+     * @return number of bytes read, or -1 if it could not be read
+     */
+    private int readFile(String path) {
+        try (FileInputStream in = new FileInputStream(path)) {
+            int length = 0;
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the ID of a process. Process.pid() only exists from Java 9, on
+     * Java 8 the private field of the UNIX implementation is read instead.
+     * Detached servers know their own ID.
+     *
+     * @param process Process - the process
+     * @return the ID, or -1 if it is not known
+     */
+    public static long getPid(Process process) {
+        if (process instanceof DetachedProcess) {
+            return ((DetachedProcess) process).pid();
+        }
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (NoSuchMethodException e) {
+            try {
+                Field pid = process.getClass().getDeclaredField("pid");
+                pid.setAccessible(true);
+                return pid.getInt(process);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return -1;
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
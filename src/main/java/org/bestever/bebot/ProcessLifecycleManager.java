@@ -0,0 +1,222 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Handles stopping server processes. A server is first asked to "quit" over
+ * its console, then sent a terminate signal, and finally killed forcibly if it
+ * still has not exited. Every stop runs on its own thread so many servers can
+ * be shut down at once.
+ */
+public class ProcessLifecycleManager {
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Runs the shutdown sequences
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Number of servers that have been shut down
+     */
+    private final AtomicLong shutdowns = new AtomicLong();
+
+    /**
+     * Number of servers that ignored the terminate signal and had to be killed
+     */
+    private final AtomicLong forcedKills = new AtomicLong();
+
+    /**
+     * Total time (ms) spent waiting on servers to exit
+     */
+    private final AtomicLong totalShutdownTime = new AtomicLong();
+
+    /**
+     * The longest time (ms) a single server took to exit
+     */
+    private final AtomicLong maxShutdownTime = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public ProcessLifecycleManager(Bot bot) {
+        this.bot = bot;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ServerShutdown-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Stops a server without blocking the caller
+     *
+     * @param server Server - the server to stop
+     * @return a future holding the time (ms) it took the server to exit
+     */
+    public Future<Long> terminate(final Server server) {
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return shutdown(server);
+            }
+        });
+    }
+
+    /**
+     * Stops every server in parallel and waits until they have all exited or
+     * the shutdown deadline has passed
+     *
+     * @param servers Collection - the servers to stop
+     */
+    public void terminateAll(Collection<Server> servers) {
+        long start = System.currentTimeMillis();
+        List<Future<Long>> pending = new ArrayList<>();
+        for (Server s : servers) {
+            bot.removeServerFromLinkedList(s);
+            pending.add(terminate(s));
+        }
+
+        // Give everything one shared deadline rather than one per server
+        long deadline = start + getMaxShutdownWait();
+        int stopped = 0;
+        for (Future<Long> f : pending) {
+            try {
+                f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                stopped++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                logMessage(LOGLEVEL_IMPORTANT, "A server did not shut down cleanly: " + e);
+            }
+        }
+        logMessage(LOGLEVEL_IMPORTANT, "Stopped " + stopped + " of " + pending.size() + " server(s) in "
+                + (System.currentTimeMillis() - start) + " ms. " + getStatistics());
+    }
+
+    /**
+     * Runs the shutdown sequence for a single server, blocking until it has
+     * exited or has been forcibly killed
+     *
+     * @param server Server - the server to stop
+     * @return the time in ms it took for the process to exit
+     */
+    private long shutdown(Server server) {
+        if (server.serverprocess == null || server.serverprocess.getProcess() == null) {
+            return 0;
+        }
+        Process proc = server.serverprocess.getProcess();
+        long start = System.currentTimeMillis();
+        boolean forced = false;
+        try {
+            // Ask nicely first so the server can save its ban/admin lists
+            if (server.in != null) {
+                server.in.println("quit");
+            }
+            if (!proc.waitFor(bot.cfg_data.shutdown_quit_timeout, TimeUnit.MILLISECONDS)) {
+                proc.destroy();
+                if (!proc.waitFor(bot.cfg_data.shutdown_kill_timeout, TimeUnit.MILLISECONDS)) {
+                    forced = true;
+                    proc.destroyForcibly().waitFor(bot.cfg_data.shutdown_kill_timeout, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            forced = true;
+            proc.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        recordShutdown(elapsed, forced);
+        logMessage(LOGLEVEL_NORMAL, "Server " + server.server_id + " on port " + server.port + " exited after "
+                + elapsed + " ms" + (forced ? " (forcibly killed)." : "."));
+        return elapsed;
+    }
+
+    /**
+     * Updates the shutdown timing statistics
+     *
+     * @param elapsed long - time in ms it took to stop the server
+     * @param forced boolean - if the process had to be forcibly killed
+     */
+    private void recordShutdown(long elapsed, boolean forced) {
+        shutdowns.incrementAndGet();
+        totalShutdownTime.addAndGet(elapsed);
+        if (forced) {
+            forcedKills.incrementAndGet();
+        }
+        long max;
+        do {
+            max = maxShutdownTime.get();
+        } while (elapsed > max && !maxShutdownTime.compareAndSet(max, elapsed));
+    }
+
+    /**
+     * Returns the longest time a single server can take to go through the
+     * whole shutdown sequence
+     *
+     * @return time in ms
+     */
+    private long getMaxShutdownWait() {
+        return bot.cfg_data.shutdown_quit_timeout + 2L * bot.cfg_data.shutdown_kill_timeout;
+    }
+
+    /**
+     * Returns a summary of how long shutdowns have taken
+     *
+     * @return String - the statistics
+     */
+    public String getStatistics() {
+        long count = shutdowns.get();
+        long average = count == 0 ? 0 : totalShutdownTime.get() / count;
+        return "Shutdowns: " + count + ", average " + average + " ms, max " + maxShutdownTime.get()
+                + " ms, forcibly killed: " + forcedKills.get();
+    }
+
+    /**
+     * Stops accepting new shutdown requests
+     */
+    public void cancel() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,210 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Samples the CPU, memory and open files of every server process from /proc
+ * on a fixed interval and stores the results on the servers. A server that
+ * stays over one of the configured limits for several samples in a row is
+ * reported to the channel, or stopped if the action is "kill".
+ */
+public class ProcessSampler {
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Runs the samples
+     */
+    private final Timer timer = new Timer();
+
+    /**
+     * Reads /proc, only used from the timer thread
+     */
+    private final ProcStat procStat = new ProcStat();
+
+    /**
+     * The previous sample of each process, only used from the timer thread
+     */
+    private Map<ServerProcess, Sample> samples = new HashMap<>();
+
+    /**
+     * Collects the samples of the current run, swapped with the previous
+     * samples afterwards so neither map is reallocated
+     */
+    private Map<ServerProcess, Sample> current = new HashMap<>();
+
+    /**
+     * The previous sample of a process
+     */
+    private static class Sample {
+
+        /**
+         * CPU time in clock ticks
+         */
+        long cpuTicks;
+
+        /**
+         * When the sample was taken
+         */
+        long nanos;
+
+        /**
+         * Number of samples in a row that were over a limit
+         */
+        int strikes;
+
+        /**
+         * If the channel was already told about this process
+         */
+        boolean alerted;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public ProcessSampler(Bot bot) {
+        this.bot = bot;
+    }
+
+    /**
+     * Starts sampling, if it is enabled
+     */
+    public void start() {
+        long interval = bot.cfg_data.sampler_interval * 1000L;
+        if (interval <= 0) {
+            return;
+        }
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Samples every running server
+     */
+    private void sample() {
+        List<Server> servers;
+        try {
+            servers = new ArrayList<>(bot.servers);
+        } catch (RuntimeException e) {
+            // The list changed while it was copied, try again next time
+            return;
+        }
+        current.clear();
+        for (Server server : servers) {
+            ServerProcess process = server.serverprocess;
+            if (process == null) {
+                continue;
+            }
+            long pid = process.getPid();
+            long now = System.nanoTime();
+            if (pid <= 0 || !procStat.read(pid)) {
+                continue;
+            }
+            Sample sample = samples.get(process);
+            if (sample != null) {
+                double seconds = (now - sample.nanos) / 1e9;
+                double cpuSeconds = (double) (procStat.getCpuTicks() - sample.cpuTicks) / ProcStat.CLOCK_TICKS;
+                server.cpu_percent = seconds > 0 ? cpuSeconds / seconds * 100 : 0;
+            } else {
+                sample = new Sample();
+            }
+            sample.cpuTicks = procStat.getCpuTicks();
+            sample.nanos = now;
+            server.rss_bytes = procStat.getRssBytes();
+            server.open_fds = procStat.countOpenFiles(pid);
+            current.put(process, sample);
+            check(server, process, sample);
+        }
+        // Processes that are gone are dropped with the old map
+        Map<ServerProcess, Sample> previous = samples;
+        samples = current;
+        current = previous;
+    }
+
+    /**
+     * Checks a server against the limits and acts once it has been over them
+     * for long enough
+     *
+     * @param server Server - the sampled server
+     * @param process ServerProcess - its process
+     * @param sample Sample - its sample
+     */
+    private void check(Server server, ServerProcess process, Sample sample) {
+        String problem = getProblem(server);
+        if (problem == null) {
+            sample.strikes = 0;
+            sample.alerted = false;
+            return;
+        }
+        if (++sample.strikes < bot.cfg_data.sampler_grace) {
+            return;
+        }
+        if (bot.cfg_data.sampler_action.equalsIgnoreCase("kill")) {
+            logMessage(LOGLEVEL_IMPORTANT, "Stopping server " + server.server_id + " on port " + server.port + ": " + problem);
+            bot.sendMessageToChannel("Server on port " + server.port + " is being stopped: " + problem);
+            server.auto_restart = false;
+            process.terminateServer();
+            sample.strikes = 0;
+        } else if (!sample.alerted) {
+            logMessage(LOGLEVEL_IMPORTANT, "Server " + server.server_id + " on port " + server.port + ": " + problem);
+            bot.sendMessageToChannel("Warning: server on port " + server.port + " " + problem);
+            sample.alerted = true;
+        }
+    }
+
+    /**
+     * Returns which limit a server is over
+     *
+     * @param server Server - the sampled server
+     * @return a description of the problem, or null if it is within the limits
+     */
+    private String getProblem(Server server) {
+        if (bot.cfg_data.sampler_cpu_limit > 0 && server.cpu_percent > bot.cfg_data.sampler_cpu_limit) {
+            return "is using " + Math.round(server.cpu_percent) + "% CPU (limit " + bot.cfg_data.sampler_cpu_limit + "%)";
+        }
+        if (bot.cfg_data.sampler_mem_limit > 0 && server.rss_bytes > bot.cfg_data.sampler_mem_limit * 1024L * 1024L) {
+            return "is using " + server.rss_bytes / (1024 * 1024) + " MB of memory (limit " + bot.cfg_data.sampler_mem_limit + " MB)";
+        }
+        if (bot.cfg_data.sampler_fd_limit > 0 && server.open_fds > bot.cfg_data.sampler_fd_limit) {
+            return "has " + server.open_fds + " open files (limit " + bot.cfg_data.sampler_fd_limit + ")";
+        }
+        return null;
+    }
+
+    /**
+     * Stops sampling
+     */
+    public void cancel() {
+        timer.cancel();
+    }
+}
@@ -0,0 +1,275 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Records a Java Flight Recorder profile of the running bot for a number of
+ * seconds and writes it to the log directory. The recording uses the JDK's
+ * "profile" settings, which include allocation, GC and method samples, and
+ * the bot adds its own events for console lines, server queries, IRC sends
+ * and MySQL calls. When nothing is being recorded the event methods return
+ * right away without allocating.
+ * <p>
+ * The bot is built for Java 8, which has no jdk.jfr API to compile against,
+ * so the recording itself is done by JfrBackend. That class is compiled for
+ * Java 11 from src/main/java11 and loaded by name, and profiling is simply
+ * unavailable on a JVM that cannot load it.
+ */
+public class Profiler {
+
+    /**
+     * Does the actual recording, implemented on top of jdk.jfr
+     */
+    public interface Backend {
+
+        /**
+         * @return true if the JVM can record
+         */
+        boolean isAvailable();
+
+        /**
+         * Starts a recording with the JDK's "profile" settings
+         *
+         * @throws IOException if the settings could not be loaded
+         */
+        void start() throws IOException;
+
+        /**
+         * Stops the recording and writes it to a file
+         *
+         * @param file File - where to write the recording
+         * @throws IOException if it could not be written
+         */
+        void stop(File file) throws IOException;
+
+        /**
+         * Records a processed console line
+         */
+        void consoleLine(int port, int length, long processing);
+
+        /**
+         * Records a server query
+         */
+        void serverQuery(String host, int port, long rtt, boolean timedOut);
+
+        /**
+         * Records a message sent to IRC
+         */
+        void ircSend(String target, int length, long sending);
+
+        /**
+         * Records a MySQL connection being closed
+         */
+        void mysqlCall(String method, long held);
+    }
+
+    /**
+     * Name of the class implementing the backend
+     */
+    private static final String BACKEND_CLASS = "org.bestever.bebot.JfrBackend";
+
+    /**
+     * The backend, null if this JVM cannot load it
+     */
+    private static final Backend backend = loadBackend();
+
+    /**
+     * Longest profile that can be recorded, in seconds
+     */
+    public static final int MAX_SECONDS = 3600;
+
+    /**
+     * Set while a recording is running, checked before creating any event
+     */
+    private static volatile boolean recording;
+
+    /**
+     * File the running recording is written to
+     */
+    private static File activeFile;
+
+    /**
+     * Stops the running recording when its time is up
+     */
+    private static TimerTask stopTask;
+
+    /**
+     * Runs the stop tasks, created on first use
+     */
+    private static Timer timer;
+
+    /**
+     * Loads the backend if this JVM supports it
+     *
+     * @return the backend, or null
+     */
+    private static Backend loadBackend() {
+        try {
+            return (Backend) Class.forName(BACKEND_CLASS).newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            // Java 8, or built without the Java 11 sources
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this JVM can record flight recorder profiles
+     */
+    public static boolean isAvailable() {
+        return backend != null && backend.isAvailable();
+    }
+
+    /**
+     * @return true if a profile is being recorded
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Starts recording a profile
+     *
+     * @param bot Bot - the bot, used for the log directory and to report the
+     * result
+     * @param seconds int - how long to record
+     * @param target String - channel or nick told where the profile was
+     * written, or null to only log it
+     * @return a message describing what happened
+     */
+    public static synchronized String start(final Bot bot, int seconds, final String target) {
+        if (!isAvailable()) {
+            return "Java Flight Recorder is not available in this JVM.";
+        }
+        if (activeFile != null) {
+            return "A profile is already being recorded to " + activeFile.getName() + ".";
+        }
+        if (seconds < 1 || seconds > MAX_SECONDS) {
+            return "The profile length must be between 1 and " + MAX_SECONDS + " seconds.";
+        }
+        try {
+            backend.start();
+        } catch (IOException e) {
+            return "Could not load the profile settings: " + e.getMessage();
+        }
+        activeFile = new File(bot.cfg_data.bot_logfiledir + "profile-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+        recording = true;
+
+        if (timer == null) {
+            timer = new Timer("profiler", true);
+        }
+        stopTask = new TimerTask() {
+            @Override
+            public void run() {
+                String result = stop();
+                if (target != null) {
+                    bot.blockingIRCMessage(target, result);
+                }
+            }
+        };
+        timer.schedule(stopTask, seconds * 1000L);
+        logMessage(LOGLEVEL_NORMAL, "Recording a " + seconds + " second profile to " + activeFile.getPath() + ".");
+        return "Recording a " + seconds + " second profile to " + activeFile.getName() + ".";
+    }
+
+    /**
+     * Stops the running recording and writes it to its file
+     *
+     * @return a message describing what happened
+     */
+    public static synchronized String stop() {
+        if (activeFile == null) {
+            return "No profile is being recorded.";
+        }
+        recording = false;
+        stopTask.cancel();
+        File file = activeFile;
+        activeFile = null;
+        stopTask = null;
+        try {
+            backend.stop(file);
+            logMessage(LOGLEVEL_NORMAL, "Profile written to " + file.getPath() + ".");
+            return "Profile written to " + file.getName() + " (" + file.length() / 1024 + " KB).";
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not write profile " + file.getPath() + ": " + e.getMessage());
+            return "Could not write the profile; check the log.";
+        }
+    }
+
+    /**
+     * Records a processed console line
+     *
+     * @param port int - port of the server
+     * @param length int - length of the line
+     * @param start long - System.nanoTime() before processing
+     */
+    public static void consoleLine(int port, int length, long start) {
+        if (!recording) {
+            return;
+        }
+        backend.consoleLine(port, length, System.nanoTime() - start);
+    }
+
+    /**
+     * Records a server query
+     *
+     * @param host String - address of the server
+     * @param port int - port of the server
+     * @param start long - System.nanoTime() when the query was sent
+     * @param timedOut boolean - if the server did not answer
+     */
+    public static void serverQuery(String host, int port, long start, boolean timedOut) {
+        if (!recording) {
+            return;
+        }
+        backend.serverQuery(host, port, System.nanoTime() - start, timedOut);
+    }
+
+    /**
+     * Records a message sent to IRC
+     *
+     * @param target String - channel or nick
+     * @param message String - the message
+     * @param start long - System.nanoTime() before sending
+     */
+    public static void ircSend(String target, String message, long start) {
+        if (!recording) {
+            return;
+        }
+        backend.ircSend(target, message.length(), System.nanoTime() - start);
+    }
+
+    /**
+     * Records a MySQL connection being closed
+     *
+     * @param method String - the MySQL method that used it
+     * @param start long - System.nanoTime() when it was opened
+     */
+    public static void mysqlCall(String method, long start) {
+        if (!recording) {
+            return;
+        }
+        backend.mysqlCall(method, System.nanoTime() - start);
+    }
+}
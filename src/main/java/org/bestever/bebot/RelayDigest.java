@@ -0,0 +1,314 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Collects the game events one server relays to IRC and sends them once per
+ * window. Joins, connects, disconnects and time outs of several players are
+ * grouped into one line (ex: [name] 3 joined: a, b, c), and lines are sent
+ * in order of importance: results and votes before player changes and chat.
+ * Each server can only send so many lines per window, and while the IRC queue
+ * is backed up only results, votes and announcements are relayed at all; the
+ * rest is dropped and counted.
+ */
+public class RelayDigest {
+
+    /**
+     * The kinds of events, most important first
+     */
+    public enum Kind {
+
+        /**
+         * A player or team won, or a player exited the level
+         */
+        RESULT(null),
+        /**
+         * A vote was called or passed
+         */
+        VOTE(null),
+        /**
+         * A server announcement, such as the map changing
+         */
+        ANNOUNCEMENT(null),
+        /**
+         * A player connected
+         */
+        CONNECT("connected"),
+        /**
+         * A player joined the game
+         */
+        JOIN("joined"),
+        /**
+         * A player disconnected
+         */
+        DISCONNECT("disconnected"),
+        /**
+         * A player timed out
+         */
+        TIMEOUT("timed out"),
+        /**
+         * A player changed their name
+         */
+        RENAME(null),
+        /**
+         * Player chat
+         */
+        CHAT(null);
+
+        /**
+         * Describes a group of these events, null if they are not grouped
+         */
+        private final String verb;
+
+        /**
+         * Constructor
+         */
+        Kind(String verb) {
+            this.verb = verb;
+        }
+
+        /**
+         * @return true if the event is dropped while the IRC queue is backed
+         * up
+         */
+        boolean isLowPriority() {
+            return compareTo(CONNECT) >= 0;
+        }
+    }
+
+    /**
+     * A single event waiting to be sent
+     */
+    private static class Event {
+
+        /**
+         * Name of the server when the event happened
+         */
+        private final String servername;
+
+        /**
+         * The player the event is about, if any
+         */
+        private final String player;
+
+        /**
+         * The line to relay if the event is not grouped
+         */
+        private final String message;
+
+        /**
+         * Constructor
+         */
+        Event(String servername, String player, String message) {
+            this.servername = servername;
+            this.player = player;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Most events held for one window, more than that are dropped
+     */
+    private static final int MAX_EVENTS = 256;
+
+    /**
+     * Sends the digests of every server
+     */
+    private static final Timer timer = new Timer("relay", true);
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Lines a server may send per window
+     */
+    private final int lines;
+
+    /**
+     * Size of the IRC queue from which low priority events are dropped
+     */
+    private final int backpressure;
+
+    /**
+     * Events of the current window by kind
+     */
+    private final Map<Kind, List<Event>> pending = new EnumMap<>(Kind.class);
+
+    /**
+     * Number of events in the current window
+     */
+    private int pendingCount;
+
+    /**
+     * Events dropped in the current window
+     */
+    private int dropped;
+
+    /**
+     * Lines that can still be sent, refilled every window up to two windows
+     * worth so a quiet server can send a short burst
+     */
+    private int tokens;
+
+    /**
+     * Events dropped from every server
+     */
+    private final Metrics.Counter droppedTotal = Metrics.counter("relay.dropped");
+
+    /**
+     * Sends the digest every window
+     */
+    private final TimerTask task;
+
+    /**
+     * Constructor, starts sending digests
+     *
+     * @param bot
+     */
+    public RelayDigest(Bot bot) {
+        this.bot = bot;
+        this.lines = Math.max(1, bot.cfg_data.relay_lines);
+        this.backpressure = bot.cfg_data.relay_backpressure;
+        this.tokens = lines;
+        this.task = new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        long window = Math.max(100, bot.cfg_data.relay_window);
+        timer.scheduleAtFixedRate(task, window, window);
+    }
+
+    /**
+     * Adds an event to the current window
+     *
+     * @param kind Kind - the kind of event
+     * @param servername String - name of the server
+     * @param player String - the player the event is about, or null
+     * @param message String - the line to relay if it is not grouped
+     */
+    public synchronized void add(Kind kind, String servername, String player, String message) {
+        if (pendingCount >= MAX_EVENTS) {
+            dropped++;
+            return;
+        }
+        List<Event> events = pending.get(kind);
+        if (events == null) {
+            events = new ArrayList<>();
+            pending.put(kind, events);
+        }
+        events.add(new Event(servername, player, message));
+        pendingCount++;
+    }
+
+    /**
+     * Sends the digest of the current window
+     */
+    public void flush() {
+        for (String line : digest()) {
+            bot.sendMessageToChannel(line);
+        }
+    }
+
+    /**
+     * Sends what is left and stops sending digests
+     */
+    public void close() {
+        task.cancel();
+        flush();
+    }
+
+    /**
+     * Turns the events of the current window into the lines to send, and
+     * starts a new window
+     *
+     * @return the lines, most important first
+     */
+    synchronized List<String> digest() {
+        tokens = Math.min(2 * lines, tokens + lines);
+        List<String> out = new ArrayList<>();
+        if (pendingCount == 0 && dropped == 0) {
+            return out;
+        }
+        boolean backedUp = backpressure > 0 && bot.ircMessageQueue.size() >= backpressure;
+        String servername = null;
+        for (Map.Entry<Kind, List<Event>> entry : pending.entrySet()) {
+            Kind kind = entry.getKey();
+            List<Event> events = entry.getValue();
+            servername = events.get(0).servername;
+            if (backedUp && kind.isLowPriority()) {
+                dropped += events.size();
+                continue;
+            }
+            if (kind.verb != null && events.size() > 1) {
+                if (tokens > 0) {
+                    tokens--;
+                    out.add(group(kind, events));
+                } else {
+                    dropped += events.size();
+                }
+                continue;
+            }
+            for (Event event : events) {
+                if (tokens > 0) {
+                    tokens--;
+                    out.add(event.message);
+                } else {
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            droppedTotal.add(dropped);
+            // Mention what was lost, unless IRC is what is falling behind
+            if (!backedUp && servername != null) {
+                out.add("[" + servername + "] (" + dropped + " more event(s) not relayed)");
+            }
+        }
+        pending.clear();
+        pendingCount = 0;
+        dropped = 0;
+        return out;
+    }
+
+    /**
+     * Builds the line for a group of events
+     *
+     * @param kind Kind - the kind of the events
+     * @param events List - the events
+     * @return the line (ex: [name] 3 joined: a, b, c)
+     */
+    private static String group(Kind kind, List<Event> events) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[').append(events.get(0).servername).append("] ").append(events.size()).append(' ').append(kind.verb).append(": ");
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(events.get(i).player);
+        }
+        return sb.toString();
+    }
+}
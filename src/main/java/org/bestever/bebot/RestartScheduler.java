@@ -0,0 +1,218 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Restarts crashed servers that have auto-restart enabled. Restarts are delayed
+ * with an exponential backoff based on how often the server has crashed
+ * recently, and a server that keeps crashing is given up on entirely.
+ * <p>
+ * While a restart is pending the server is not in the server list, so the
+ * pending restarts are kept by port where the kill commands can find and
+ * cancel them.
+ */
+public class RestartScheduler {
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Runs the delayed restarts
+     */
+    private final Timer timer = new Timer();
+
+    /**
+     * Used to add jitter to the restart delays
+     */
+    private final Random random = new Random();
+
+    /**
+     * Recent crash times for each server, keyed by server_id
+     */
+    private final Map<String, Deque<Long>> crashHistory = new ConcurrentHashMap<>();
+
+    /**
+     * Servers waiting to be restarted, keyed by port
+     */
+    private final Map<Integer, Server> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public RestartScheduler(Bot bot) {
+        this.bot = bot;
+    }
+
+    /**
+     * Records a crash for the server and schedules it to be started again with
+     * the launch plan it was started with
+     *
+     * @param server Server - the server that exited
+     */
+    public void scheduleRestart(final Server server) {
+        int crashes = recordCrash(server.server_id);
+        if (crashes >= bot.cfg_data.restart_max_crashes) {
+            crashHistory.remove(server.server_id);
+            bot.serverJournal.stopped(server);
+            logMessage(LOGLEVEL_IMPORTANT, "Server " + server.server_id + " crashed " + crashes + " times, not restarting.");
+            bot.blockingIRCMessage(bot.cfg_data.ircChannel, "Server on port " + server.port + " crashed " + crashes
+                    + " times in " + bot.cfg_data.restart_crash_window + " seconds; auto-restart has been disabled.");
+            return;
+        }
+
+        long delay = getBackoff(crashes);
+        logMessage(LOGLEVEL_NORMAL, "Restarting server " + server.server_id + " in " + delay + " ms (crash " + crashes + ").");
+        bot.blockingIRCMessage(bot.cfg_data.ircChannel, "Server crashed! Attempting to restart server in "
+                + Math.max(1, delay / 1000) + " second(s)...");
+        pending.put(server.port, server);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                // Unless it was cancelled while waiting
+                if (pending.remove(server.port, server)) {
+                    restart(server);
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Returns the server waiting to be restarted on a port
+     *
+     * @param port int - the port
+     * @return the server, or null if no restart is pending on the port
+     */
+    public Server getPendingRestart(int port) {
+        return pending.get(port);
+    }
+
+    /**
+     * @return the servers waiting to be restarted
+     */
+    public List<Server> getPendingRestarts() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Cancels the pending restart of a server, it is then stopped for good
+     *
+     * @param server Server - the server
+     * @return true if the restart was cancelled, false if it was not pending
+     * anymore
+     */
+    public boolean cancelRestart(Server server) {
+        if (!pending.remove(server.port, server)) {
+            return false;
+        }
+        server.auto_restart = false;
+        forget(server);
+        bot.serverJournal.stopped(server);
+        logMessage(LOGLEVEL_NORMAL, "Cancelled the restart of server " + server.server_id + ".");
+        return true;
+    }
+
+    /**
+     * Clears the crash history of a server that was stopped on purpose
+     *
+     * @param server Server - the server
+     */
+    public void forget(Server server) {
+        if (server.server_id != null) {
+            crashHistory.remove(server.server_id);
+        }
+    }
+
+    /**
+     * Starts the server again on the port it was previously running on
+     *
+     * @param server Server - the server to restart
+     */
+    private void restart(Server server) {
+        // The server may have been killed while waiting
+        if (!server.auto_restart) {
+            forget(server);
+            bot.serverJournal.stopped(server);
+            return;
+        }
+        server.temp_port = server.port;
+        server.serverprocess = new ServerProcess(server, bot);
+        server.serverprocess.start();
+    }
+
+    /**
+     * Adds a crash to the history of the server and drops crashes that are
+     * outside of the crash window
+     *
+     * @param serverId String - the ID of the server
+     * @return the number of crashes inside the window, including this one
+     */
+    private int recordCrash(String serverId) {
+        long now = System.currentTimeMillis();
+        long windowStart = now - bot.cfg_data.restart_crash_window * 1000L;
+        Deque<Long> history = crashHistory.get(serverId);
+        if (history == null) {
+            history = new ArrayDeque<>();
+            crashHistory.put(serverId, history);
+        }
+        synchronized (history) {
+            history.addLast(now);
+            while (!history.isEmpty() && history.peekFirst() < windowStart) {
+                history.removeFirst();
+            }
+            return history.size();
+        }
+    }
+
+    /**
+     * Returns the delay before the next restart, doubling for every recent
+     * crash up to the maximum delay; half of it is randomized so servers that
+     * crashed together do not all restart at the same time
+     *
+     * @param crashes int - number of recent crashes
+     * @return delay in ms
+     */
+    private long getBackoff(int crashes) {
+        long base = bot.cfg_data.restart_delay * 1000L;
+        long max = bot.cfg_data.restart_max_delay * 1000L;
+        long delay = Math.min(max, base << Math.min(crashes - 1, 20));
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Cancels all pending restarts
+     */
+    public void cancel() {
+        timer.cancel();
+        pending.clear();
+    }
+}
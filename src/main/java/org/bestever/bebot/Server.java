@@ -18,22 +18,21 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ContiguousSet;
 import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
-import java.io.File;
 import java.io.PrintWriter;
 import java.security.NoSuchAlgorithmException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
 import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
 import static org.bestever.bebot.Logger.logMessage;
-import static org.bestever.bebot.MySQL.SERVER_ONLINE;
 
 public class Server {
 
@@ -248,6 +247,16 @@ public class Server {
      */
     public static final long DAY_MILLISECONDS = 1000 * 60 * 60 * 24;
 
+    /**
+     * Matches a range of maps (ex: map01-map10)
+     */
+    private static final Pattern MAP_RANGE = Pattern.compile("^map(\\d+)-map(\\d+)$");
+
+    /**
+     * Most servers brought back from the journal at the same time
+     */
+    private static final int RESTORE_THREADS = 8;
+
     /**
      * Active player list
      */
@@ -258,6 +267,38 @@ public class Server {
      */
     public String website;
 
+    /**
+     * The plan the server was launched with, reused when it is restarted
+     */
+    public LaunchPlan launch_plan;
+
+    /**
+     * The command built from the launch plan the first time the server was
+     * started, restarts only put their port into a copy of it
+     */
+    public List<String> run_command;
+
+    /**
+     * If this is an idle server of the standby pool that has not been claimed
+     */
+    public boolean standby = false;
+
+    /**
+     * CPU use of the process over the last sample interval, in percent of one
+     * core; -1 until it has been sampled twice
+     */
+    public volatile double cpu_percent = -1;
+
+    /**
+     * Resident memory of the process in bytes, -1 until it has been sampled
+     */
+    public volatile long rss_bytes = -1;
+
+    /**
+     * Open file descriptors of the process, -1 until it has been sampled
+     */
+    public volatile int open_fds = -1;
+
     /**
      * Default constructor for building a server
      */
@@ -296,175 +337,13 @@ public class Server {
         server.user_level = userLevel;
         server.executableType = bot.cfg_data.bot_executable;
 
-        // Regex that will match key=value, as well as quotes key="value"
-        Pattern regex = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
-        Matcher m = regex.matcher(message);
-        while (m.find()) {
-            switch (m.group(1).toLowerCase()) {
-                case "autorestart":
-                    server.auto_restart = handleTrue(m.group(2));
-                    break;
-                case "binary":
-                    switch (m.group(2).toLowerCase()) {
-                        case "zandronum":
-                            break;
-                        case "kpatch":
-                            server.executableType = bot.cfg_data.bot_executable_kpatch;
-                            break;
-                        case "developer":
-                            bot.sendMessageToChannel("Important: Developer repositories may be completely broken, will not run, or have many bugs. Use at your own risk! If it keeps crashing, it's probably the repository and there is nothing we can do to solve that.");
-                            server.executableType = bot.cfg_data.bot_executable_developerrepository;
-                            break;
-                        default:
-                            bot.sendMessageToChannel("Invalid binary (" + m.group(2) + "); please use 'kpatch' or 'developer' to use custom binaries (ex: binary=kpatch), or remove it to use default Zandronum.");
-                            return;
-                    }
-                    break;
-                case "buckshot":
-                    server.buckshot = handleTrue(m.group(2));
-                    break;
-                case "compatflags":
-                    server.compatflags = handleGameFlags(m.group(2));
-                    if (server.compatflags == FLAGS_ERROR) {
-                        bot.sendMessageToChannel("Problem with parsing compatflags");
-                        return;
-                    }
-                    break;
-                case "compatflags2":
-                    server.compatflags2 = handleGameFlags(m.group(2));
-                    if (server.compatflags == FLAGS_ERROR) {
-                        bot.sendMessageToChannel("Problem with parsing compatflags2");
-                        return;
-                    }
-                    break;
-                case "config":
-                    if (!server.checkConfig(bot.cfg_data.bot_cfg_directory_path + Functions.cleanInputFile(m.group(2).toLowerCase()))) {
-                        bot.sendMessageToChannel("Config file '" + m.group(2) + "' does not exist.");
-                        return;
-                    }
-                    server.config = Functions.cleanInputFile(m.group(2).toLowerCase());
-                    break;
-                case "data":
-                case "stdata":
-                    server.enable_skulltag_data = handleTrue(m.group(2));
-                    break;
-                case "dmflags":
-                    server.dmflags = handleGameFlags(m.group(2));
-                    if (server.dmflags == FLAGS_ERROR) {
-                        bot.sendMessageToChannel("Problem with parsing dmflags");
-                        return;
-                    }
-                    break;
-                case "dmflags2":
-                    server.dmflags2 = handleGameFlags(m.group(2));
-                    if (server.dmflags2 == FLAGS_ERROR) {
-                        bot.sendMessageToChannel("Problem with parsing dmflags2");
-                        return;
-                    }
-                    break;
-                case "dmflags3":
-                    server.dmflags3 = handleGameFlags(m.group(2));
-                    if (server.dmflags3 == FLAGS_ERROR) {
-                        bot.sendMessageToChannel("Problem with parsing dmflags3");
-                        return;
-                    }
-                    break;
-                case "duellimit":
-                    server.duellimit = Integer.valueOf(m.group(2));
-                    break;
-                case "fraglimit":
-                    server.fraglimit = Integer.valueOf(m.group(2));
-                    break;
-                case "gamemode":
-                    server.gamemode = getGamemode(m.group(2));
-                    break;
-                case "hostname":
-                    server.servername = m.group(2);
-                    break;
-                case "instagib":
-                    server.instagib = handleTrue(m.group(2));
-                    break;
-                case "maprotation":
-                    server.maprotation = handleTrue(m.group(2));
-                    break;
-                case "randommaprotation":
-                    server.randommaprotation = handleTrue(m.group(2));
-                    break;
-                case "iwad":
-                    server.iwad = getIwad(Functions.cleanInputFile(m.group(2)));
-                    break;
-                case "mapwad":
-                    server.mapwads = addWads(m.group(2));
-                    break;
-                case "map":
-                case "maps":
-                    server.maplist = addMaps(m.group(2));
-                    break;
-                case "maxplayers":
-                    server.maxplayers = Integer.valueOf(m.group(2));
-                    break;
-                case "port":
-                    if (Functions.checkValidPort(m.group(2))) {
-                        server.temp_port = Integer.valueOf(m.group(2));
-                    } else {
-                        bot.sendMessageToChannel("You did not input a valid port.");
-                        return;
-                    }
-                    if (server.checkPortExists(bot, server.temp_port)) {
-                        bot.sendMessageToChannel("Port " + server.temp_port + " is already in use.");
-                        return;
-                    }
-                    break;
-                case "skill":
-                    server.skill = handleSkill(m.group(2));
-                    if (server.skill == -1) {
-                        bot.sendMessageToChannel("Skill must be between 0-4");
-                        return;
-                    }
-                    break;
-                case "timelimit":
-                    server.timelimit = Integer.valueOf(m.group(2));
-                    break;
-                case "wad":
-                    String[] wadArray = addWads(m.group(2));
-                    if (wadArray.length > 0) {
-                        server.wads.addAll(Arrays.asList(wadArray));
-                    }
-                    if (!MySQL.checkHashes(server.wads.toArray(new String[wadArray.length]))) {
-                        return;
-                    }
-                    break;
-            }
-        }
-
-        // Check if the wads exist
-        if (server.wads != null) {
-            for (int i = 0; i < server.wads.size(); i++) {
-                if (server.wads.get(i).startsWith("iwad:")) {
-                    String tempWad = server.wads.get(i).replace("iwad:", "");
-                    if (!Functions.fileExists(bot.cfg_data.bot_iwad_directory_path + tempWad)) {
-                        bot.sendMessageToChannel("File (iwad) '" + tempWad + "' does not exist!");
-                        return;
-                    } else {
-                        server.wads.set(i, tempWad);
-                    }
-                } else if (!Functions.fileExists(bot.cfg_data.bot_wad_directory_path + server.wads.get(i))) {
-                    bot.sendMessageToChannel("File '" + server.wads.get(i) + "' does not exist!");
-                    return;
-                }
-            }
-        }
-
-        if (server.iwad == null) {
-            bot.sendMessageToChannel("You are missing an iwad, or have specified an incorrect iwad. You can add it by appending: iwad=your_iwad");
-            return;
+        HostCommandCompiler.Result result = new HostCommandCompiler(bot).compile(server, message);
+        Trace.mark("host command compiled");
+        for (String warning : result.getWarnings()) {
+            bot.sendMessageToChannel(warning);
         }
-        if (server.gamemode == null) {
-            bot.sendMessageToChannel("You are missing the gamemode, or have specified an incorrect gamemode. You can add it by appending: gamemode=your_gamemode");
-            return;
-        }
-        if (server.servername == null) {
-            bot.sendMessageToChannel("You are missing the hostname, or your hostname syntax is wrong. You can add it by appending: hostname=\"Your Server Name\"");
+        if (!result.isValid()) {
+            bot.sendMessageToChannel(Joiner.on(" ").join(result.getErrors()));
             return;
         }
 
@@ -483,92 +362,68 @@ public class Server {
             return;
         }
 
-        // Assign and start a new thread
-        server.serverprocess = new ServerProcess(server, bot);
-        server.serverprocess.start();
+        // Take over a standby server if one matches, otherwise start a new one
+        if (bot.standbyPool.claim(server)) {
+            Trace.mark("standby claimed");
+        } else {
+            server.serverprocess = new ServerProcess(server, bot);
+            server.serverprocess.start();
+            Trace.mark("process launched");
+        }
 
-        MySQL.logServer(server.servername, server.server_id, username);
+        bot.auditWriter.logServer(server.servername, server.server_id, username);
     }
 
     /**
-     * Servers stored in the database should be loaded upon invoking this
-     * function on bot startup This will automatically (assuming there isn't a
-     * MySQL error) begin to get the servers up and running and fill the objects
-     * with the appropriate information.
+     * Brings back the servers that were running when the bot stopped. Servers
+     * that were started detached and are still running are reattached, the
+     * others are started again on the ports and with the launch plans they
+     * had. Any process a server left behind is stopped first so the port is
+     * free; that can take a while, so the servers are brought back in
+     * parallel.
      *
      * @param bot The calling bot reference.
-     * @param rs
+     * @param entries List - the servers from the journal
      */
-    public void loadServers(Bot bot, ResultSet rs) {
-        // If something goes wrong...
-        if (rs == null) {
-            logMessage(LOGLEVEL_CRITICAL, "Unable to load servers from MySQL!");
+    public static void loadServers(final Bot bot, List<ServerJournal.Entry> entries) {
+        if (entries.isEmpty()) {
             return;
         }
-
-        // Go through each server and initialize them accordingly
-        int database_id = -1;
-        try {
-            Server server;
-            while (rs.next()) {
-                // The server should be marked as online, if it's not then skip it
-                if (rs.getInt("online") == SERVER_ONLINE) {
-                    database_id = rs.getInt("id");
-                    server = new Server(); // Reference a new object each time we run through the servers
-                    server.buckshot = (rs.getInt("buckshot") == 1);
-                    server.compatflags = rs.getInt("compatflags");
-                    server.compatflags2 = rs.getInt("compatflags2");
-                    server.config = rs.getString("config");
-                    server.dmflags = rs.getInt("dmflags");
-                    server.dmflags2 = rs.getInt("dmflags2");
-                    server.dmflags3 = rs.getInt("dmflags3");
-                    server.enable_skulltag_data = (rs.getInt("enable_skulltag_data") == 1);
-                    server.gamemode = rs.getString("gamemode");
-                    server.host_command = rs.getString("host_command");
-                    server.instagib = (rs.getInt("instagib") == 1);
-                    server.irc_channel = rs.getString("irc_channel");
-                    server.iwad = rs.getString("iwad");
-                    server.mapwads = rs.getString("mapwads").replace(" ", "").split(","); // Check this!
-                    // server.play_time = 0; // NOT IN THE DATABASE
-                    server.rcon_password = rs.getString("rcon_password");
-                    server.username = rs.getString("username"); // ???
-                    server.server_id = rs.getString("unique_id"); // ???
-                    server.servername = rs.getString("servername");
-                    server.time_started = rs.getLong("time_started");
-                    server.user_level = 0; // ??? Get from Mysql
-                    //server.wads = rs.getString("wads").replace(" ","").split(","); // Check this!
-
-                    // Handle the server (pass it to the appropriate places before referencing a new object) (server.port and server.serverprocess)
-                    logMessage(LOGLEVEL_NORMAL, "Successfully processed server id " + database_id + "'s data.");
+        logMessage(LOGLEVEL_IMPORTANT, "Restoring " + entries.size() + " server(s) from the journal.");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(entries.size(), RESTORE_THREADS));
+        for (final ServerJournal.Entry entry : entries) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A detached server is still running, take it over
+                    DetachedProcess process = DetachedProcess.attach(bot.cfg_data.runtime_dir, entry.getLaunchId(), entry.getPid());
+                    if (process != null) {
+                        Server server = entry.toServer();
+                        server.serverprocess = new ServerProcess(server, bot);
+                        server.serverprocess.attach(process);
+                        server.serverprocess.start();
+                        logMessage(LOGLEVEL_NORMAL, "Reattached to server " + server.server_id + " on port " + server.port + ".");
+                        return;
+                    }
+                    for (String file : entry.getFiles()) {
+                        if (!Functions.fileExists(file)) {
+                            logMessage(LOGLEVEL_IMPORTANT, "Not restoring server " + entry.getServerId() + ", " + file + " is missing.");
+                            bot.serverJournal.stopped(entry.getServerId());
+                            return;
+                        }
+                    }
+                    if (!ServerJournal.stopOrphan(entry, bot.cfg_data.shutdown_kill_timeout)) {
+                        logMessage(LOGLEVEL_IMPORTANT, "Not restoring server " + entry.getServerId() + ", its old process is still running.");
+                        return;
+                    }
+                    Server server = entry.toServer();
                     server.serverprocess = new ServerProcess(server, bot);
                     server.serverprocess.start();
+                    logMessage(LOGLEVEL_NORMAL, "Restored server " + server.server_id + " on port " + server.port + ".");
                 }
-            }
-        } catch (SQLException e) {
-            logMessage(LOGLEVEL_CRITICAL, "MySQL exception loading servers at " + database_id + "!");
+            });
         }
-    }
-
-    /**
-     * Checks to see if the configuration file exists
-     *
-     * @param config String - config name
-     * @return true/false
-     */
-    private boolean checkConfig(String config) {
-        File f = new File(config);
-        return f.exists();
-    }
-
-    /**
-     * Checks if a server exists on the port
-     *
-     * @param b Bot - the bot object
-     * @param port int - the port
-     * @return true if taken, false if not
-     */
-    private boolean checkPortExists(Bot b, int port) {
-        return b.getServer(port) != null;
+        executor.shutdown();
     }
 
     /**
@@ -577,7 +432,7 @@ public class Server {
      * @param skill String - skill level
      * @return int - skill level
      */
-    private static int handleSkill(String skill) {
+    static int handleSkill(String skill) {
         if (!Functions.isNumeric(skill) || Integer.parseInt(skill) > 4 || Integer.parseInt(skill) < 0) {
             return -1;
         } else {
@@ -591,7 +446,7 @@ public class Server {
      * @param wad comma-seperated list of wads
      * @return array of wads
      */
-    private static String[] addWads(String wad) {
+    static String[] addWads(String wad) {
         String[] wads = wad.split(",");
         for (int i = 0; i < wads.length; i++) {
             wads[i] = wads[i].trim().toLowerCase();
@@ -605,11 +460,10 @@ public class Server {
      * @param map comma-seperated list of maps
      * @return array of maps
      */
-    private static ArrayList<String> addMaps(String map) {
+    static ArrayList<String> addMaps(String map) {
         ArrayList<String> tmpMapList = new ArrayList<>();
-        Pattern regex = Pattern.compile("^map(\\d+)-map(\\d+)$");
         for (String s : map.split(",")) {
-            Matcher m = regex.matcher(s.toLowerCase());
+            Matcher m = MAP_RANGE.matcher(s.toLowerCase());
             if (m.find()) {
                 int a = Integer.parseInt(m.group(1));
                 int b = Integer.parseInt(m.group(2));
@@ -658,7 +512,7 @@ public class Server {
      * @return A string of the wad (lowercase), or null if there's no supported
      * iwad name
      */
-    private static String getIwad(String string) {
+    static String getIwad(String string) {
         // Check if in array, and if so return that value
         switch (string.toLowerCase()) {
             case "doom2":
@@ -718,7 +572,7 @@ public class Server {
      * @param string The keyword to check with the = sign (ex: gamemode=...)
      * @return A string of the gamemode, null if there was no such gamemode
      */
-    private static String getGamemode(String string) {
+    static String getGamemode(String string) {
         // Find out if the string we're given matches a game mode
         switch (string.toLowerCase()) {
             case "deathmatch":
@@ -775,7 +629,7 @@ public class Server {
      * @param string The keyword to check
      * @return True if to use it, false if not
      */
-    private static boolean handleTrue(String string) {
+    static boolean handleTrue(String string) {
         switch (string.toLowerCase()) {
             case "on":
             case "true":
@@ -809,7 +663,7 @@ public class Server {
      * @param keyword The keyword to check
      * @return A number of what it is
      */
-    private static int handleGameFlags(String keyword) {
+    static int handleGameFlags(String keyword) {
         // If the right side is numeric and passes some logic checks, return that as the flag
         int flag = 0;
         if (Functions.isNumeric(keyword)) {
@@ -837,6 +691,11 @@ public class Server {
                 return "autorestart: " + Boolean.toString(this.auto_restart);
             case "buckshot":
                 return "buckshot: " + Boolean.toString(this.buckshot);
+            case "cpu":
+                return "cpu: " + (this.cpu_percent < 0 ? "not sampled yet" : String.format("%.1f%%", this.cpu_percent));
+            case "mem":
+            case "memory":
+                return "mem: " + (this.rss_bytes < 0 ? "not sampled yet" : String.format("%.1f MB resident, %d open files", this.rss_bytes / (1024.0 * 1024.0), this.open_fds));
             case "compatflags":
                 return "compatflags: " + Integer.toString(this.compatflags);
             case "compatflags2":
@@ -0,0 +1,717 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Keeps a local journal of the running servers so they can be started again
+ * after the bot restarts, without needing the database. A record is appended
+ * whenever a server starts, changes or stops; each record carries a checksum,
+ * so a record torn by a crash is detected and everything before it is kept.
+ * The journal is compacted to one record per running server when it is
+ * replayed and whenever it has grown well past that.
+ */
+public class ServerJournal {
+
+    /**
+     * Marks the start of a journal file
+     */
+    private static final int MAGIC = 0x42424a32;
+
+    /**
+     * A server started or changed, followed by its entry
+     */
+    private static final byte RECORD_UP = 1;
+
+    /**
+     * A server stopped, followed by its ID
+     */
+    private static final byte RECORD_DOWN = 2;
+
+    /**
+     * Records larger than this are treated as damage
+     */
+    private static final int MAX_RECORD = 1 << 20;
+
+    /**
+     * Everything needed to start a server again
+     */
+    public static class Entry {
+
+        /**
+         * The server's unique ID
+         */
+        private String serverId;
+
+        /**
+         * The server ID the process was started with, which differs from
+         * serverId for a server claimed from the standby pool
+         */
+        private String launchId;
+
+        /**
+         * The port the server was running on
+         */
+        private int port;
+
+        /**
+         * Process ID of the server, -1 if it was not known
+         */
+        private long pid;
+
+        /**
+         * Username of the host
+         */
+        private String username;
+
+        /**
+         * Nick of the host
+         */
+        private String sender;
+
+        /**
+         * Channel the server reports to
+         */
+        private String ircChannel;
+
+        /**
+         * Account level of the host
+         */
+        private int userLevel;
+
+        /**
+         * Name of the server
+         */
+        private String servername;
+
+        /**
+         * The .host command the server was made from
+         */
+        private String hostCommand;
+
+        /**
+         * The iwad
+         */
+        private String iwad;
+
+        /**
+         * The game mode
+         */
+        private String gamemode;
+
+        /**
+         * The config file, if any
+         */
+        private String config;
+
+        /**
+         * The binary that was asked for
+         */
+        private String executableType;
+
+        /**
+         * If the server is restarted when it crashes
+         */
+        private boolean autoRestart;
+
+        /**
+         * If the server is immune to killinactive
+         */
+        private boolean protectedServer;
+
+        /**
+         * If the channel is not told when the server stops
+         */
+        private boolean hideStopMessage;
+
+        /**
+         * The maps that were asked for
+         */
+        private List<String> maplist;
+
+        /**
+         * Executable of the launch plan
+         */
+        private String executable;
+
+        /**
+         * Arguments of the launch plan
+         */
+        private List<String> arguments;
+
+        /**
+         * Wads of the launch plan
+         */
+        private List<String> wads;
+
+        /**
+         * Full paths of the iwad and wads of the launch plan
+         */
+        private List<String> files;
+
+        /**
+         * Key of the wad page
+         */
+        private String wadPageKey;
+
+        /**
+         * URL of the wad page
+         */
+        private String website;
+
+        /**
+         * Hash of the launch plan
+         */
+        private String hash;
+
+        /**
+         * Constructor
+         */
+        private Entry() {
+        }
+
+        /**
+         * Takes the details of a running server
+         *
+         * @param s Server - the server
+         * @return the entry, or null if the server has no launch plan
+         */
+        static Entry of(Server s) {
+            LaunchPlan plan = s.launch_plan;
+            if (s.server_id == null || plan == null) {
+                return null;
+            }
+            Entry e = new Entry();
+            e.serverId = s.server_id;
+            e.launchId = s.serverprocess != null ? s.serverprocess.getLaunchId() : s.server_id;
+            e.port = s.port;
+            e.pid = s.serverprocess != null ? s.serverprocess.getPid() : -1;
+            e.username = s.username;
+            e.sender = s.sender;
+            e.ircChannel = s.irc_channel;
+            e.userLevel = s.user_level;
+            e.servername = s.servername;
+            e.hostCommand = s.host_command;
+            e.iwad = s.iwad;
+            e.gamemode = s.gamemode;
+            e.config = s.config;
+            e.executableType = s.executableType;
+            e.autoRestart = s.auto_restart;
+            e.protectedServer = s.protected_server;
+            e.hideStopMessage = s.hide_stop_message;
+            e.maplist = s.maplist != null ? new ArrayList<>(s.maplist) : Collections.<String>emptyList();
+            e.executable = plan.getExecutable();
+            e.arguments = plan.getArguments();
+            e.wads = plan.getWads();
+            e.files = plan.getFiles();
+            e.wadPageKey = plan.getWadPageKey();
+            e.website = plan.getWebsite();
+            e.hash = plan.getHash();
+            return e;
+        }
+
+        /**
+         * Builds a server that starts with the same launch plan on the same
+         * port
+         *
+         * @return the server, not started yet
+         */
+        public Server toServer() {
+            Server s = new Server();
+            s.server_id = serverId;
+            s.port = port;
+            s.temp_port = port;
+            s.username = username;
+            s.sender = sender;
+            s.irc_channel = ircChannel;
+            s.user_level = userLevel;
+            s.servername = servername;
+            s.host_command = hostCommand;
+            s.iwad = iwad;
+            s.gamemode = gamemode;
+            s.config = config;
+            s.executableType = executableType;
+            s.auto_restart = autoRestart;
+            s.protected_server = protectedServer;
+            s.hide_stop_message = hideStopMessage;
+            s.maplist = new ArrayList<>(maplist);
+            s.launch_plan = LaunchPlan.restore(executable, arguments, wads, files, wadPageKey, website, hash);
+            s.wads = new ArrayList<>(wads);
+            s.website = website;
+            return s;
+        }
+
+        /**
+         * @return the server's unique ID
+         */
+        public String getServerId() {
+            return serverId;
+        }
+
+        /**
+         * @return the server ID the process was started with
+         */
+        public String getLaunchId() {
+            return launchId;
+        }
+
+        /**
+         * @return the port the server was running on
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return the process ID the server had, or -1 if it was not known
+         */
+        public long getPid() {
+            return pid;
+        }
+
+        /**
+         * @return full paths of the iwad and wads the server loads
+         */
+        public List<String> getFiles() {
+            return files;
+        }
+
+        /**
+         * Writes the entry to a record
+         *
+         * @param out DataOutputStream - the record
+         * @throws IOException
+         */
+        private void write(DataOutputStream out) throws IOException {
+            writeString(out, serverId);
+            writeString(out, launchId);
+            out.writeInt(port);
+            out.writeLong(pid);
+            writeString(out, username);
+            writeString(out, sender);
+            writeString(out, ircChannel);
+            out.writeInt(userLevel);
+            writeString(out, servername);
+            writeString(out, hostCommand);
+            writeString(out, iwad);
+            writeString(out, gamemode);
+            writeString(out, config);
+            writeString(out, executableType);
+            out.writeBoolean(autoRestart);
+            out.writeBoolean(protectedServer);
+            out.writeBoolean(hideStopMessage);
+            writeList(out, maplist);
+            writeString(out, executable);
+            writeList(out, arguments);
+            writeList(out, wads);
+            writeList(out, files);
+            writeString(out, wadPageKey);
+            writeString(out, website);
+            writeString(out, hash);
+        }
+
+        /**
+         * Reads an entry from a record
+         *
+         * @param in DataInputStream - the record
+         * @return the entry
+         * @throws IOException
+         */
+        private static Entry read(DataInputStream in) throws IOException {
+            Entry e = new Entry();
+            e.serverId = readString(in);
+            e.launchId = readString(in);
+            e.port = in.readInt();
+            e.pid = in.readLong();
+            e.username = readString(in);
+            e.sender = readString(in);
+            e.ircChannel = readString(in);
+            e.userLevel = in.readInt();
+            e.servername = readString(in);
+            e.hostCommand = readString(in);
+            e.iwad = readString(in);
+            e.gamemode = readString(in);
+            e.config = readString(in);
+            e.executableType = readString(in);
+            e.autoRestart = in.readBoolean();
+            e.protectedServer = in.readBoolean();
+            e.hideStopMessage = in.readBoolean();
+            e.maplist = readList(in);
+            e.executable = readString(in);
+            e.arguments = readList(in);
+            e.wads = readList(in);
+            e.files = readList(in);
+            e.wadPageKey = readString(in);
+            e.website = readString(in);
+            e.hash = readString(in);
+            return e;
+        }
+    }
+
+    /**
+     * The journal file
+     */
+    private final File file;
+
+    /**
+     * The running servers as of the last record, keyed by server_id
+     */
+    private final Map<String, Entry> live = new LinkedHashMap<>();
+
+    /**
+     * Appends to the journal, null until the journal has been replayed
+     */
+    private FileOutputStream out;
+
+    /**
+     * Records in the file, including the ones that are out of date
+     */
+    private int records;
+
+    /**
+     * Set once the bot is shutting down, nothing is recorded after that so
+     * the servers come back on the next start
+     */
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param file File - the journal file
+     */
+    public ServerJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the journal, compacts it and opens it for appending
+     *
+     * @return the servers that were running when the journal was last written
+     */
+    public synchronized List<Entry> replay() {
+        live.clear();
+        int read = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a server journal");
+                }
+                while (readRecord(in)) {
+                    read++;
+                }
+            } catch (EOFException e) {
+                // An empty file, or a record torn by a crash: keep what was read
+            } catch (IOException e) {
+                logMessage(LOGLEVEL_IMPORTANT, "Could not read server journal " + file.getPath() + ": " + e.getMessage());
+            }
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_CRITICAL, "Could not compact server journal " + file.getPath() + ": " + e.getMessage());
+        }
+        logMessage(LOGLEVEL_NORMAL, "Replayed " + read + " server journal record(s), " + live.size() + " server(s) were running.");
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Records a server that started or was claimed from the standby pool
+     *
+     * @param server Server - the server
+     */
+    public void started(Server server) {
+        Entry entry = Entry.of(server);
+        if (entry != null) {
+            append(RECORD_UP, entry, entry.serverId);
+        }
+    }
+
+    /**
+     * Records a change to the settings of a running server
+     *
+     * @param server Server - the server
+     */
+    public void updated(Server server) {
+        Entry entry = Entry.of(server);
+        if (entry != null) {
+            synchronized (this) {
+                if (!live.containsKey(entry.serverId)) {
+                    return;
+                }
+                append(RECORD_UP, entry, entry.serverId);
+            }
+        }
+    }
+
+    /**
+     * Records a server that stopped and will not be started again
+     *
+     * @param server Server - the server
+     */
+    public void stopped(Server server) {
+        if (server.server_id != null) {
+            stopped(server.server_id);
+        }
+    }
+
+    /**
+     * Records a server that stopped and will not be started again
+     *
+     * @param serverId String - the ID of the server
+     */
+    public synchronized void stopped(String serverId) {
+        if (live.containsKey(serverId)) {
+            append(RECORD_DOWN, null, serverId);
+        }
+    }
+
+    /**
+     * Stops recording, the journal keeps the servers that are running now
+     */
+    public synchronized void close() {
+        closed = true;
+        closeStream();
+    }
+
+    /**
+     * Appends a record and applies it
+     *
+     * @param type byte - RECORD_UP or RECORD_DOWN
+     * @param entry Entry - the server for RECORD_UP
+     * @param serverId String - the server
+     */
+    private synchronized void append(byte type, Entry entry, String serverId) {
+        if (closed || out == null) {
+            return;
+        }
+        if (type == RECORD_UP) {
+            live.put(serverId, entry);
+        } else {
+            live.remove(serverId);
+        }
+        try {
+            out.write(encode(type, entry, serverId));
+            out.getFD().sync();
+            records++;
+            if (records > 2 * live.size() + 64) {
+                compact();
+            }
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not write to server journal " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a single record and applies it
+     *
+     * @param in DataInputStream - the journal
+     * @return false if the record is damaged
+     * @throws IOException
+     */
+    private boolean readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 1 || length > MAX_RECORD) {
+            logMessage(LOGLEVEL_IMPORTANT, "Server journal " + file.getPath() + " has a damaged record, ignoring the rest.");
+            return false;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            logMessage(LOGLEVEL_IMPORTANT, "Server journal " + file.getPath() + " has a damaged record, ignoring the rest.");
+            return false;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(data, 1, length - 1));
+        switch (data[0]) {
+            case RECORD_UP:
+                Entry entry = Entry.read(record);
+                live.put(entry.serverId, entry);
+                return true;
+            case RECORD_DOWN:
+                live.remove(readString(record));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Encodes a record as length, checksum, type and body
+     *
+     * @param type byte - the record type
+     * @param entry Entry - the server for RECORD_UP
+     * @param serverId String - the server for RECORD_DOWN
+     * @return the bytes to write
+     * @throws IOException
+     */
+    private static byte[] encode(byte type, Entry entry, String serverId) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+        DataOutputStream data = new DataOutputStream(body);
+        data.writeByte(type);
+        if (type == RECORD_UP) {
+            entry.write(data);
+        } else {
+            writeString(data, serverId);
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream header = new DataOutputStream(record);
+        header.writeInt(bytes.length);
+        header.writeInt((int) crc.getValue());
+        header.write(bytes);
+        return record.toByteArray();
+    }
+
+    /**
+     * Rewrites the journal with one record per running server and reopens it
+     * for appending; the old journal is only replaced once the new one is on
+     * disk
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        closeStream();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream temp = new FileOutputStream(tempFile)) {
+            DataOutputStream header = new DataOutputStream(temp);
+            header.writeInt(MAGIC);
+            for (Entry entry : live.values()) {
+                temp.write(encode(RECORD_UP, entry, entry.serverId));
+            }
+            temp.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = live.size();
+        if (!closed) {
+            out = new FileOutputStream(file, true);
+        }
+    }
+
+    /**
+     * Closes the append stream
+     */
+    private void closeStream() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logMessage(LOGLEVEL_IMPORTANT, "Could not close server journal: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Stops a server process left over from before the bot restarted, so its
+     * port is free again. Only a process that was started for this server is
+     * stopped, recognized by the server ID on its command line.
+     *
+     * @param entry Entry - the server
+     * @param timeout long - ms to wait for the process to exit before killing
+     * it
+     * @return true if no leftover process is running
+     */
+    static boolean stopOrphan(Entry entry, long timeout) {
+        if (entry.pid <= 0 || !DetachedProcess.isServerProcess(entry.pid, entry.launchId)) {
+            return true;
+        }
+        logMessage(LOGLEVEL_NORMAL, "Stopping leftover process " + entry.pid + " of server " + entry.serverId + ".");
+        try {
+            DetachedProcess.signal(entry.pid, "TERM");
+            long deadline = System.currentTimeMillis() + timeout;
+            while (DetachedProcess.isServerProcess(entry.pid, entry.launchId)) {
+                if (System.currentTimeMillis() > deadline) {
+                    DetachedProcess.signal(entry.pid, "KILL");
+                    deadline = Long.MAX_VALUE;
+                }
+                Thread.sleep(50);
+            }
+            return true;
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not stop leftover process " + entry.pid + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Writes a string that may be null
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by writeString()
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Writes a list of strings
+     */
+    private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Reads a list written by writeList()
+     */
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > MAX_RECORD) {
+            throw new IOException("bad list size " + size);
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+}
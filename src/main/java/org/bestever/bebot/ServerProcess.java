@@ -14,19 +14,17 @@
 // --------------------------------------------------------------------------
 package org.bestever.bebot;
 
-import com.google.common.base.Joiner;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.List;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
 
 /**
  * This class is specifically for running the server only and notifying the bot
@@ -45,14 +43,63 @@ public class ServerProcess extends Thread {
     private final Bot bot;
 
     /**
-     * A reference to the server
+     * A reference to the server, this changes when a standby server is claimed
      */
-    private final Server server;
+    private volatile Server server;
 
     /**
      * The process of the server
      */
-    private Process proc;
+    private volatile Process proc;
+
+    /**
+     * Operating system ID of the process, 0 until it is looked up
+     */
+    private volatile long pid;
+
+    /**
+     * Handles the console output of the server
+     */
+    private final ConsoleLineProcessor lineProcessor;
+
+    /**
+     * Set once the server is accepting connections
+     */
+    private volatile boolean ready;
+
+    /**
+     * Console lines printed by this server
+     */
+    private final Metrics.Counter consoleLines = new Metrics.Counter();
+
+    /**
+     * Name the console line counter is registered under once the port is
+     * known
+     */
+    private String consoleLinesName;
+
+    /**
+     * Trace of the command that started this server, released once the
+     * server has replied or exited
+     */
+    private Trace trace;
+
+    /**
+     * The server ID the process is started with, a claimed standby server
+     * keeps the ID of the standby server
+     */
+    private String launchId;
+
+    /**
+     * A server process that was running before the bot restarted, set when
+     * attaching to it instead of starting a new one
+     */
+    private DetachedProcess attached;
+
+    /**
+     * Groups and paces the game events relayed to IRC
+     */
+    private final RelayDigest relayDigest;
 
     /**
      * Used in determining when the last activity of the server was in ms
@@ -72,6 +119,39 @@ public class ServerProcess extends Thread {
 
         this.bot = bot;
 
+        this.trace = Trace.handOff();
+
+        this.launchId = serverReference.server_id;
+
+        this.relayDigest = new RelayDigest(bot);
+
+        this.lineProcessor = new ConsoleLineProcessor(new ConsoleLineProcessor.Sink() {
+            @Override
+            public void relay(RelayDigest.Kind kind, String player, String message) {
+                relayDigest.add(kind, server.servername, player, message);
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                server.in.println(command);
+            }
+
+            @Override
+            public String checkBanned(String ip) {
+                try {
+                    return MySQL.checkBanned(ip);
+                } catch (UnknownHostException e) {
+                    logMessage(LOGLEVEL_IMPORTANT, "Could not check ban for " + ip + ": " + e.getMessage());
+                    return null;
+                }
+            }
+
+            @Override
+            public void activity() {
+                last_activity = System.currentTimeMillis();
+            }
+        });
+
         try {
             processServerRunCommand();
         } catch (Exception e) {
@@ -96,153 +176,172 @@ public class ServerProcess extends Thread {
      */
     public void terminateServer() {
         bot.removeServerFromLinkedList(this.server);
-        proc.destroy();
+        bot.processLifecycle.terminate(this.server);
     }
 
     /**
-     * Parse the server object and run the server based on the configuration
+     * Returns the running process of the server
+     *
+     * @return the process, or null if it has not been started
      */
-    private void processServerRunCommand() {
-        serverRunCommands = new ArrayList<>();
-        serverRunCommands.add(server.executableType);
-        if (server.temp_port != 0) {
-            addParameter("-port", String.valueOf(server.temp_port));
-        } else {
-            addParameter("-port", Integer.toString(bot.getMinPort()));
-        }
-
-        addParameter("+exec", bot.cfg_data.bot_cfg_directory_path + "global.cfg");
-
-        // Create a custom wadpage for us
-        server.website = bot.cfg_data.bot_wad_url + MySQL.createWadPage(Joiner.on(",").join(this.server.wads));
-
-        // Add the custom page to sv_website to avoid large wad list lookups
-        addParameter("+sv_website", server.website);
-
-        if (server.iwad != null) {
-            String iwad = bot.cfg_data.bot_iwad_directory_path + server.iwad;
-            addParameter("-iwad", iwad);
-        }
-
-        if (server.enable_skulltag_data) {
-
-            // Add the skulltag_* data files first since they need to be accessed by other wads
-            server.wads.add(0, "skulltag_actors_1-1-1.pk3");
-            server.wads.add(1, "skulltag_data_126.pk3");
-        }
-
-        // Add the extra wads and clean duplicates
-        server.wads.addAll(bot.cfg_data.bot_extra_wads);
-        server.wads = Functions.removeDuplicateWads(server.wads);
-
-        // Finally, add the wads
-        if (!server.wads.isEmpty()) {
-            for (String wad : server.wads) {
-                if (Server.isIwad(wad)) {
-                    addParameter("-file", bot.cfg_data.bot_iwad_directory_path + wad);
-                } else {
-                    addParameter("-file", bot.cfg_data.bot_wad_directory_path + wad);
-                }
-            }
-        }
-
-        if (server.skill != -1) {
-            addParameter("+skill", String.valueOf(server.skill));
-        }
-
-        if (server.gamemode != null) {
-            addParameter("+" + server.gamemode, " 1");
-            if (server.gamemode.equals("deathmatch")) {
-                addParameter("+cooperative", " 0");
-            } 
-        }
-
-        if (server.dmflags > 0) {
-            addParameter("+dmflags", Integer.toString(server.dmflags));
-        }
+    public Process getProcess() {
+        return proc;
+    }
 
-        if (server.dmflags2 > 0) {
-            addParameter("+dmflags2", Integer.toString(server.dmflags2));
+    /**
+     * Returns the operating system ID of the running process
+     *
+     * @return the ID, or -1 if the process has not been started or the ID is
+     * not available
+     */
+    public long getPid() {
+        Process p = proc;
+        if (p == null) {
+            return -1;
         }
-
-        if (server.dmflags3 > 0) {
-            addParameter("+dmflags3", Integer.toString(server.dmflags3));
+        if (pid == 0) {
+            pid = ProcStat.getPid(p);
         }
+        return pid;
+    }
 
-        if (server.compatflags > 0) {
-            addParameter("+compatflags", Integer.toString(server.compatflags));
-        }
+    /**
+     * Returns the server ID the process was started with
+     *
+     * @return the ID
+     */
+    public String getLaunchId() {
+        return launchId;
+    }
 
-        if (server.compatflags2 > 0) {
-            addParameter("+compatflags2", Integer.toString(server.compatflags2));
-        }
+    /**
+     * Makes this thread take over a server that kept running while the bot
+     * restarted, instead of starting a new process. Must be called before
+     * starting the thread.
+     *
+     * @param process DetachedProcess - the running server
+     */
+    public void attach(DetachedProcess process) {
+        this.attached = process;
+        this.launchId = process.getLaunchId();
+    }
 
-        if (server.instagib) {
-            addParameter("+instagib", "1");
-        }
+    /**
+     * Returns the server this process is currently running
+     *
+     * @return the server
+     */
+    public Server getServer() {
+        return server;
+    }
 
-        if (server.randommaprotation) {
-            addParameter("+sv_randommaprotation", "1");
+    /**
+     * Hands this standby server over to a server that was just hosted. The
+     * hosted server takes over the process and port, and the console commands
+     * are run to apply its settings.
+     *
+     * @param target Server - the hosted server
+     * @param commands List - console commands that apply the hosted server's
+     * settings
+     * @return true if the server was handed over, false if this process is not
+     * a ready standby server anymore
+     */
+    public synchronized boolean promote(Server target, List<String> commands) {
+        Server standby = this.server;
+        if (!standby.standby || !ready || proc == null || !proc.isAlive()) {
+            return false;
         }
-
-        if (server.maprotation) {
-            addParameter("+sv_maprotation", "1");
+        try {
+            createServerFiles(target);
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not create files for claimed server " + target.server_id + ": " + e.getMessage());
+            return false;
         }
-
-        if (server.buckshot) {
-            addParameter("+buckshot", "1");
+        target.serverprocess = this;
+        target.in = standby.in;
+        target.port = standby.port;
+        target.time_started = System.currentTimeMillis();
+        target.playerList = new ArrayList<>();
+        // The standby's plan has its own name and settings, restarts must use the hosted ones
+        target.launch_plan = LaunchPlan.getPlan(target, bot);
+        target.run_command = null;
+        target.wads = new ArrayList<>(target.launch_plan.getWads());
+        target.website = target.launch_plan.getWebsite();
+        target.rcon_password = target.server_id;
+        last_activity = System.currentTimeMillis();
+        this.server = target;
+        for (String command : commands) {
+            target.in.println(command);
         }
+        bot.servers.add(target);
+        bot.serverJournal.started(target);
+        bot.blockingIRCMessage(target.irc_channel, "Server started successfully on port " + target.port + "!");
+        Trace.mark("standby promoted");
+        sendServerInfo(target);
+        bot.asyncIRCMessage(target.sender, "To kill your server, in the channel " + bot.cfg_data.ircChannel + ", type .killmine to kill all of your servers, or .kill " + target.port + " to kill just this one.");
+        return true;
+    }
 
-        if (server.fraglimit > 0) {
-            addParameter("+fraglimit", Integer.toString(server.fraglimit));
+    /**
+     * Creates the ban list, white list and admin list of the server if they do
+     * not exist yet
+     *
+     * @param s Server - the server
+     * @throws IOException
+     */
+    private void createServerFiles(Server s) throws IOException {
+        File banlist = new File(bot.cfg_data.bot_banlistdir + s.server_id + ".txt");
+        if (!banlist.exists()) {
+            banlist.createNewFile();
         }
-
-        if (!server.maplist.isEmpty()) {
-            for (String s : server.maplist) {
-                addParameter("+addmap", s);
-            }
+        File whitelist = new File(bot.cfg_data.bot_whitelistdir + s.server_id + ".txt");
+        if (!whitelist.exists()) {
+            whitelist.createNewFile();
         }
-
-        if (server.duellimit > 0) {
-            addParameter("+duellimit", Integer.toString(server.duellimit));
+        File adminlist = new File(bot.cfg_data.bot_adminlistdir + s.server_id + ".txt");
+        if (!adminlist.exists()) {
+            adminlist.createNewFile();
         }
+    }
 
-        if (server.maxplayers > 0) {
-            addParameter("+sv_maxplayers", Integer.toString(server.maxplayers));
+    /**
+     * Sends the server ID, log file and wad page to the user that hosted the
+     * server, if they are allowed to see the RCON password
+     *
+     * @param s Server - the server
+     */
+    private void sendServerInfo(Server s) {
+        if (bot.cfg_data.bot_public_rcon || AccountType.isAccountTypeOf(s.user_level, AccountType.ADMIN, AccountType.MODERATOR, AccountType.RCON)) {
+            bot.asyncIRCMessage(s.sender, "Server ID (and RCON password): " + s.server_id);
+            bot.asyncIRCMessage(s.sender, "Log file: " + bot.cfg_data.bot_logs_url + s.server_id + ".txt");
+            bot.asyncIRCMessage(s.sender, "Wad page: " + s.website);
         }
+    }
 
-        if (server.timelimit > 0) {
-            addParameter("+timelimit", Integer.toString(server.timelimit));
+    /**
+     * Gets the launch plan of the server and the run command built from it,
+     * both are only built the first time the server is started
+     */
+    private void processServerRunCommand() {
+        if (server.launch_plan == null) {
+            server.launch_plan = LaunchPlan.getPlan(server, bot);
+            server.wads = new ArrayList<>(server.launch_plan.getWads());
+            server.website = server.launch_plan.getWebsite();
         }
-
-        if (server.servername != null) {
-            addParameter("+sv_hostname", bot.cfg_data.bot_hostname_base + " " + server.servername);
+        int port = server.temp_port != 0 ? server.temp_port : bot.getMinPort();
+        if (server.run_command == null) {
+            server.run_command = Collections.unmodifiableList(server.launch_plan.getRunCommand(server, port, bot.cfg_data));
         }
-
-        if (server.config != null) {
-            addParameter("+exec", bot.cfg_data.bot_cfg_directory_path + server.config);
+        serverRunCommands = new ArrayList<>(server.run_command);
+        serverRunCommands.set(LaunchPlan.PORT_INDEX, String.valueOf(port));
+        if (server.standby) {
+            // Keep idle standby servers off the master server list until they are claimed
+            serverRunCommands.add("+sv_updatemaster");
+            serverRunCommands.add("0");
         }
-
-        addParameter("+sv_rconpassword", server.server_id);
-        addParameter("+sv_banfile", bot.cfg_data.bot_banlistdir + server.server_id + ".txt");
-        addParameter("+sv_adminlistfile", bot.cfg_data.bot_adminlistdir + server.server_id + ".txt");
-        addParameter("+sv_banexemptionfile", bot.cfg_data.bot_whitelistdir + server.server_id + ".txt");
-
         server.rcon_password = server.server_id;
     }
 
-    /**
-     * Adds a parameter to the server run command araylist
-     *
-     * @param param String - parameter
-     * @param arg String - argument
-     */
-    public void addParameter(String param, String arg) {
-        Logger.logMessage(Logger.LOGLEVEL_DEBUG, "Adding param: " + param + " " + arg);
-        serverRunCommands.add(param);
-        serverRunCommands.add(arg);
-    }
-
     /**
      * This method should be executed when the data is set up to initialize the
      * server. It will be bound to this thread. Upon server termination this
@@ -253,28 +352,16 @@ public class ServerProcess extends Thread {
     @Override
     public void run() {
         String portNumber = ""; // This will hold the port number
-        File logFile, banlist, whitelist, adminlist;
-        String strLine, dateNow;
+        File logFile;
+        String strLine;
         server.time_started = System.currentTimeMillis();
         server.playerList = new ArrayList<>();
         last_activity = System.currentTimeMillis(); // Last activity should be when we start
-        BufferedReader br = null;
+        ConsoleCapture capture = null;
         BufferedWriter bw = null;
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MMM-dd HH:mm:ss");
         try {
             // Ensure we have the files created
-            banlist = new File(bot.cfg_data.bot_banlistdir + server.server_id + ".txt");
-            if (!banlist.exists()) {
-                banlist.createNewFile();
-            }
-            whitelist = new File(bot.cfg_data.bot_whitelistdir + server.server_id + ".txt");
-            if (!whitelist.exists()) {
-                whitelist.createNewFile();
-            }
-            adminlist = new File(bot.cfg_data.bot_adminlistdir + server.server_id + ".txt");
-            if (!adminlist.exists()) {
-                adminlist.createNewFile();
-            }
+            createServerFiles(server);
 
             // Set up the server
             ProcessBuilder pb = new ProcessBuilder(serverRunCommands);
@@ -282,29 +369,68 @@ public class ServerProcess extends Thread {
             // Redirect stderr to stdout
             pb.redirectErrorStream(true);
 
-            proc = pb.start();
+            long launched = System.nanoTime();
+            if (attached != null) {
+                proc = attached;
+            } else if (!server.standby && "fifo".equalsIgnoreCase(bot.cfg_data.launch_mode)) {
+                // Standby servers are not journaled, so they must stop with the bot
+                proc = DetachedProcess.start(serverRunCommands, bot.cfg_data.runtime_dir, launchId);
+            } else {
+                proc = pb.start();
+            }
+            if (trace != null) {
+                trace.stage("process started");
+            }
 
-            br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+            // Drain the output on its own thread so the server never waits on the bot
+            capture = new ConsoleCapture(proc.getInputStream(), bot.cfg_data.console_buffer_lines);
+            capture.start("console-" + launchId);
 
             // Set up the input (with autoflush)
             server.in = new PrintWriter(proc.getOutputStream(), true);
 
             // Set up file/IO
             logFile = new File(bot.cfg_data.bot_logfiledir + server.server_id + ".txt");
-            bw = new BufferedWriter(new FileWriter(bot.cfg_data.bot_logfiledir + server.server_id + ".txt"));
+            bw = new BufferedWriter(new FileWriter(bot.cfg_data.bot_logfiledir + server.server_id + ".txt", attached != null));
             if (!logFile.exists()) {
                 logFile.createNewFile();
             }
-
-            if (bot.cfg_data.bot_public_rcon || AccountType.isAccountTypeOf(server.user_level, AccountType.ADMIN, AccountType.MODERATOR, AccountType.RCON)) {
-                bot.asyncIRCMessage(server.sender, "Server ID (and RCON password): " + server.server_id);
-                bot.asyncIRCMessage(server.sender, "Log file: " + bot.cfg_data.bot_logs_url + server.server_id + ".txt");
-                bot.asyncIRCMessage(server.sender, "Wad page: " + server.website);
+            Server loggedServer = server;
+
+            if (attached != null) {
+                // The server is already up, it only needs to be tracked again
+                ready = true;
+                consoleLinesName = "console.lines." + server.port;
+                Metrics.register(consoleLinesName, consoleLines);
+                bot.servers.add(server);
+                bot.serverJournal.started(server);
+                bw.write(lineProcessor.formatLogLine("Bot reattached to the server."));
+                bot.blockingIRCMessage(server.irc_channel, "Reattached to the server on port " + server.port + ".");
+            } else if (!server.standby) {
+                sendServerInfo(server);
             }
 
             // Process server while it outputs text
-            while ((strLine = br.readLine()) != null) {
-                String[] keywords = strLine.split(" ");
+            Metrics.Counter totalLines = Metrics.counter("console.lines");
+            while ((strLine = capture.take()) != null) {
+                totalLines.increment();
+                consoleLines.increment();
+                // A claimed standby server logs to the file of the server that claimed it
+                if (loggedServer != server) {
+                    bw.close();
+                    bw = new BufferedWriter(new FileWriter(bot.cfg_data.bot_logfiledir + server.server_id + ".txt"));
+                    loggedServer = server;
+                }
+                int dropped = capture.takeDropped();
+                if (dropped > 0) {
+                    bw.write(lineProcessor.formatLogLine("[" + dropped + " console line(s) dropped, the bot fell behind]"));
+                    logMessage(LOGLEVEL_IMPORTANT, "Dropped " + dropped + " console line(s) of server " + server.server_id + ".");
+                }
+                bw.write(lineProcessor.formatLogLine(strLine));
+                if (capture.isEmpty()) {
+                    bw.flush();
+                }
+
                 // Make sure to get the port [Server using alternate port 10666.]
                 if (strLine.startsWith("Server using alternate port ")) {
                     System.out.println(strLine);
@@ -329,127 +455,48 @@ public class ServerProcess extends Thread {
                 // If we see this, the server started
                 if (strLine.equalsIgnoreCase("UDP Initialized.")) {
                     System.out.println(strLine);
-                    bot.servers.add(server);
-                    bot.blockingIRCMessage(server.irc_channel, "Server started successfully on port " + server.port + "!");
-                    bot.asyncIRCMessage(server.sender, "To kill your server, in the channel " + bot.cfg_data.ircChannel + ", type .killmine to kill all of your servers, or .kill " + server.port + " to kill just this one.");
-                }
-
-                // Check for banned players
-                if (keywords[0].equals("CONNECTION")) {
-                    String ip = keywords[keywords.length - 1].split(":")[0];
-                    String pIP;
-                    if ((pIP = MySQL.checkBanned(ip)) != null) {
-                        server.in.println("addban " + pIP + " perm \"You have been banned.\"");
+                    ready = true;
+                    Metrics.histogram("process.start").recordSince(launched);
+                    consoleLinesName = "console.lines." + server.port;
+                    Metrics.register(consoleLinesName, consoleLines);
+                    if (trace != null) {
+                        trace.stage("udp initialized");
                     }
-                }
-
-                // Check for RCON password changes
-                if (keywords.length > 3) {
-                    if (keywords[0].equals("->") && keywords[1].equalsIgnoreCase("sv_rconpassword")) {
-                        server.rcon_password = keywords[2];
-                    } else if (keywords[0].equalsIgnoreCase("\"sv_rconpassword\"")) {
-                        server.rcon_password = keywords[2].replace("\"", "");
+                    if (server.standby) {
+                        bot.standbyPool.standbyReady(this);
+                        continue;
                     }
-                }
-                
-                // Catch player chat messages
-                Matcher m = Pattern.compile("^(.*): (.*)").matcher(strLine);
-                if (m.find()) {
-                    String player = m.group(1);
-                    if (server.playerList.contains(player)) {
-                        String message = m.group(2);
-                        bot.sendMessageToChannel("[" + server.servername + "] <" + player + "> " + message);
+                    bot.servers.add(server);
+                    bot.serverJournal.started(server);
+                    bot.blockingIRCMessage(server.irc_channel, "Server started successfully on port " + server.port + "!");
+                    if (trace != null) {
+                        trace.stage("replied");
+                        trace.release();
+                        trace = null;
                     }
+                    bot.asyncIRCMessage(server.sender, "To kill your server, in the channel " + bot.cfg_data.ircChannel + ", type .killmine to kill all of your servers, or .kill " + server.port + " to kill just this one.");
                 }
 
-                m = Pattern.compile("^(.*) joined the game\\.").matcher(strLine);
-                if (m.find()) {
-                    last_activity = System.currentTimeMillis();
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-
-                m = Pattern.compile("(.*) has connected\\.").matcher(strLine);
-                if (m.find()) {
-                    String player = m.group(1);
-                    if (!server.playerList.contains(player)) {
-                        server.playerList.add(player);
-                    }
-                    last_activity = System.currentTimeMillis();
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
+                // Standby servers have nobody to relay to until they are claimed
+                if (server.standby) {
+                    continue;
                 }
 
-                m = Pattern.compile("^client (.*) disconnected\\.").matcher(strLine);
-                if (m.find()) {
-                    String player = m.group(1);
-                    if (server.playerList.contains(player)) {
-                        server.playerList.remove(player);
-                    }
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                
-                m = Pattern.compile("(.*) timed out\\.").matcher(strLine);
-                if (m.find()) {
-                    String player = m.group(1);
-                    if (server.playerList.contains(player)) {
-                        server.playerList.remove(player);
-                    }
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                                
-                m = Pattern.compile("(.*) \\(.*\\) has called a vote.*").matcher(strLine);
-                if (m.find()) {
-                    String player = m.group(1);
-                    if (server.playerList.contains(player)) {
-                        server.playerList.remove(player);
-                    }
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                
-                m = Pattern.compile("Vote passed!").matcher(strLine);
-                if (m.find()) {
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }                
-
-                m = Pattern.compile("^(.*) wins!").matcher(strLine);
-                if (m.find()) {
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                
-                m = Pattern.compile("^(.*) exited the level.").matcher(strLine);
-                if (m.find()) {
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                
-                m = Pattern.compile("^(.*) is now known as (.*)").matcher(strLine);
-                if (m.find()) {
-                    String oldName = m.group(1);
-                    String newName = m.group(2);
-                    if (!server.playerList.contains(newName)) {
-                        server.playerList.add(newName);
-                    }
-                    if (server.playerList.contains(oldName)) {
-                        server.playerList.remove(oldName);
-                    }
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                
-                m = Pattern.compile("^\\*\\*\\* \\w+: .* \\*\\*\\*$").matcher(strLine);
-                if (m.find()) {
-                    bot.sendMessageToChannel("[" + server.servername + "] " + strLine);
-                }
-                
-                dateNow = formatter.format(Calendar.getInstance().getTime());
-                bw.write(dateNow + " " + strLine + "\n");
-                bw.flush();
+                lineProcessor.process(server, strLine);
             }
 
             // Handle cleanup
-            dateNow = formatter.format(Calendar.getInstance().getTime());
             long end = System.currentTimeMillis();
             long uptime = end - server.time_started;
-            bw.write(dateNow + " Server stopped! Uptime was " + Functions.calculateTime(uptime));
+            bw.write(lineProcessor.formatLogLine("Server stopped! Uptime was " + Functions.calculateTime(uptime)));
             server.in.close();
 
+            // A standby server that was never claimed is replaced by the pool
+            if (server.standby) {
+                bot.standbyPool.standbyExited(this);
+                return;
+            }
+
             // Notify the main channel if enabled
             if (!server.hide_stop_message) {
                 if (server.port != 0) {
@@ -463,27 +510,38 @@ public class ServerProcess extends Thread {
 
             // Auto-restart the server if enabled, and only if successfully started
             if (server.auto_restart && server.port != 0) {
-                server.temp_port = server.port;
-                bot.blockingIRCMessage(bot.cfg_data.ircChannel, "Server crashed! Attempting to restart server...");
-                bot.processHost(server.username, server.user_level, server.sender, server.irc_channel, server.host_command, true, server.port);
+                bot.restartScheduler.scheduleRestart(server);
+            } else {
+                bot.restartScheduler.forget(server);
+                bot.serverJournal.stopped(server);
             }
 
         } catch (IOException | NumberFormatException e) {
-
+            if (!server.standby) {
+                bot.serverJournal.stopped(server);
+            }
         } finally {
+            if (trace != null) {
+                trace.stage("process exited");
+                trace.release();
+                trace = null;
+            }
+            if (consoleLinesName != null) {
+                Metrics.remove(consoleLinesName);
+            }
+            if (proc instanceof DetachedProcess) {
+                ((DetachedProcess) proc).cleanup();
+            }
+            relayDigest.close();
+            if (capture != null) {
+                capture.close();
+            }
             try {
                 if (bw != null) {
                     bw.close();
                 }
             } catch (IOException e) {
 
-            }
-            try {
-                if (br != null) {
-                    br.close();
-                }
-            } catch (IOException e) {
-
             }
         }
     }
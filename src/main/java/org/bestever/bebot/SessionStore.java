@@ -0,0 +1,264 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Keeps the login sessions of users, keyed by nick!login@host. Lookups and
+ * logins only touch memory; changes are queued and written to the database
+ * in batches by a background timer, and a session that is changed several
+ * times before a flush is only written once. Sessions that have not been
+ * used for the expiry time are dropped. When a session was last used is
+ * saved with it, at most once per hour of use, so the expiry carries over
+ * restarts of the bot.
+ */
+public class SessionStore {
+
+    /**
+     * A logged in user
+     */
+    static class Session {
+
+        /**
+         * The account the user is logged in as
+         */
+        final String username;
+
+        /**
+         * When the session was last used in ms
+         */
+        volatile long lastUsed;
+
+        /**
+         * When the session was last queued to be saved in ms
+         */
+        private volatile long lastSaved;
+
+        /**
+         * Constructor
+         *
+         * @param username String - the account
+         * @param lastUsed long - when the session was last used in ms
+         */
+        Session(String username, long lastUsed) {
+            this.username = username;
+            this.lastUsed = lastUsed;
+            this.lastSaved = lastUsed;
+        }
+    }
+
+    /**
+     * Queued in place of a session that has to be deleted
+     */
+    private static final Session DELETED = new Session(null, 0);
+
+    /**
+     * How often using a session saves when it was last used in ms
+     */
+    private static final long TOUCH_INTERVAL = 60 * 60 * 1000;
+
+    /**
+     * Sessions by usermask
+     */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Changes that have not been written yet, by usermask
+     */
+    private final Map<String, Session> pending = new ConcurrentHashMap<>();
+
+    /**
+     * How long a session lasts without being used in ms, 0 for forever
+     */
+    private final long expiry;
+
+    /**
+     * Runs the flushes
+     */
+    private final Timer timer = new Timer("sessions", true);
+
+    /**
+     * Constructor
+     *
+     * @param expiryDays int - days a session lasts without being used, 0 for
+     * forever
+     */
+    public SessionStore(int expiryDays) {
+        this.expiry = expiryDays * 24L * 60 * 60 * 1000;
+    }
+
+    /**
+     * Starts writing changes to the database in the background
+     *
+     * @param interval int - seconds between flushes
+     */
+    public void start(int interval) {
+        long period = Math.max(1, interval) * 1000L;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                purgeExpired();
+                flush();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Adds sessions that were loaded from the database, without writing them
+     * back
+     *
+     * @param loaded Map - sessions by usermask
+     */
+    public void load(Map<String, Session> loaded) {
+        sessions.putAll(loaded);
+        logMessage(LOGLEVEL_NORMAL, "Loaded " + loaded.size() + " sessions.");
+    }
+
+    /**
+     * Logs a user in
+     *
+     * @param usermask String - the user's nick!login@host
+     * @param username String - the account
+     */
+    public void put(String usermask, String username) {
+        Session session = new Session(username, System.currentTimeMillis());
+        sessions.put(usermask, session);
+        pending.put(usermask, session);
+    }
+
+    /**
+     * Returns the account a user is logged in as
+     *
+     * @param usermask String - the user's nick!login@host
+     * @return the username, or null if there is no session
+     */
+    public String get(String usermask) {
+        Session session = sessions.get(usermask);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            expire(usermask, session);
+            return null;
+        }
+        session.lastUsed = now;
+        if (now - session.lastSaved >= TOUCH_INTERVAL) {
+            session.lastSaved = now;
+            pending.put(usermask, session);
+        }
+        return session.username;
+    }
+
+    /**
+     * Logs a user out of this bot only, the session stays in the database
+     *
+     * @param usermask String - the user's nick!login@host
+     * @return the username, or null if there was no session
+     */
+    public String remove(String usermask) {
+        Session session = sessions.remove(usermask);
+        return session == null ? null : session.username;
+    }
+
+    /**
+     * @return the number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns if a session has not been used for too long
+     */
+    private boolean isExpired(Session session, long now) {
+        return expiry > 0 && now - session.lastUsed > expiry;
+    }
+
+    /**
+     * Drops an expired session and queues it to be deleted
+     */
+    private void expire(String usermask, Session session) {
+        if (sessions.remove(usermask, session)) {
+            pending.put(usermask, DELETED);
+            logMessage(LOGLEVEL_DEBUG, "Session of " + session.username + " (" + usermask + ") expired.");
+        }
+    }
+
+    /**
+     * Drops every expired session
+     */
+    private void purgeExpired() {
+        if (expiry <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (isExpired(entry.getValue(), now)) {
+                expire(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes the queued changes in one batch; if that fails they are queued
+     * again unless something newer has been queued since
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, Session> upserts = new LinkedHashMap<>();
+        List<String> deletes = new ArrayList<>();
+        Map<String, Session> taken = new LinkedHashMap<>();
+        for (String usermask : pending.keySet()) {
+            Session session = pending.remove(usermask);
+            if (session == null) {
+                continue;
+            }
+            taken.put(usermask, session);
+            if (session == DELETED) {
+                deletes.add(usermask);
+            } else {
+                upserts.put(usermask, session);
+            }
+        }
+        if (!MySQL.saveSessions(upserts, deletes)) {
+            for (Map.Entry<String, Session> entry : taken.entrySet()) {
+                pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            logMessage(LOGLEVEL_IMPORTANT, "Could not save " + taken.size() + " session changes, will retry.");
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes what is left
+     */
+    public void close() {
+        timer.cancel();
+        flush();
+    }
+}
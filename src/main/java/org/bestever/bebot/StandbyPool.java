@@ -0,0 +1,402 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import static org.bestever.bebot.Logger.LOGLEVEL_CRITICAL;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.LOGLEVEL_NORMAL;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Keeps idle servers running for the iwad/gamemode combinations listed in the
+ * standby_pool setting. A .host that only needs the iwad, gamemode and extra
+ * wads of one of these takes over an idle server instead of starting a new
+ * process, and the rest of its settings are applied over the console.
+ * Standby servers use the highest ports of the bot's port range and are not
+ * announced to the master server until they are claimed.
+ */
+public class StandbyPool {
+
+    /**
+     * How long (ms) to wait before replacing a standby server that exited
+     */
+    private static final long RESPAWN_DELAY = 30000;
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * How many standby servers to keep for each iwad:gamemode key
+     */
+    private final Map<String, Integer> targets = new LinkedHashMap<>();
+
+    /**
+     * Standby servers that are ready to be claimed, by iwad:gamemode key
+     */
+    private final Map<String, Deque<ServerProcess>> idle = new HashMap<>();
+
+    /**
+     * Every standby server that has not been claimed yet, including those still
+     * starting, mapped to its iwad:gamemode key
+     */
+    private final Map<ServerProcess, String> pending = new HashMap<>();
+
+    /**
+     * Used to delay respawning standby servers
+     */
+    private final Timer timer = new Timer();
+
+    /**
+     * Number of .host commands that were given a standby server
+     */
+    private int hits;
+
+    /**
+     * Number of .host commands that could have used a standby server but none
+     * was ready
+     */
+    private int misses;
+
+    /**
+     * Set once the bot is shutting down
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public StandbyPool(Bot bot) {
+        this.bot = bot;
+        parseTargets(bot.cfg_data.standby_pool);
+    }
+
+    /**
+     * Reads the iwad:gamemode:count entries of the standby_pool setting
+     *
+     * @param setting String - comma separated list of entries
+     */
+    private void parseTargets(String setting) {
+        if (setting == null || setting.trim().isEmpty()) {
+            return;
+        }
+        for (String entry : setting.split(",")) {
+            String[] parts = entry.trim().split(":");
+            String iwad = parts.length > 0 ? Server.getIwad(parts[0].trim()) : null;
+            String gamemode = parts.length > 1 ? Server.getGamemode(parts[1].trim()) : null;
+            if (iwad == null || gamemode == null) {
+                logMessage(LOGLEVEL_IMPORTANT, "Ignoring invalid standby_pool entry: " + entry);
+                continue;
+            }
+            int count = 1;
+            if (parts.length > 2 && Functions.isNumeric(parts[2].trim())) {
+                count = Integer.parseInt(parts[2].trim());
+            }
+            targets.put(getKey(iwad, gamemode), count);
+        }
+    }
+
+    /**
+     * Starts every standby server
+     */
+    public void start() {
+        for (Map.Entry<String, Integer> target : targets.entrySet()) {
+            for (int i = 0; i < target.getValue(); i++) {
+                spawn(target.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the key used to group standby servers
+     *
+     * @param iwad String - the iwad
+     * @param gamemode String - the gamemode
+     * @return String - the key
+     */
+    private static String getKey(String iwad, String gamemode) {
+        return iwad + ":" + gamemode;
+    }
+
+    /**
+     * Starts a standby server for the key on the highest free reserved port
+     *
+     * @param key String - iwad:gamemode key
+     */
+    private synchronized void spawn(String key) {
+        if (closed) {
+            return;
+        }
+        int port = getFreePort();
+        if (port == 0) {
+            logMessage(LOGLEVEL_IMPORTANT, "No free port for a " + key + " standby server.");
+            return;
+        }
+        String[] parts = key.split(":");
+        Server server = new Server();
+        server.standby = true;
+        server.hide_stop_message = true;
+        server.wads = new ArrayList<>();
+        server.maplist = new ArrayList<>();
+        server.executableType = bot.cfg_data.bot_executable;
+        server.iwad = parts[0];
+        server.gamemode = parts[1];
+        server.servername = "Standby";
+        server.irc_channel = bot.cfg_data.ircChannel;
+        server.temp_port = port;
+        try {
+            server.server_id = Functions.generateHash();
+        } catch (NoSuchAlgorithmException e) {
+            logMessage(LOGLEVEL_CRITICAL, "Error generating MD5 hash for a standby server!");
+            return;
+        }
+        server.serverprocess = new ServerProcess(server, bot);
+        pending.put(server.serverprocess, key);
+        server.serverprocess.start();
+        logMessage(LOGLEVEL_NORMAL, "Starting " + key + " standby server on port " + port + ".");
+    }
+
+    /**
+     * Returns the highest port of the bot's range that is neither reserved by
+     * another standby server nor in use
+     *
+     * @return the port, or 0 if none are free
+     */
+    private int getFreePort() {
+        int reserved = 0;
+        for (int count : targets.values()) {
+            reserved += count;
+        }
+        List<Integer> used = new ArrayList<>();
+        for (ServerProcess sp : pending.keySet()) {
+            used.add(sp.getServer().temp_port);
+        }
+        for (int port = bot.getMaxPort() - 1; port >= bot.getMaxPort() - reserved && port >= bot.getMinPort(); port--) {
+            if (!used.contains(port) && bot.getServer(port) == null && Functions.checkIfPortAvailable(port)) {
+                return port;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Called by a standby server once it is accepting connections
+     *
+     * @param sp ServerProcess - the standby server
+     */
+    public synchronized void standbyReady(ServerProcess sp) {
+        String key = pending.get(sp);
+        if (key == null) {
+            return;
+        }
+        Deque<ServerProcess> queue = idle.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            idle.put(key, queue);
+        }
+        queue.addLast(sp);
+    }
+
+    /**
+     * Called by a standby server that exited before being claimed, it is
+     * replaced after a delay so a broken configuration does not respawn in a
+     * tight loop
+     *
+     * @param sp ServerProcess - the standby server
+     */
+    public synchronized void standbyExited(ServerProcess sp) {
+        String key = pending.remove(sp);
+        if (key == null) {
+            return;
+        }
+        Deque<ServerProcess> queue = idle.get(key);
+        if (queue != null) {
+            queue.remove(sp);
+        }
+        logMessage(LOGLEVEL_IMPORTANT, "A " + key + " standby server exited, replacing it in " + RESPAWN_DELAY / 1000 + " seconds.");
+        respawn(key, RESPAWN_DELAY);
+    }
+
+    /**
+     * Starts a new standby server on the timer thread
+     *
+     * @param key String - iwad:gamemode key
+     * @param delay long - delay in ms
+     */
+    private synchronized void respawn(final String key, long delay) {
+        if (closed) {
+            return;
+        }
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                spawn(key);
+            }
+        }, delay);
+    }
+
+    /**
+     * Hands a standby server over to a newly hosted server if one matches it.
+     * Only servers that use the default binary, no wads other than the extra
+     * wads and no skulltag data can be given a standby server, since those
+     * are loaded when the process starts.
+     *
+     * @param server Server - the server that was hosted
+     * @return true if the server is now running on a standby process, false
+     * if it has to be started normally
+     */
+    public boolean claim(Server server) {
+        if (!server.executableType.equals(bot.cfg_data.bot_executable) || !server.wads.isEmpty()
+                || server.enable_skulltag_data || server.temp_port != bot.getMinPort()) {
+            return false;
+        }
+        String key = getKey(server.iwad, server.gamemode);
+        if (!targets.containsKey(key)) {
+            return false;
+        }
+        List<String> commands = getClaimCommands(server);
+        ServerProcess sp;
+        while ((sp = take(key)) != null) {
+            if (sp.promote(server, commands)) {
+                synchronized (this) {
+                    hits++;
+                }
+                logMessage(LOGLEVEL_NORMAL, "Server " + server.server_id + " claimed the " + key + " standby server on port " + server.port + ".");
+                respawn(key, 0);
+                return true;
+            }
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a ready standby server from the pool
+     *
+     * @param key String - iwad:gamemode key
+     * @return the standby server, or null if none are ready
+     */
+    private synchronized ServerProcess take(String key) {
+        Deque<ServerProcess> queue = idle.get(key);
+        if (queue == null || queue.isEmpty()) {
+            return null;
+        }
+        ServerProcess sp = queue.pollFirst();
+        pending.remove(sp);
+        return sp;
+    }
+
+    /**
+     * Builds the console commands that turn a standby server into the hosted
+     * server
+     *
+     * @param server Server - the hosted server
+     * @return the commands, in the order they should be run
+     */
+    private List<String> getClaimCommands(Server server) {
+        ConfigData cfg = bot.cfg_data;
+        List<String> commands = new ArrayList<>();
+        commands.add("sv_hostname \"" + Functions.escapeQuotes(cfg.bot_hostname_base + " " + server.servername) + "\"");
+        commands.add("sv_rconpassword " + server.server_id);
+        commands.add("sv_banfile \"" + cfg.bot_banlistdir + server.server_id + ".txt\"");
+        commands.add("sv_adminlistfile \"" + cfg.bot_adminlistdir + server.server_id + ".txt\"");
+        commands.add("sv_banexemptionfile \"" + cfg.bot_whitelistdir + server.server_id + ".txt\"");
+        // The same settings a normal launch passes, so both give the same server
+        List<String> settings = new ArrayList<>();
+        LaunchPlan.addSettings(settings, server);
+        for (int i = 0; i + 1 < settings.size(); i += 2) {
+            commands.add(settings.get(i).substring(1) + " " + settings.get(i + 1));
+        }
+        if (server.config != null) {
+            commands.add("exec \"" + cfg.bot_cfg_directory_path + server.config + "\"");
+        }
+        commands.add("sv_updatemaster 1");
+        // Reload the level so settings that only apply on a map change take effect
+        commands.add("map " + getFirstMap(server));
+        return commands;
+    }
+
+    /**
+     * Returns the map the hosted server should start on
+     *
+     * @param server Server - the hosted server
+     * @return String - the map lump name
+     */
+    private static String getFirstMap(Server server) {
+        if (!server.maplist.isEmpty()) {
+            return server.maplist.get(0);
+        }
+        switch (server.iwad) {
+            case "doom.wad":
+            case "doom1.wad":
+            case "heretic.wad":
+                return "e1m1";
+            default:
+                return "map01";
+        }
+    }
+
+    /**
+     * Returns how many standby servers are ready and how often they were used
+     *
+     * @return String - the status
+     */
+    public synchronized String getStatus() {
+        if (targets.isEmpty()) {
+            return "The standby pool is disabled.";
+        }
+        StringBuilder sb = new StringBuilder("Standby servers ready:");
+        for (Map.Entry<String, Integer> target : targets.entrySet()) {
+            Deque<ServerProcess> queue = idle.get(target.getKey());
+            sb.append(" ").append(target.getKey()).append(" ").append(queue == null ? 0 : queue.size())
+                    .append("/").append(target.getValue());
+        }
+        return sb.append(". Claimed: ").append(hits).append(", missed: ").append(misses).toString();
+    }
+
+    /**
+     * Stops every standby server that has not been claimed
+     */
+    public void shutdown() {
+        List<Server> standby = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            timer.cancel();
+            for (ServerProcess sp : pending.keySet()) {
+                standby.add(sp.getServer());
+            }
+            pending.clear();
+            idle.clear();
+        }
+        if (!standby.isEmpty()) {
+            bot.processLifecycle.terminateAll(standby);
+        }
+    }
+}
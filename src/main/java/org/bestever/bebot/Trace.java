@@ -0,0 +1,271 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Times the stages of a command as it moves between threads. A trace is
+ * started on the thread that receives the command and is the current trace of
+ * that thread; work that continues elsewhere (queued IRC replies, a server
+ * process being started) takes a reference with handOff() and releases it
+ * when done. Once every reference is released the trace is finished, kept in
+ * a ring buffer of recent traces, and logged if it was slow.
+ */
+public class Trace {
+
+    /**
+     * Most stages kept for one trace
+     */
+    private static final int MAX_STAGES = 32;
+
+    /**
+     * Hands out trace IDs
+     */
+    private static final AtomicLong ids = new AtomicLong();
+
+    /**
+     * The trace of the work the thread is doing
+     */
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+    /**
+     * Recently finished traces
+     */
+    private static volatile Trace[] recent = new Trace[128];
+
+    /**
+     * Number of traces finished so far, used as the ring buffer position
+     */
+    private static final AtomicLong finished = new AtomicLong();
+
+    /**
+     * Traces that take longer than this (ns) are logged, 0 to never log them
+     */
+    private static volatile long slowNanos = 2000000000L;
+
+    /**
+     * ID of the trace
+     */
+    private final long id;
+
+    /**
+     * What is being traced (ex: .host)
+     */
+    private final String name;
+
+    /**
+     * When the trace was started
+     */
+    private final long start = System.nanoTime();
+
+    /**
+     * References that have not been released yet
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Names of the recorded stages
+     */
+    private final String[] stages = new String[MAX_STAGES];
+
+    /**
+     * Time of each stage since the start, in ns
+     */
+    private final long[] times = new long[MAX_STAGES];
+
+    /**
+     * Thread each stage was recorded on
+     */
+    private final String[] threads = new String[MAX_STAGES];
+
+    /**
+     * Number of recorded stages
+     */
+    private int count;
+
+    /**
+     * Total time in ns, set when the trace is finished
+     */
+    private volatile long duration = -1;
+
+    /**
+     * Constructor
+     */
+    private Trace(String name) {
+        this.id = ids.incrementAndGet();
+        this.name = name;
+    }
+
+    /**
+     * Sets how slow traces are logged and how many are kept
+     *
+     * @param slowMs int - traces slower than this are logged, 0 to disable
+     * @param capacity int - how many recent traces are kept
+     */
+    public static void configure(int slowMs, int capacity) {
+        slowNanos = slowMs * 1000000L;
+        recent = new Trace[Math.max(1, capacity)];
+    }
+
+    /**
+     * Starts a trace and makes it the current trace of this thread
+     *
+     * @param name String - what is being traced
+     * @return the trace
+     */
+    public static Trace start(String name) {
+        Trace trace = new Trace(name);
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return the current trace of this thread, or null
+     */
+    public static Trace current() {
+        return current.get();
+    }
+
+    /**
+     * Records a stage of the current trace, if there is one
+     *
+     * @param stage String - the stage that was reached
+     */
+    public static void mark(String stage) {
+        Trace trace = current.get();
+        if (trace != null) {
+            trace.stage(stage);
+        }
+    }
+
+    /**
+     * Takes a reference to the current trace for work that continues on
+     * another thread; that work must call release() when it is done
+     *
+     * @return the current trace, or null if there is none
+     */
+    public static Trace handOff() {
+        Trace trace = current.get();
+        if (trace != null) {
+            trace.references.incrementAndGet();
+        }
+        return trace;
+    }
+
+    /**
+     * Ends this thread's part of the current trace
+     */
+    public static void end() {
+        Trace trace = current.get();
+        if (trace != null) {
+            current.remove();
+            trace.stage("handled");
+            trace.release();
+        }
+    }
+
+    /**
+     * Drops the current trace without recording it, for work that turned out
+     * not to be worth tracing
+     */
+    public static void discard() {
+        current.remove();
+    }
+
+    /**
+     * Records a stage
+     *
+     * @param stage String - the stage that was reached
+     */
+    public synchronized void stage(String stage) {
+        if (count < MAX_STAGES) {
+            stages[count] = stage;
+            times[count] = System.nanoTime() - start;
+            threads[count] = Thread.currentThread().getName();
+            count++;
+        }
+    }
+
+    /**
+     * Releases a reference, finishing the trace when it was the last one
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Stores the trace with the recent ones and logs it if it was slow
+     */
+    private void finish() {
+        duration = System.nanoTime() - start;
+        Trace[] buffer = recent;
+        buffer[(int) (finished.getAndIncrement() % buffer.length)] = this;
+        if (slowNanos > 0 && duration > slowNanos) {
+            logMessage(LOGLEVEL_IMPORTANT, "Slow " + this);
+        } else {
+            logMessage(LOGLEVEL_DEBUG, toString());
+        }
+    }
+
+    /**
+     * @return the recently finished traces, oldest first
+     */
+    public static List<Trace> getRecent() {
+        Trace[] buffer = recent;
+        long end = finished.get();
+        List<Trace> traces = new ArrayList<>(buffer.length);
+        for (long i = Math.max(0, end - buffer.length); i < end; i++) {
+            Trace trace = buffer[(int) (i % buffer.length)];
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * @return total time in ms, or -1 if the trace has not finished
+     */
+    public long getDurationMillis() {
+        return duration < 0 ? -1 : duration / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("trace #").append(id).append(' ').append(name);
+        if (duration >= 0) {
+            sb.append(' ').append(duration / 1000000).append(" ms");
+        }
+        sb.append(':');
+        String lastThread = null;
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? " " : ", ").append(stages[i]).append(" +").append(times[i] / 1000000);
+            if (!threads[i].equals(lastThread)) {
+                sb.append(" [").append(threads[i]).append(']');
+                lastThread = threads[i];
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class was written a very long time ago and probably has some outdated methods, or better
@@ -40,39 +41,20 @@ public class Utility {
 	}
 
 	public static short bytesToShort(byte lowerHalf, byte biggerHalf, boolean littleEndian) {
-		ByteBuffer bb = ByteBuffer.allocate(2);
-		bb.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-		bb.put(lowerHalf);
-		bb.put(biggerHalf);
-		return bb.getShort(0);
+		return littleEndian ? (short) ((lowerHalf & 0xFF) | (biggerHalf << 8)) : (short) ((lowerHalf << 8) | (biggerHalf & 0xFF));
 	}
 
 	public static short bytesToShort(byte lowerHalf, byte biggerHalf) {
-		ByteBuffer bb = ByteBuffer.allocate(2);
-		bb.order(ByteOrder.LITTLE_ENDIAN);
-		bb.put(lowerHalf);
-		bb.put(biggerHalf);
-		return bb.getShort(0);
+		return bytesToShort(lowerHalf, biggerHalf, true);
 	}
 
 	public static int bytesToInt(byte lowest, byte lower, byte high, byte highest) {
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.order(ByteOrder.LITTLE_ENDIAN);
-		bb.put(lowest);
-		bb.put(lower);
-		bb.put(high);
-		bb.put(highest);
-		return bb.getInt(0);
+		return bytesToInt(lowest, lower, high, highest, true);
 	}
 
 	public static int bytesToInt(byte lowest, byte lower, byte high, byte highest, boolean littleEndian) {
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-		bb.put(lowest);
-		bb.put(lower);
-		bb.put(high);
-		bb.put(highest);
-		return bb.getInt(0);
+		int n = (lowest & 0xFF) | (lower & 0xFF) << 8 | (high & 0xFF) << 16 | (highest & 0xFF) << 24;
+		return littleEndian ? n : Integer.reverseBytes(n);
 	}
 
 	public static int bytesToInt(byte[] b) {
@@ -80,13 +62,7 @@ public class Utility {
 			System.out.println("bytesToInt had a length that was not equal to four");
 			return 0;
 		}
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.order(ByteOrder.LITTLE_ENDIAN);
-		bb.put(b[0]);
-		bb.put(b[1]);
-		bb.put(b[2]);
-		bb.put(b[3]);
-		return bb.getInt(0);
+		return getIntLE(b, 0);
 	}
 
 	public static int bytesToInt(byte[] b, boolean littleEndian) {
@@ -94,27 +70,90 @@ public class Utility {
 			System.out.println("bytesToInt had a length that was not equal to four");
 			return 0;
 		}
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-		bb.put(b[0]);
-		bb.put(b[1]);
-		bb.put(b[2]);
-		bb.put(b[3]);
-		return bb.getInt(0);
+		return littleEndian ? getIntLE(b, 0) : getIntBE(b, 0);
 	}
 
 	public static int bytesToInt(byte[] b, int startIndex) {
-		if (b.length - 4 <= startIndex) {
+		if (startIndex < 0 || b.length - 4 < startIndex) {
 			System.out.println("bytesToInt had an index that would cause an ArrayOutOfBoundsException");
 			return 0;
 		}
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.order(ByteOrder.LITTLE_ENDIAN);
-		bb.put(b[0]);
-		bb.put(b[1]);
-		bb.put(b[2]);
-		bb.put(b[3]);
-		return bb.getInt(0);
+		return getIntLE(b, startIndex);
+	}
+
+	/**
+	 * The accessors below read primitives straight out of an array or buffer
+	 * at an offset without allocating anything. The buffer versions use
+	 * absolute reads, so the position and byte order of the buffer are left
+	 * alone. Offsets are not checked beyond what the array itself does.
+	 */
+	public static short getShortLE(byte[] b, int offset) {
+		return (short) ((b[offset] & 0xFF) | b[offset + 1] << 8);
+	}
+
+	public static short getShortBE(byte[] b, int offset) {
+		return (short) (b[offset] << 8 | (b[offset + 1] & 0xFF));
+	}
+
+	public static int getIntLE(byte[] b, int offset) {
+		return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | b[offset + 3] << 24;
+	}
+
+	public static int getIntBE(byte[] b, int offset) {
+		return b[offset] << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
+	}
+
+	public static long getLongLE(byte[] b, int offset) {
+		return (getIntLE(b, offset) & 0xFFFFFFFFL) | (long) getIntLE(b, offset + 4) << 32;
+	}
+
+	public static long getLongBE(byte[] b, int offset) {
+		return (long) getIntBE(b, offset) << 32 | (getIntBE(b, offset + 4) & 0xFFFFFFFFL);
+	}
+
+	public static short getShortLE(ByteBuffer bb, int offset) {
+		return (short) ((bb.get(offset) & 0xFF) | bb.get(offset + 1) << 8);
+	}
+
+	public static short getShortBE(ByteBuffer bb, int offset) {
+		return (short) (bb.get(offset) << 8 | (bb.get(offset + 1) & 0xFF));
+	}
+
+	public static int getIntLE(ByteBuffer bb, int offset) {
+		return (bb.get(offset) & 0xFF) | (bb.get(offset + 1) & 0xFF) << 8 | (bb.get(offset + 2) & 0xFF) << 16 | bb.get(offset + 3) << 24;
+	}
+
+	public static int getIntBE(ByteBuffer bb, int offset) {
+		return bb.get(offset) << 24 | (bb.get(offset + 1) & 0xFF) << 16 | (bb.get(offset + 2) & 0xFF) << 8 | (bb.get(offset + 3) & 0xFF);
+	}
+
+	public static long getLongLE(ByteBuffer bb, int offset) {
+		return (getIntLE(bb, offset) & 0xFFFFFFFFL) | (long) getIntLE(bb, offset + 4) << 32;
+	}
+
+	public static long getLongBE(ByteBuffer bb, int offset) {
+		return (long) getIntBE(bb, offset) << 32 | (getIntBE(bb, offset + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Decodes a fixed length name that is padded with nulls, such as a lump
+	 * name or a wad header. Trailing spaces are dropped like trim() would.
+	 *
+	 * @param b byte[] - the data
+	 * @param offset int - where the name starts
+	 * @param maxLength int - the size of the field
+	 * @return the name, without the padding
+	 */
+	public static String getName(byte[] b, int offset, int maxLength) {
+		int end = offset;
+		int limit = Math.min(b.length, offset + maxLength);
+		while (end < limit && b[end] != 0) {
+			end++;
+		}
+		while (end > offset && b[end - 1] == ' ') {
+			end--;
+		}
+		return new String(b, offset, end - offset, StandardCharsets.ISO_8859_1);
 	}
 
 	public static String bytesToString(byte[] b, boolean littleEndian) {
@@ -147,11 +186,6 @@ public class Utility {
 	}
 	
 	public static int flipEndianInt(int n) {
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		bb.order(ByteOrder.BIG_ENDIAN);
-		bb.putInt(n);
-		bb.order(ByteOrder.LITTLE_ENDIAN);
-		bb.rewind();
-		return bb.getInt();
+		return Integer.reverseBytes(n);
 	}
 }
@@ -0,0 +1,327 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.bestever.bebot.Logger.LOGLEVEL_DEBUG;
+import static org.bestever.bebot.Logger.LOGLEVEL_IMPORTANT;
+import static org.bestever.bebot.Logger.logMessage;
+
+/**
+ * Validates the wads of a host command in parallel. Every wad is checked on
+ * its own task in a fixed size thread pool (it exists, which directory it
+ * belongs in, what maps it has) while the blacklist is checked with one
+ * query, so a command with many wads takes about as long as its slowest
+ * file. The results are merged back in the order the wads were given.
+ */
+public class WadValidator {
+
+    /**
+     * Bot
+     */
+    private final Bot bot;
+
+    /**
+     * Runs the checks, at most the configured number at a time
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Constructor
+     *
+     * @param bot
+     */
+    public WadValidator(Bot bot) {
+        this.bot = bot;
+        this.pool = Executors.newFixedThreadPool(Math.max(1, bot.cfg_data.wad_validation_threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "WadValidator-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The outcome of validating the wads of a command
+     */
+    public static class Report {
+
+        /**
+         * The wads that exist, in the order they were given
+         */
+        private final List<String> wads = new ArrayList<>();
+
+        /**
+         * Everything that is wrong with the wads
+         */
+        private final List<String> errors = new ArrayList<>();
+
+        /**
+         * Every map found in the iwad, the wads and the extra wads, upper cased
+         */
+        private final Set<String> maps = new HashSet<>();
+
+        /**
+         * Set if the maps of every file could be read
+         */
+        private boolean mapsComplete = true;
+
+        /**
+         * @return the wads that exist, without the iwad: prefix
+         */
+        public List<String> getWads() {
+            return wads;
+        }
+
+        /**
+         * @return every error found
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns if a map is in one of the files, only meaningful if
+         * isMapsComplete() is true
+         *
+         * @param map String - the map name
+         * @return true if the map was found
+         */
+        public boolean hasMap(String map) {
+            return maps.contains(map.toUpperCase(Locale.ENGLISH));
+        }
+
+        /**
+         * @return true if the maps of every file could be read
+         */
+        public boolean isMapsComplete() {
+            return mapsComplete;
+        }
+    }
+
+    /**
+     * What was found out about a single file
+     */
+    private static class FileResult {
+
+        /**
+         * Name of the wad as it is passed to the server
+         */
+        private String wad;
+
+        /**
+         * Why the file cannot be used, or null
+         */
+        private String error;
+
+        /**
+         * Maps in the file, or null if they could not be read
+         */
+        private List<String> maps;
+    }
+
+    /**
+     * Checks a single file
+     */
+    private class FileCheck implements Callable<FileResult> {
+
+        /**
+         * The wad as it was given, possibly with an iwad: prefix
+         */
+        private final String given;
+
+        /**
+         * Set if only the maps are wanted (the iwad and the extra wads)
+         */
+        private final boolean mapsOnly;
+
+        /**
+         * Constructor
+         */
+        FileCheck(String given, boolean mapsOnly) {
+            this.given = given;
+            this.mapsOnly = mapsOnly;
+        }
+
+        @Override
+        public FileResult call() {
+            FileResult result = new FileResult();
+            boolean prefixed = given.startsWith("iwad:");
+            result.wad = prefixed ? given.substring(5) : given;
+
+            // IWADs are loaded from the iwad directory, like LaunchPlan does
+            boolean iwad = prefixed || Server.isIwad(result.wad);
+            String path = (iwad ? bot.cfg_data.bot_iwad_directory_path : bot.cfg_data.bot_wad_directory_path) + result.wad;
+            if (!new File(path).exists()) {
+                if (!mapsOnly) {
+                    result.error = "File " + (iwad ? "(iwad) " : "") + "'" + result.wad + "' does not exist!";
+                }
+                return result;
+            }
+            result.maps = readMaps(path);
+            return result;
+        }
+    }
+
+    /**
+     * Reads the maps of a wad or pk3
+     *
+     * @param path String - path to the file
+     * @return the maps, or null if the file type is unknown or it cannot be
+     * read
+     */
+    private static List<String> readMaps(String path) {
+        String lower = path.toLowerCase(Locale.ENGLISH);
+        try {
+            if (lower.endsWith(".wad")) {
+                return Arrays.asList(DoomFile.readLevelNames(path));
+            } else if (lower.endsWith(".pk3") || lower.endsWith(".ipk3") || lower.endsWith(".zip")) {
+                return Pk3Scanner.findMaps(path);
+            }
+        } catch (IOException e) {
+            logMessage(LOGLEVEL_DEBUG, "Could not read the maps of " + path + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Checks the blacklist for every wad with a single query
+     */
+    private static class BlacklistCheck implements Callable<List<String>> {
+
+        /**
+         * The wads to check
+         */
+        private final List<String> wads;
+
+        /**
+         * Constructor
+         */
+        BlacklistCheck(List<String> wads) {
+            this.wads = wads;
+        }
+
+        @Override
+        public List<String> call() {
+            return MySQL.checkHashes(wads);
+        }
+    }
+
+    /**
+     * Validates the wads of a command
+     *
+     * @param wads List - the wads as given, iwad: prefixed ones are looked
+     * for in the iwad directory
+     * @param iwad String - the iwad of the server, only used for its maps,
+     * may be null
+     * @return the merged report, the maps include those of the extra wads
+     */
+    public Report validate(List<String> wads, String iwad) {
+        List<FileCheck> checks = new ArrayList<>(wads.size() + 1);
+        for (String wad : wads) {
+            checks.add(new FileCheck(wad, false));
+        }
+        if (iwad != null) {
+            checks.add(new FileCheck("iwad:" + iwad, true));
+        }
+        for (String extra : bot.cfg_data.bot_extra_wads) {
+            checks.add(new FileCheck(extra, true));
+        }
+        List<String> names = new ArrayList<>(wads.size());
+        for (String wad : wads) {
+            names.add(wad.startsWith("iwad:") ? wad.substring(5) : wad);
+        }
+
+        Report report = new Report();
+        try {
+            Future<List<String>> blacklist = pool.submit(new BlacklistCheck(names));
+            List<Future<FileResult>> results = pool.invokeAll(checks);
+            for (int i = 0; i < checks.size(); i++) {
+                FileCheck check = checks.get(i);
+                FileResult result = getResult(check, results.get(i));
+                if (result.error != null) {
+                    report.errors.add(result.error);
+                } else if (!check.mapsOnly) {
+                    report.wads.add(result.wad);
+                }
+                if (result.maps == null) {
+                    report.mapsComplete = false;
+                } else {
+                    for (String map : result.maps) {
+                        report.maps.add(map.toUpperCase(Locale.ENGLISH));
+                    }
+                }
+            }
+
+            List<String> blacklisted;
+            try {
+                blacklisted = blacklist.get();
+            } catch (ExecutionException e) {
+                logMessage(LOGLEVEL_IMPORTANT, "Could not check the blacklist: " + e.getCause());
+                blacklisted = null;
+            }
+            if (blacklisted == null) {
+                report.errors.add("Could not check the wads against the blacklist; contact an administrator.");
+            } else {
+                report.errors.addAll(blacklisted);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.errors.add("The wads could not be checked; try again.");
+        }
+        return report;
+    }
+
+    /**
+     * Waits for the result of a file check, a check that failed counts as a
+     * file that could not be read
+     *
+     * @param check FileCheck - the check
+     * @param future Future - its result
+     * @return the result
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private static FileResult getResult(FileCheck check, Future<FileResult> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            logMessage(LOGLEVEL_IMPORTANT, "Could not check " + check.given + ": " + e.getCause());
+            FileResult result = new FileResult();
+            result.wad = check.given;
+            if (!check.mapsOnly) {
+                result.error = "Could not check '" + check.given + "'; contact an administrator.";
+            }
+            return result;
+        }
+    }
+}
@@ -11,6 +11,7 @@
 //-------------------------------------------------------------------------------
 package org.bestever.serverquery;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class Huffman {
@@ -218,7 +219,7 @@ public class Huffman {
             char[] outTmp = {tmp.val};
             out += new String(outTmp);
         }
-        return out.getBytes();
+        return out.getBytes(StandardCharsets.ISO_8859_1); // Every char is a single byte value
     }
 
     static public byte[] encode(byte[] in) {
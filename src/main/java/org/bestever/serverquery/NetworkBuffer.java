@@ -14,12 +14,13 @@
 // --------------------------------------------------------------------------
 package org.bestever.serverquery;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.charset.StandardCharsets;
+import org.bestever.bebot.Utility;
 
 /**
- * Encapsulation of inbound network data, can be extended to outbound as well
+ * Encapsulation of inbound network data, can be extended to outbound as well.
+ * The bytes are kept in a plain array and read from the front, so extracting
+ * a value does not box or allocate anything.
  */
 public class NetworkBuffer {
 
@@ -30,15 +31,20 @@ public class NetworkBuffer {
     private int max_capacity;
 
     /**
-     * Indicates how many bytes are in the buffer and where it will start any
-     * byte additions to the data structure
+     * Indicates how many bytes are in the buffer
      */
     private int offset_pointer;
 
     /**
-     * The list of data for FIFO structure
+     * Where the next byte will be read from
      */
-    private LinkedBlockingQueue<Byte> data;
+    private int read_pointer;
+
+    /**
+     * The data, the unread bytes are from read_pointer to read_pointer +
+     * offset_pointer
+     */
+    private byte[] data;
 
     /**
      * Constructs a network buffer with 1024 bytes
@@ -55,7 +61,8 @@ public class NetworkBuffer {
     public NetworkBuffer(int size) {
         this.max_capacity = size;
         this.offset_pointer = 0;
-        this.data = new LinkedBlockingQueue<>(size);
+        this.read_pointer = 0;
+        this.data = new byte[size];
     }
 
     /**
@@ -77,6 +84,19 @@ public class NetworkBuffer {
         return offset_pointer;
     }
 
+    /**
+     * Makes room for more bytes at the end of the array by moving the unread
+     * bytes to the front when needed
+     *
+     * @param length How many bytes are about to be added
+     */
+    private void prepareWrite(int length) {
+        if (read_pointer + offset_pointer + length > max_capacity) {
+            System.arraycopy(data, read_pointer, data, 0, offset_pointer);
+            read_pointer = 0;
+        }
+    }
+
     /**
      * Adds a byte to the buffer
      *
@@ -86,7 +106,8 @@ public class NetworkBuffer {
         if (offset_pointer + 1 > max_capacity) {
             throw new NetworkBufferException("Buffer is full, adding a byte would cause an overflow.");
         }
-        data.add(b);
+        prepareWrite(1);
+        data[read_pointer + offset_pointer] = b;
         offset_pointer++;
     }
 
@@ -99,10 +120,9 @@ public class NetworkBuffer {
         if (offset_pointer + b.length > max_capacity) {
             throw new NetworkBufferException("Buffer is full, adding a byte array would cause an overflow.");
         }
-        for (int i = 0; i < b.length; i++) {
-            data.add(b[i]);
-            offset_pointer++;
-        }
+        prepareWrite(b.length);
+        System.arraycopy(b, 0, data, read_pointer + offset_pointer, b.length);
+        offset_pointer += b.length;
     }
 
     /**
@@ -115,10 +135,22 @@ public class NetworkBuffer {
         if (offset_pointer + length > max_capacity) {
             throw new NetworkBufferException("Buffer is full, adding a byte array with length would cause an overflow.");
         }
-        for (int i = 0; i < length; i++) {
-            data.add(b[i]);
-            offset_pointer++;
-        }
+        prepareWrite(length);
+        System.arraycopy(b, 0, data, read_pointer + offset_pointer, length);
+        offset_pointer += length;
+    }
+
+    /**
+     * Moves past bytes that have been read
+     *
+     * @param length How many bytes were read
+     * @return Where the bytes started
+     */
+    private int consume(int length) {
+        int start = read_pointer;
+        read_pointer += length;
+        offset_pointer -= length;
+        return start;
     }
 
     /**
@@ -130,8 +162,7 @@ public class NetworkBuffer {
         if (offset_pointer - 1 < 0) {
             throw new NetworkBufferException("Buffer is empty, cannot extract a byte.");
         }
-        offset_pointer--;
-        return data.poll();
+        return data[consume(1)];
     }
 
     /**
@@ -145,14 +176,8 @@ public class NetworkBuffer {
         if (offset_pointer - 2 < 0) {
             throw new NetworkBufferException("Buffer is empty, cannot extract a short.");
         }
-        ByteBuffer byteBuffer = ByteBuffer.allocate(2);
-        byteBuffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-        for (int i = 0; i < 2; i++) {
-            byteBuffer.put(data.poll()); // Unroll me one day
-        }
-        offset_pointer -= 2;
-        byteBuffer.rewind();
-        return byteBuffer.getShort();
+        int start = consume(2);
+        return littleEndian ? Utility.getShortLE(data, start) : Utility.getShortBE(data, start);
     }
 
     /**
@@ -166,14 +191,8 @@ public class NetworkBuffer {
         if (offset_pointer - 4 < 0) {
             throw new NetworkBufferException("Buffer is empty, cannot extract an integer.");
         }
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-        byteBuffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-        for (int i = 0; i < 4; i++) {
-            byteBuffer.put(data.poll()); // Unroll me one day
-        }
-        offset_pointer -= 4;
-        byteBuffer.rewind();
-        return byteBuffer.getInt();
+        int start = consume(4);
+        return littleEndian ? Utility.getIntLE(data, start) : Utility.getIntBE(data, start);
     }
 
     /**
@@ -187,20 +206,14 @@ public class NetworkBuffer {
         if (offset_pointer - 8 < 0) {
             throw new NetworkBufferException("Buffer is empty, cannot extract a long.");
         }
-        ByteBuffer byteBuffer = ByteBuffer.allocate(8);
-        byteBuffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
-        for (int i = 0; i < 8; i++) {
-            byteBuffer.put(data.poll()); // Unroll me one day
-        }
-        offset_pointer -= 8;
-        byteBuffer.rewind();
-        return byteBuffer.getLong();
+        int start = consume(8);
+        return littleEndian ? Utility.getLongLE(data, start) : Utility.getLongBE(data, start);
     }
 
     /**
      * Extracts the data type from the front of the queue, including the null
-     * terminated zero; there must be null termination in the string or else it
-     * will not know when to stop
+     * terminated zero; if there is no null termination the rest of the buffer
+     * is taken as the string
      *
      * @return The string from the front of the buffer
      */
@@ -208,26 +221,17 @@ public class NetworkBuffer {
         if (offset_pointer <= 0) {
             throw new NetworkBufferException("Buffer is empty, cannot extract a string.");
         }
-        StringBuilder sb = new StringBuilder(max_capacity); // Just to be safe in case the string is the length of our array
-        Byte b;
-        for (int i = 0; i < offset_pointer; i++) {
-            b = data.poll();
-            if (b == null) {
-                throw new NetworkBufferException("Buffer offset pointer was desynchronized from the data, attempted extraction of a non-existing byte.");
-            }
-            offset_pointer--;
-            if (b == 0) {
-                break; // End of string while still taking the null terminator out
-            }
-            sb.append((char) ((byte) b));
+        int start = read_pointer;
+        int end = read_pointer + offset_pointer;
+        int terminator = start;
+        while (terminator < end && data[terminator] != 0) {
+            terminator++;
         }
-        String returnString = sb.toString();
-        if (returnString == null) {
-            throw new NetworkBufferException("String extraction resulted in a null string.");
-        } else if (returnString.equals("")) {
+        consume(Math.min(terminator + 1, end) - start);
+        if (terminator == start) {
             throw new NetworkBufferException("String extraction resulted in an empty string.");
         }
-        return returnString;
+        return new String(data, start, terminator - start, StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -237,10 +241,7 @@ public class NetworkBuffer {
      */
     public byte[] extractAll() {
         byte[] outData = new byte[offset_pointer];
-        for (int i = 0; i < offset_pointer; i++) {
-            outData[i] = data.poll();
-        }
-        offset_pointer = 0;
+        System.arraycopy(data, consume(offset_pointer), outData, 0, outData.length);
         return outData;
     }
 }
@@ -22,6 +22,8 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import org.bestever.bebot.Bot;
+import org.bestever.bebot.Metrics;
+import org.bestever.bebot.Profiler;
 
 /**
  * This is designed to handle a single process by messaging the server and then
@@ -75,182 +77,195 @@ public class QueryHandler extends Thread {
      * @param data The data from the server
      */
     private void processIncomingPacket(byte[] data) {
-        NetworkBuffer networkBuffer = new NetworkBuffer(data.length);
         try {
-            networkBuffer.add(data);
-            QueryResult queryResult = new QueryResult();
-
-            // Basic extractions we don't care about
-            int header = networkBuffer.extractInt(true);
-            if (header == 5660024) {
-                throw new NetworkPacketProcessException("Querying server too much.");
-            } else if (header == 5660025) {
-                throw new NetworkPacketProcessException("Host has banned the IP.");
+            // Display the final result in the channel
+            displayQueryResult(parseResponse(data));
+        } catch (NetworkBufferException nbe) {
+            if (nbe.getMessage() != null) {
+                bot.sendMessageToChannel(nbe.getMessage());
+            } else {
+                bot.sendMessageToChannel("NetworkBufferException was thrown, please contact an administrator now.");
             }
+        } catch (NetworkPacketProcessException nppe) {
+            bot.sendMessageToChannel("Network exception: " + nppe.getMessage());
+        }
+    }
 
-            // Extract time, as it's useles to us right now
-            networkBuffer.extractInt(true);
+    /**
+     * Reads a decoded launcher response into a query result
+     *
+     * @param data The decoded data from the server
+     * @return The query result
+     * @throws NetworkPacketProcessException If the server refused the query
+     * @throws NetworkBufferException If the packet is shorter than its flags
+     * say it is
+     */
+    public static QueryResult parseResponse(byte[] data) throws NetworkPacketProcessException {
+        NetworkBuffer networkBuffer = new NetworkBuffer(data.length);
+        networkBuffer.add(data);
+        QueryResult queryResult = new QueryResult();
+
+        // Basic extractions we don't care about
+        int header = networkBuffer.extractInt(true);
+        if (header == 5660024) {
+            throw new NetworkPacketProcessException("Querying server too much.");
+        } else if (header == 5660025) {
+            throw new NetworkPacketProcessException("Host has banned the IP.");
+        }
 
-            // Extract version string, as it's useles to us right now
-            networkBuffer.extractString();
+        // Extract time, as it's useles to us right now
+        networkBuffer.extractInt(true);
 
-            // What the server wants to send back to us (and read every flag safely)
-            int inboundFlags = networkBuffer.extractInt(true);
+        // Extract version string, as it's useles to us right now
+        networkBuffer.extractString();
 
-            if ((inboundFlags & ServerQueryFlags.SQF_NAME) == ServerQueryFlags.SQF_NAME) {
-                networkBuffer.extractString(); // Server name
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_URL) == ServerQueryFlags.SQF_URL) {
-                networkBuffer.extractString(); // Server URL
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_EMAIL) == ServerQueryFlags.SQF_EMAIL) {
-                networkBuffer.extractString(); // Server email
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_MAPNAME) == ServerQueryFlags.SQF_MAPNAME) {
-                networkBuffer.extractString(); // Map name
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_MAXCLIENTS) == ServerQueryFlags.SQF_MAXCLIENTS) {
-                networkBuffer.extractByte(); // Max clients allowed in the server (sv_maxclients)
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_MAXPLAYERS) == ServerQueryFlags.SQF_MAXPLAYERS) {
-                networkBuffer.extractByte(); // Max players allowed in the server (sv_maxplayers)
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_PWADS) == ServerQueryFlags.SQF_PWADS) {
-                byte numOfPwads = networkBuffer.extractByte(); // How many loaded wads there are
-                if (numOfPwads > 0) {
-                    String pwadList = "";
-                    for (int n = 0; n < numOfPwads; n++) {
-                        if (n == numOfPwads - 1) {
-                            pwadList += networkBuffer.extractString(); // Don't add a delimiter for the end of the list
-                        } else {
-                            pwadList += networkBuffer.extractString() + ",";
-                        }
+        // What the server wants to send back to us (and read every flag safely)
+        int inboundFlags = networkBuffer.extractInt(true);
+
+        if ((inboundFlags & ServerQueryFlags.SQF_NAME) == ServerQueryFlags.SQF_NAME) {
+            networkBuffer.extractString(); // Server name
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_URL) == ServerQueryFlags.SQF_URL) {
+            networkBuffer.extractString(); // Server URL
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_EMAIL) == ServerQueryFlags.SQF_EMAIL) {
+            networkBuffer.extractString(); // Server email
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_MAPNAME) == ServerQueryFlags.SQF_MAPNAME) {
+            networkBuffer.extractString(); // Map name
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_MAXCLIENTS) == ServerQueryFlags.SQF_MAXCLIENTS) {
+            networkBuffer.extractByte(); // Max clients allowed in the server (sv_maxclients)
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_MAXPLAYERS) == ServerQueryFlags.SQF_MAXPLAYERS) {
+            networkBuffer.extractByte(); // Max players allowed in the server (sv_maxplayers)
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_PWADS) == ServerQueryFlags.SQF_PWADS) {
+            byte numOfPwads = networkBuffer.extractByte(); // How many loaded wads there are
+            if (numOfPwads > 0) {
+                String pwadList = "";
+                for (int n = 0; n < numOfPwads; n++) {
+                    if (n == numOfPwads - 1) {
+                        pwadList += networkBuffer.extractString(); // Don't add a delimiter for the end of the list
+                    } else {
+                        pwadList += networkBuffer.extractString() + ",";
                     }
-                    queryResult.pwad_names = pwadList;
                 }
+                queryResult.pwad_names = pwadList;
             }
+        }
 
-            if ((inboundFlags & ServerQueryFlags.SQF_GAMETYPE) == ServerQueryFlags.SQF_GAMETYPE) {
-                queryResult.gamemode = networkBuffer.extractByte(); // Gamemode
-                queryResult.instagib = networkBuffer.extractByte(); // Instagib
-                queryResult.buckshot = networkBuffer.extractByte(); // Buckshot
-            }
+        if ((inboundFlags & ServerQueryFlags.SQF_GAMETYPE) == ServerQueryFlags.SQF_GAMETYPE) {
+            queryResult.gamemode = networkBuffer.extractByte(); // Gamemode
+            queryResult.instagib = networkBuffer.extractByte(); // Instagib
+            queryResult.buckshot = networkBuffer.extractByte(); // Buckshot
+        }
 
-            if ((inboundFlags & ServerQueryFlags.SQF_GAMENAME) == ServerQueryFlags.SQF_GAMENAME) {
-                networkBuffer.extractString(); // Game base name (ex: DOOM, DOOM II, ...etc)
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_IWAD) == ServerQueryFlags.SQF_IWAD) {
-                queryResult.iwad = networkBuffer.extractString(); // IWAD name
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_FORCEPASSWORD) == ServerQueryFlags.SQF_FORCEPASSWORD) {
-                networkBuffer.extractByte(); // If a password is required
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_FORCEJOINPASSWORD) == ServerQueryFlags.SQF_FORCEJOINPASSWORD) {
-                networkBuffer.extractByte(); // If a join password is required
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_GAMESKILL) == ServerQueryFlags.SQF_GAMESKILL) {
-                queryResult.skill = networkBuffer.extractByte(); // Skill level
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_BOTSKILL) == ServerQueryFlags.SQF_BOTSKILL) {
-                networkBuffer.extractByte(); // Bot skill level
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_DMFLAGS) == ServerQueryFlags.SQF_DMFLAGS) {
-                queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
-                queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
-                queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
-            }
+        if ((inboundFlags & ServerQueryFlags.SQF_GAMENAME) == ServerQueryFlags.SQF_GAMENAME) {
+            networkBuffer.extractString(); // Game base name (ex: DOOM, DOOM II, ...etc)
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_IWAD) == ServerQueryFlags.SQF_IWAD) {
+            queryResult.iwad = networkBuffer.extractString(); // IWAD name
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_FORCEPASSWORD) == ServerQueryFlags.SQF_FORCEPASSWORD) {
+            networkBuffer.extractByte(); // If a password is required
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_FORCEJOINPASSWORD) == ServerQueryFlags.SQF_FORCEJOINPASSWORD) {
+            networkBuffer.extractByte(); // If a join password is required
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_GAMESKILL) == ServerQueryFlags.SQF_GAMESKILL) {
+            queryResult.skill = networkBuffer.extractByte(); // Skill level
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_BOTSKILL) == ServerQueryFlags.SQF_BOTSKILL) {
+            networkBuffer.extractByte(); // Bot skill level
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_DMFLAGS) == ServerQueryFlags.SQF_DMFLAGS) {
+            queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
+            queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
+            queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
+        }
 
-            if ((inboundFlags & ServerQueryFlags.SQF_LIMITS) == ServerQueryFlags.SQF_LIMITS) {
-                networkBuffer.extractShort(true); // fraglimit
-                networkBuffer.extractShort(true); // timelimit
-                networkBuffer.extractShort(true); // time left (in minutes)
-                networkBuffer.extractShort(true); // duellimit
-                networkBuffer.extractShort(true); // pointlimit
-                networkBuffer.extractShort(true); // winlimit
-            }
+        if ((inboundFlags & ServerQueryFlags.SQF_LIMITS) == ServerQueryFlags.SQF_LIMITS) {
+            networkBuffer.extractShort(true); // fraglimit
+            networkBuffer.extractShort(true); // timelimit
+            networkBuffer.extractShort(true); // time left (in minutes)
+            networkBuffer.extractShort(true); // duellimit
+            networkBuffer.extractShort(true); // pointlimit
+            networkBuffer.extractShort(true); // winlimit
+        }
 
-            if ((inboundFlags & ServerQueryFlags.SQF_TEAMDAMAGE) == ServerQueryFlags.SQF_TEAMDAMAGE) {
-                networkBuffer.extractInt(true); // This is a 32 bit float, no support right now
+        if ((inboundFlags & ServerQueryFlags.SQF_TEAMDAMAGE) == ServerQueryFlags.SQF_TEAMDAMAGE) {
+            networkBuffer.extractInt(true); // This is a 32 bit float, no support right now
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_TEAMSCORES) == ServerQueryFlags.SQF_TEAMSCORES) {
+            networkBuffer.extractShort(true); // UNSURE: Claims deprecated, supposed to be the score for each team...
+        }
+        byte numPlayers = 0;
+        if ((inboundFlags & ServerQueryFlags.SQF_NUMPLAYERS) == ServerQueryFlags.SQF_NUMPLAYERS) {
+            numPlayers = networkBuffer.extractByte(); // Number of players in the server
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_PLAYERDATA) == ServerQueryFlags.SQF_PLAYERDATA) {
+            for (int n = 0; n < numPlayers; n++) {
+                networkBuffer.extractString(); // Player's name
+                networkBuffer.extractShort(true); // Player's pointcount/fragcount/killcount
+                networkBuffer.extractShort(true); // Player's ping
+                networkBuffer.extractByte(); // Is spectator
+                networkBuffer.extractByte(); // Is bot
+                networkBuffer.extractByte(); // Player team (255 = no team)
+                networkBuffer.extractByte(); // Player time in minutes in he server
             }
-            if ((inboundFlags & ServerQueryFlags.SQF_TEAMSCORES) == ServerQueryFlags.SQF_TEAMSCORES) {
-                networkBuffer.extractShort(true); // UNSURE: Claims deprecated, supposed to be the score for each team...
+        }
+
+        byte numTeams = 0;
+        if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NUMBER) == ServerQueryFlags.SQF_TEAMINFO_NUMBER) {
+            numTeams = networkBuffer.extractByte(); // Number of teams
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NAME) == ServerQueryFlags.SQF_TEAMINFO_NAME) {
+            for (int n = 0; n < numTeams; n++) {
+                networkBuffer.extractString(); // Team's name
             }
-            byte numPlayers = 0;
-            if ((inboundFlags & ServerQueryFlags.SQF_NUMPLAYERS) == ServerQueryFlags.SQF_NUMPLAYERS) {
-                numPlayers = networkBuffer.extractByte(); // Number of players in the server
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_COLOR) == ServerQueryFlags.SQF_TEAMINFO_COLOR) {
+            for (int n = 0; n < numTeams; n++) {
+                networkBuffer.extractInt(true); // Team's color
             }
-            if ((inboundFlags & ServerQueryFlags.SQF_PLAYERDATA) == ServerQueryFlags.SQF_PLAYERDATA) {
-                for (int n = 0; n < numPlayers; n++) {
-                    networkBuffer.extractString(); // Player's name
-                    networkBuffer.extractShort(true); // Player's pointcount/fragcount/killcount
-                    networkBuffer.extractShort(true); // Player's ping
-                    networkBuffer.extractByte(); // Is spectator
-                    networkBuffer.extractByte(); // Is bot
-                    networkBuffer.extractByte(); // Player team (255 = no team)
-                    networkBuffer.extractByte(); // Player time in minutes in he server
-                }
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_SCORE) == ServerQueryFlags.SQF_TEAMINFO_SCORE) {
+            for (int n = 0; n < numTeams; n++) {
+                networkBuffer.extractShort(true); // Team's score
             }
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_TESTING_SERVER) == ServerQueryFlags.SQF_TESTING_SERVER) {
+            networkBuffer.extractByte(); // True/false if using a custom binary
+            networkBuffer.extractString(); // Empty string if stable binary, testing binary name otherwise
+        }
 
-            byte numTeams = 0;
-            if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NUMBER) == ServerQueryFlags.SQF_TEAMINFO_NUMBER) {
-                numTeams = networkBuffer.extractByte(); // Number of teams
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_NAME) == ServerQueryFlags.SQF_TEAMINFO_NAME) {
-                for (int n = 0; n < numTeams; n++) {
-                    networkBuffer.extractString(); // Team's name
-                }
-            }
-            if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_COLOR) == ServerQueryFlags.SQF_TEAMINFO_COLOR) {
-                for (int n = 0; n < numTeams; n++) {
-                    networkBuffer.extractInt(true); // Team's color
-                }
+        if ((inboundFlags & ServerQueryFlags.SQF_DATA_MD5SUM) == ServerQueryFlags.SQF_DATA_MD5SUM) {
+            networkBuffer.extractString(); // MD5 sum
+        }
+        if ((inboundFlags & ServerQueryFlags.SQF_ALL_DMFLAGS) == ServerQueryFlags.SQF_ALL_DMFLAGS) {
+            int numOfFlags = networkBuffer.extractByte();
+            if (numOfFlags > 0) {
+                queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
             }
-            if ((inboundFlags & ServerQueryFlags.SQF_TEAMINFO_SCORE) == ServerQueryFlags.SQF_TEAMINFO_SCORE) {
-                for (int n = 0; n < numTeams; n++) {
-                    networkBuffer.extractShort(true); // Team's score
-                }
+            if (numOfFlags > 1) {
+                queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
             }
-            if ((inboundFlags & ServerQueryFlags.SQF_TESTING_SERVER) == ServerQueryFlags.SQF_TESTING_SERVER) {
-                networkBuffer.extractByte(); // True/false if using a custom binary
-                networkBuffer.extractString(); // Empty string if stable binary, testing binary name otherwise
+            if (numOfFlags > 2) {
+                queryResult.dmflags3 = networkBuffer.extractInt(true); // dmflags3
             }
-
-            if ((inboundFlags & ServerQueryFlags.SQF_DATA_MD5SUM) == ServerQueryFlags.SQF_DATA_MD5SUM) {
-                networkBuffer.extractString(); // MD5 sum
+            if (numOfFlags > 3) {
+                queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
             }
-            if ((inboundFlags & ServerQueryFlags.SQF_ALL_DMFLAGS) == ServerQueryFlags.SQF_ALL_DMFLAGS) {
-                int numOfFlags = networkBuffer.extractByte();
-                if (numOfFlags > 0) {
-                    queryResult.dmflags = networkBuffer.extractInt(true); // dmflags
-                }
-                if (numOfFlags > 1) {
-                    queryResult.dmflags2 = networkBuffer.extractInt(true); // dmflags2
-                }
-                if (numOfFlags > 2) {
-                    queryResult.dmflags3 = networkBuffer.extractInt(true); // dmflags3
-                }
-                if (numOfFlags > 3) {
-                    queryResult.compatflags = networkBuffer.extractInt(true); // compatflags
-                }
-                if (numOfFlags > 4) {
-                    queryResult.compatflags2 = networkBuffer.extractInt(true); // compatflags2
-                }
+            if (numOfFlags > 4) {
+                queryResult.compatflags2 = networkBuffer.extractInt(true); // compatflags2
             }
+        }
 
-            if ((inboundFlags & ServerQueryFlags.SQF_SECURITY_SETTINGS) == ServerQueryFlags.SQF_SECURITY_SETTINGS) {
-                networkBuffer.extractByte(); // If enforcing the master
-            }
-            // Display the final result in the channel
-            displayQueryResult(queryResult);
-        } catch (NetworkBufferException nbe) {
-            if (nbe.getMessage() != null) {
-                bot.sendMessageToChannel(nbe.getMessage());
-            } else {
-                bot.sendMessageToChannel("NetworkBufferException was thrown, please contact an administrator now.");
-            }
-        } catch (NetworkPacketProcessException nppe) {
-            bot.sendMessageToChannel("Network exception: " + nppe.getMessage());
+        if ((inboundFlags & ServerQueryFlags.SQF_SECURITY_SETTINGS) == ServerQueryFlags.SQF_SECURITY_SETTINGS) {
+            networkBuffer.extractByte(); // If enforcing the master
         }
+        return queryResult;
     }
 
     public void displayQueryResult(QueryResult queryResult) {
@@ -324,6 +339,7 @@ public class QueryHandler extends Thread {
         int port = request.getPort();
         byte[] dataToSend;
         byte[] dataToReceive = new byte[2048]; // Doubled standard size in case there's some dumb wad list with a lot of characters
+        long start = 0;
 
         // Try with resources, we want to always have the socket close
         try (DatagramSocket connectionSocket = new DatagramSocket()) {
@@ -333,12 +349,15 @@ public class QueryHandler extends Thread {
 
             // Now send the data
             DatagramPacket sendPacket = new DatagramPacket(huffmanToSend, huffmanToSend.length, IPAddress, port);
+            start = System.nanoTime();
             connectionSocket.send(sendPacket);
 
             // Block until we receive something or time out
             DatagramPacket receivePacket = new DatagramPacket(dataToReceive, dataToReceive.length);
             connectionSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
             connectionSocket.receive(receivePacket);
+            Metrics.histogram("query.rtt").recordSince(start);
+            Profiler.serverQuery(request.getIP(), port, start, false);
 
             // Prepare the data for processing
             byte[] receivedData = receivePacket.getData();
@@ -353,6 +372,8 @@ public class QueryHandler extends Thread {
         } catch (SocketException e) {
             bot.sendMessageToChannel("Error with the socket when handling query. Please try again or contact an administrator.");
         } catch (SocketTimeoutException e) {
+            Metrics.counter("query.timeouts").increment();
+            Profiler.serverQuery(request.getIP(), port, start, true);
             bot.sendMessageToChannel("Socket timeout, IP is incorrect or server is down/unreachable (consider trying again if it is your first try).");
         } catch (IOException e) {
             bot.sendMessageToChannel("IOException from query. Please try again or contact an administrator.");
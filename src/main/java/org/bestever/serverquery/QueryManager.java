@@ -18,6 +18,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import org.bestever.bebot.Bot;
+import org.bestever.bebot.Metrics;
 
 /**
  * Runs on its own thread and handles incoming requests for servery querying
@@ -59,6 +60,12 @@ public class QueryManager {
     public QueryManager(Bot bot) {
         this.queryRequests = new LinkedBlockingQueue<>(MAX_REQUESTS);
         this.bot = bot;
+        Metrics.gauge("query.queue", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return queryRequests.size();
+            }
+        });
         timer.schedule(new TimerTask() {
             @Override
             public void run() {                
@@ -0,0 +1,101 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+/**
+ * Records profiles with the JDK flight recorder. This is compiled for Java 11
+ * and loaded by Profiler only on a JVM that has jdk.jfr.
+ */
+public class JfrBackend implements Profiler.Backend {
+
+    /**
+     * The running recording
+     */
+    private Recording active;
+
+    @Override
+    public boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    @Override
+    public void start() throws IOException {
+        Recording r;
+        try {
+            r = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        r.setName("BestBot profile");
+        r.setToDisk(true);
+        r.start();
+        active = r;
+    }
+
+    @Override
+    public void stop(File file) throws IOException {
+        Recording r = active;
+        active = null;
+        try {
+            r.stop();
+            r.dump(file.toPath());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Override
+    public void consoleLine(int port, int length, long processing) {
+        ProfileEvents.ConsoleLine event = new ProfileEvents.ConsoleLine();
+        event.port = port;
+        event.length = length;
+        event.processing = processing;
+        event.commit();
+    }
+
+    @Override
+    public void serverQuery(String host, int port, long rtt, boolean timedOut) {
+        ProfileEvents.ServerQuery event = new ProfileEvents.ServerQuery();
+        event.host = host;
+        event.port = port;
+        event.rtt = rtt;
+        event.timedOut = timedOut;
+        event.commit();
+    }
+
+    @Override
+    public void ircSend(String target, int length, long sending) {
+        ProfileEvents.IrcSend event = new ProfileEvents.IrcSend();
+        event.target = target;
+        event.length = length;
+        event.sending = sending;
+        event.commit();
+    }
+
+    @Override
+    public void mysqlCall(String method, long held) {
+        ProfileEvents.MySQLCall event = new ProfileEvents.MySQLCall();
+        event.method = method;
+        event.held = held;
+        event.commit();
+    }
+}
@@ -0,0 +1,149 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder events written while a profile is being recorded. The
+ * events are only created through the Profiler, so nothing here is loaded on
+ * a JVM without flight recorder support. Durations are measured by the
+ * caller and stored as a field, since the work is already timed for the
+ * metrics.
+ */
+public class ProfileEvents {
+
+    /**
+     * A line of server console output was processed
+     */
+    @Name("org.bestever.bebot.ConsoleLine")
+    @Label("Console Line")
+    @Category({"BestBot", "Servers"})
+    @StackTrace(false)
+    public static class ConsoleLine extends Event {
+
+        /**
+         * Port of the server that printed the line
+         */
+        @Label("Port")
+        public int port;
+
+        /**
+         * Length of the line
+         */
+        @Label("Length")
+        public int length;
+
+        /**
+         * Time spent processing the line
+         */
+        @Label("Processing Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long processing;
+    }
+
+    /**
+     * A server was queried for its settings
+     */
+    @Name("org.bestever.bebot.ServerQuery")
+    @Label("Server Query")
+    @Category({"BestBot", "Queries"})
+    @StackTrace(false)
+    public static class ServerQuery extends Event {
+
+        /**
+         * Address of the queried server
+         */
+        @Label("Host")
+        public String host;
+
+        /**
+         * Port of the queried server
+         */
+        @Label("Port")
+        public int port;
+
+        /**
+         * Round trip time of the query
+         */
+        @Label("Round Trip Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long rtt;
+
+        /**
+         * Set if the server did not answer in time
+         */
+        @Label("Timed Out")
+        public boolean timedOut;
+    }
+
+    /**
+     * A message was sent to IRC
+     */
+    @Name("org.bestever.bebot.IrcSend")
+    @Label("IRC Send")
+    @Category({"BestBot", "IRC"})
+    @StackTrace(false)
+    public static class IrcSend extends Event {
+
+        /**
+         * Channel or nick the message was sent to
+         */
+        @Label("Target")
+        public String target;
+
+        /**
+         * Length of the message
+         */
+        @Label("Length")
+        public int length;
+
+        /**
+         * Time spent sending, including any throttling by the IRC library
+         */
+        @Label("Send Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long sending;
+    }
+
+    /**
+     * A database connection was closed
+     */
+    @Name("org.bestever.bebot.MySQLCall")
+    @Label("MySQL Call")
+    @Category({"BestBot", "MySQL"})
+    @Description("A MySQL method from opening its connection until closing it")
+    public static class MySQLCall extends Event {
+
+        /**
+         * The MySQL method that used the connection
+         */
+        @Label("Method")
+        public String method;
+
+        /**
+         * Time the connection was held open
+         */
+        @Label("Held")
+        @Timespan(Timespan.NANOSECONDS)
+        public long held;
+    }
+}
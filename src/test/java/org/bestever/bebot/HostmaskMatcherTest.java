@@ -0,0 +1,65 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the globs HostmaskMatcher uses for each part of a mask
+ */
+public class HostmaskMatcherTest {
+
+    /**
+     * A * matches any run of characters, including none
+     */
+    @Test
+    public void starMatchesAnyRun() {
+        assertTrue(HostmaskMatcher.globMatches("*", ""));
+        assertTrue(HostmaskMatcher.globMatches("*.example.com", "user.example.com"));
+        assertTrue(HostmaskMatcher.globMatches("a*b*c", "abc"));
+        assertTrue(HostmaskMatcher.globMatches("a*b*c", "axxbyybc"));
+        assertTrue(HostmaskMatcher.globMatches("**host", "host"));
+        assertFalse(HostmaskMatcher.globMatches("*.example.com", "example.com"));
+        assertFalse(HostmaskMatcher.globMatches("a*b", "abc"));
+    }
+
+    /**
+     * A ? matches exactly one character
+     */
+    @Test
+    public void questionMarkMatchesOneCharacter() {
+        assertTrue(HostmaskMatcher.globMatches("n?ck", "nick"));
+        assertTrue(HostmaskMatcher.globMatches("???", "abc"));
+        assertFalse(HostmaskMatcher.globMatches("n?ck", "nck"));
+        assertFalse(HostmaskMatcher.globMatches("???", "abcd"));
+    }
+
+    /**
+     * Characters that mean something in a regular expression are matched as
+     * themselves
+     */
+    @Test
+    public void bracketsAndBarsAreLiteral() {
+        assertTrue(HostmaskMatcher.globMatches("[ab]*", "[ab]nick"));
+        assertFalse(HostmaskMatcher.globMatches("[ab]*", "anick"));
+        assertTrue(HostmaskMatcher.globMatches("nick|away*", "nick|away2"));
+        assertFalse(HostmaskMatcher.globMatches("nick|away*", "nick"));
+        assertFalse(HostmaskMatcher.globMatches("nick|away*", "away"));
+        assertTrue(HostmaskMatcher.globMatches("a.c", "a.c"));
+        assertFalse(HostmaskMatcher.globMatches("a.c", "abc"));
+    }
+}
@@ -0,0 +1,182 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests Pk3Scanner against archives written by java.util.zip
+ */
+public class Pk3ScannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The end of central directory record is found behind a long comment
+     */
+    @Test
+    public void findsMapsBehindArchiveComment() throws IOException {
+        File pk3 = folder.newFile("comment.pk3");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pk3))) {
+            // Part of the comment looks like the start of the record
+            StringBuilder comment = new StringBuilder("PK\u0005\u0006");
+            for (int i = 0; i < 2000; i++) {
+                comment.append('x');
+            }
+            zip.setComment(comment.toString());
+            addFile(zip, "maps/MAP01.wad", wad("MAP01", "THINGS", "LINEDEFS"), ZipEntry.DEFLATED);
+        }
+        assertEquals(Arrays.asList("MAP01"), Pk3Scanner.findMaps(pk3.getPath()));
+    }
+
+    /**
+     * Archives with more entries than the end of central directory record can
+     * count are read through the zip64 records
+     */
+    @Test
+    public void readsZip64Directory() throws IOException {
+        File pk3 = folder.newFile("zip64.pk3");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pk3))) {
+            for (int i = 0; i < 0xFFFF; i++) {
+                zip.putNextEntry(new ZipEntry("sounds/s" + i + ".ogg"));
+                zip.closeEntry();
+            }
+            addFile(zip, "maps/MAP07.wad", wad("MAP07", "THINGS"), ZipEntry.DEFLATED);
+        }
+        assertEquals(0xFFFF + 1, Pk3Scanner.listEntries(pk3.getPath()).size());
+        assertEquals(Arrays.asList("MAP07"), Pk3Scanner.findMaps(pk3.getPath()));
+    }
+
+    /**
+     * Maps are read from the directory of a deflated wad in the root of the
+     * archive
+     */
+    @Test
+    public void findsMapsInDeflatedNestedWad() throws IOException {
+        File pk3 = folder.newFile("nested.pk3");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pk3))) {
+            addFile(zip, "levels.wad", wad("MAP03", "THINGS", "LINEDEFS", "E1M1", "THINGS", "GL_E1M1", "GL_VERT"), ZipEntry.DEFLATED);
+            addFile(zip, "sub/other.wad", wad("MAP99", "THINGS"), ZipEntry.DEFLATED);
+        }
+        assertEquals(Arrays.asList("E1M1", "MAP03"), Pk3Scanner.findMaps(pk3.getPath()));
+    }
+
+    /**
+     * Map definitions are read from MAPINFO lumps, skipping comments
+     */
+    @Test
+    public void parsesMapinfo() throws IOException {
+        String mapinfo = "// map FAKE01 \"commented out\"\n"
+                + "/* map FAKE02 \"also\n"
+                + "   commented out\" */\n"
+                + "map E1M1 \"Hangar\"\n"
+                + "{\n"
+                + "    next = \"E1M2\"\n"
+                + "}\n"
+                + "\tMap \"map02\" lookup \"HUSTR_2\"\n"
+                + "defaultmap { sky1 = \"SKY1\" }\n";
+        File pk3 = folder.newFile("mapinfo.pk3");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pk3))) {
+            addFile(zip, "ZMAPINFO.txt", mapinfo.getBytes(StandardCharsets.ISO_8859_1), ZipEntry.DEFLATED);
+            addFile(zip, "docs/mapinfo", "map NOTREAD".getBytes(StandardCharsets.ISO_8859_1), ZipEntry.STORED);
+        }
+        assertEquals(Arrays.asList("E1M1", "MAP02"), Pk3Scanner.findMaps(pk3.getPath()));
+    }
+
+    /**
+     * A wad whose directory would not fit in an array is skipped rather than
+     * overflowing the size of the buffer
+     */
+    @Test
+    public void skipsWadWithOversizedDirectory() throws IOException {
+        byte[] header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN)
+                .put("PWAD".getBytes(StandardCharsets.ISO_8859_1)).putInt(0x08000000).putInt(12).array();
+        File pk3 = folder.newFile("huge.pk3");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pk3))) {
+            addFile(zip, "huge.wad", header, ZipEntry.STORED);
+        }
+
+        // Claim an extracted size large enough to hold the 2 GB directory
+        byte[] data = Files.readAllBytes(pk3.toPath());
+        int central = indexOf(data, new byte[]{'P', 'K', 1, 2});
+        try (RandomAccessFile raf = new RandomAccessFile(pk3, "rw")) {
+            raf.seek(central + 24);
+            raf.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0xFFFFFFF0).array());
+        }
+        assertEquals(Collections.emptyList(), Pk3Scanner.findMaps(pk3.getPath()));
+    }
+
+    /**
+     * Builds a wad of empty lumps
+     *
+     * @param lumps String... - the lump names
+     * @return the wad
+     */
+    private static byte[] wad(String... lumps) {
+        ByteBuffer buf = ByteBuffer.allocate(12 + lumps.length * 16).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put("PWAD".getBytes(StandardCharsets.ISO_8859_1)).putInt(lumps.length).putInt(12);
+        for (String lump : lumps) {
+            buf.putInt(12).putInt(0).put(Arrays.copyOf(lump.getBytes(StandardCharsets.ISO_8859_1), 8));
+        }
+        return buf.array();
+    }
+
+    /**
+     * Adds a file to an archive
+     */
+    private static void addFile(ZipOutputStream zip, String name, byte[] data, int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /**
+     * Finds the first occurrence of a pattern
+     */
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,171 @@
+// --------------------------------------------------------------------------
+// Copyright (C) 2012-2013 Best-Ever
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// --------------------------------------------------------------------------
+package org.bestever.bebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that ServerJournal replays what it recorded and keeps the records in
+ * front of a damaged one
+ */
+public class ServerJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Started servers come back with their details and plan, stopped ones do
+     * not
+     */
+    @Test
+    public void replaysUpAndDownRecords() throws IOException {
+        File file = journalFile();
+        ServerJournal journal = new ServerJournal(file);
+        assertEquals(0, journal.replay().size());
+        journal.started(server("s1", 10666));
+        journal.started(server("s2", 10667));
+        journal.stopped("s1");
+        journal.close();
+
+        List<ServerJournal.Entry> entries = new ServerJournal(file).replay();
+        assertEquals(1, entries.size());
+        ServerJournal.Entry entry = entries.get(0);
+        assertEquals("s2", entry.getServerId());
+        assertEquals(10667, entry.getPort());
+        assertEquals(Arrays.asList("/iwads/doom2.wad", "/wads/s2.wad"), entry.getFiles());
+
+        Server s = entry.toServer();
+        assertEquals("Server s2", s.servername);
+        assertEquals(Arrays.asList("MAP01", "MAP07"), s.maplist);
+        assertEquals(Arrays.asList("s2.wad"), s.launch_plan.getWads());
+        assertEquals("hash-s2", s.launch_plan.getHash());
+    }
+
+    /**
+     * A record cut short by a crash is dropped and the ones before it are kept
+     */
+    @Test
+    public void keepsRecordsBeforeTornTail() throws IOException {
+        File file = journalFile();
+        ServerJournal journal = new ServerJournal(file);
+        journal.replay();
+        journal.started(server("s1", 10666));
+        journal.started(server("s2", 10667));
+        journal.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        assertEquals(Arrays.asList("s1"), ids(new ServerJournal(file).replay()));
+    }
+
+    /**
+     * A record with a bad checksum stops the replay, even if records follow
+     * it
+     */
+    @Test
+    public void stopsAtBadChecksum() throws IOException {
+        File file = journalFile();
+        ServerJournal journal = new ServerJournal(file);
+        journal.replay();
+        journal.started(server("s1", 10666));
+        long first = file.length();
+        journal.started(server("s2", 10667));
+        journal.started(server("s3", 10668));
+        journal.close();
+
+        // Flip a byte in the body of the second record, after its length and checksum
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(first + 8 + 10);
+            int b = raf.read();
+            raf.seek(first + 8 + 10);
+            raf.write(b ^ 0xFF);
+        }
+        assertEquals(Arrays.asList("s1"), ids(new ServerJournal(file).replay()));
+    }
+
+    /**
+     * The journal is rewritten to one record per running server once it holds
+     * more than twice that plus 64 records
+     */
+    @Test
+    public void compactsPastThreshold() throws IOException {
+        File file = journalFile();
+        ServerJournal journal = new ServerJournal(file);
+        journal.replay();
+        Server s = server("s1", 10666);
+        journal.started(s);
+        long record = file.length() - 4;
+
+        // 1 running server allows 2 * 1 + 64 records
+        for (int i = 0; i < 65; i++) {
+            journal.updated(s);
+        }
+        assertEquals(4 + 66 * record, file.length());
+        journal.updated(s);
+        assertEquals(4 + record, file.length());
+        journal.close();
+
+        assertEquals(Arrays.asList("s1"), ids(new ServerJournal(file).replay()));
+    }
+
+    /**
+     * @return a journal file that does not exist yet
+     */
+    private File journalFile() throws IOException {
+        return new File(folder.newFolder(), "servers.journal");
+    }
+
+    /**
+     * Builds a server with a launch plan
+     *
+     * @param id String - the server ID
+     * @param port int - the port
+     * @return the server
+     */
+    private static Server server(String id, int port) {
+        Server s = new Server();
+        s.server_id = id;
+        s.port = port;
+        s.servername = "Server " + id;
+        s.iwad = "doom2";
+        s.gamemode = "ctf";
+        s.maplist = new ArrayList<>(Arrays.asList("MAP01", "MAP07"));
+        s.launch_plan = LaunchPlan.restore("zandronum-server", Arrays.asList("-iwad", "/iwads/doom2.wad"),
+                Arrays.asList(id + ".wad"), Arrays.asList("/iwads/doom2.wad", "/wads/" + id + ".wad"),
+                "page-" + id, "http://example.com/" + id, "hash-" + id);
+        return s;
+    }
+
+    /**
+     * @return the server IDs of the entries
+     */
+    private static List<String> ids(List<ServerJournal.Entry> entries) {
+        List<String> ids = new ArrayList<>();
+        for (ServerJournal.Entry entry : entries) {
+            ids.add(entry.getServerId());
+        }
+        return ids;
+    }
+}